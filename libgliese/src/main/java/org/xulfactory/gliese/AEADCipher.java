@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Authenticated encryption of the binary packets. The cipher encrypts the
+ * packet and computes its authentication tag in a single pass, no MAC is
+ * negotiated along with it. The packet length field comes first and is
+ * authenticated; depending on the cipher it is sent in clear or
+ * encrypted. The padding is computed without the length field.
+ *
+ * An instance protects the packets of one direction and keeps the state
+ * of the nonce; the packets must be processed in order.
+ *
+ * @author sirot
+ */
+public interface AEADCipher
+{
+	/**
+	 * Retrieves the length the packets are padded to a multiple of.
+	 *
+	 * @return  the block length in bytes
+	 */
+	int getBlockLength();
+
+	/**
+	 * Retrieves the length of the authentication tag following the
+	 * packet.
+	 *
+	 * @return  the tag length in bytes
+	 */
+	int getTagLength();
+
+	/**
+	 * Retrieves the length of a received packet from its length field.
+	 *
+	 * @param seq  the packet sequence number
+	 * @param head  the four bytes of the length field as received,
+	 *        between the position and the limit
+	 * @return  the packet length
+	 */
+	int getPacketLength(int seq, ByteBuffer head);
+
+	/**
+	 * Encrypts and authenticates a packet in place. The tag is written
+	 * after the packet and the limit of the buffer is moved after the
+	 * tag.
+	 *
+	 * @param seq  the packet sequence number
+	 * @param packet  the packet, length field included, between the
+	 *        position and the limit
+	 */
+	void seal(int seq, ByteBuffer packet);
+
+	/**
+	 * Verifies and decrypts a received packet.
+	 *
+	 * @param seq  the packet sequence number
+	 * @param head  the four bytes of the length field as received
+	 * @param src  the buffer holding the encrypted packet without its
+	 *        length field, followed by the tag; the bytes are consumed
+	 * @param len  the packet length
+	 * @param dst  the buffer receiving the decrypted packet without its
+	 *        length field
+	 * @return  {@code false} if the authentication failed
+	 */
+	boolean open(int seq, ByteBuffer head, ByteBuffer src, int len,
+		ByteBuffer dst);
+}
@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese;
+
+/**
+ * Authenticated encryption algorithm interface. The AEAD algorithms are
+ * negotiated as ciphers but do not provide a {@code javax.crypto.Cipher}:
+ * the transport uses the {@link AEADCipher} instances instead of a cipher
+ * and a MAC, the negotiated MAC is then ignored.
+ *
+ * @author sirot
+ */
+public interface AEADCipherAlgorithm extends SSHAlgorithm
+{
+	/**
+	 * Retrieves the length of the key in bytes.
+	 *
+	 * @return the key length
+	 */
+	int getKeyLength();
+
+	/**
+	 * Retrieves the length of the initial nonce derived from the key
+	 * exchange.
+	 *
+	 * @return  the IV length in bytes
+	 */
+	int getIVLength();
+
+	/**
+	 * Retrieves an instance of the algorithm initialized with the
+	 * provided key and IV.
+	 *
+	 * @param key  the key
+	 * @param iv  the initial nonce
+	 * @param mode  {@code Cipher.ENCRYPT_MODE} or
+	 *        {@code Cipher.DECRYPT_MODE}
+	 * @return  the cipher instance
+	 */
+	AEADCipher getAEADInstance(byte[] key, byte[] iv, int mode);
+}
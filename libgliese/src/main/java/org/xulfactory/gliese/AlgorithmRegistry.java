@@ -33,6 +33,8 @@ final class AlgorithmRegistry
 		= new HashMap<String, SSHPublicKeyFactory>();
 	private Map<String, CipherAlgorithm> ciphers
 		= new HashMap<String, CipherAlgorithm>();
+	private Map<String, AEADCipherAlgorithm> aeadCiphers
+		= new HashMap<String, AEADCipherAlgorithm>();
 	private Map<String, MacAlgorithm> macs
 		= new HashMap<String, MacAlgorithm>();
 
@@ -48,6 +50,11 @@ final class AlgorithmRegistry
 		for (CipherAlgorithm cipher: cipherLoader) {
 			register(cipher);
 		}
+		ServiceLoader<AEADCipherAlgorithm> aeadLoader =
+			ServiceLoader.load(AEADCipherAlgorithm.class);
+		for (AEADCipherAlgorithm cipher: aeadLoader) {
+			register(cipher);
+		}
 		ServiceLoader<MacAlgorithm> macLoader =
 			ServiceLoader.load(MacAlgorithm.class);
 		for (MacAlgorithm mac: macLoader) {
@@ -90,6 +97,16 @@ final class AlgorithmRegistry
 		return ciphers.get(name);
 	}
 
+	void register(AEADCipherAlgorithm cipher)
+	{
+		aeadCiphers.put(cipher.getName(), cipher);
+	}
+
+	AEADCipherAlgorithm getAEADCipher(String name)
+	{
+		return aeadCiphers.get(name);
+	}
+
 	void register(MacAlgorithm mac)
 	{
 		macs.put(mac.getName(), mac);
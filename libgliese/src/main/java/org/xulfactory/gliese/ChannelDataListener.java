@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Listener of the events of a channel, called back instead of buffering
+ * the received data for the channel streams. See
+ * {@link SSHChannel#setDataListener(ChannelDataListener)}.
+ *
+ * The methods are called in order by the dispatch queue of the channel
+ * and must not block for long since the next messages of the channel wait
+ * meanwhile. The data buffers are views of the decrypted packets, valid
+ * until the method returns: the listener copies the data it keeps. The
+ * window credit is returned to the peer once the listener calls
+ * {@link SSHChannel#consumed(int)}, possibly later from another thread.
+ *
+ * @author sirot
+ */
+public interface ChannelDataListener
+{
+	/**
+	 * Called when data has been received on the standard output.
+	 *
+	 * @param channel  the channel
+	 * @param data  the received data, read-only
+	 */
+	void data(SSHChannel channel, ByteBuffer data);
+
+	/**
+	 * Called when extended data has been received, the error output for
+	 * instance.
+	 *
+	 * @param channel  the channel
+	 * @param type  the data type code, 1 for the error output
+	 * @param data  the received data, read-only
+	 */
+	void extendedData(SSHChannel channel, int type, ByteBuffer data);
+
+	/**
+	 * Called when the peer will send no more data.
+	 *
+	 * @param channel  the channel
+	 */
+	void eof(SSHChannel channel);
+
+	/**
+	 * Called when the exit status of the remote command has been
+	 * received.
+	 *
+	 * @param channel  the channel
+	 * @param status  the exit status
+	 */
+	void exitStatus(SSHChannel channel, int status);
+
+	/**
+	 * Called when the channel has been closed by the peer or when the
+	 * connection has been lost.
+	 *
+	 * @param channel  the channel
+	 */
+	void closed(SSHChannel channel);
+}
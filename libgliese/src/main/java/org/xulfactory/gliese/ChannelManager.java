@@ -19,6 +19,7 @@ package org.xulfactory.gliese;
 
 import org.xulfactory.gliese.message.ChannelDataMessage;
 import org.xulfactory.gliese.message.ChannelOpenConfirmationMessage;
+import org.xulfactory.gliese.message.ChannelOpenFailureMessage;
 import org.xulfactory.gliese.message.ChannelOpenMessage;
 import org.xulfactory.gliese.message.ChannelRequestMessage;
 import org.xulfactory.gliese.message.ChannelWindowsAdjustMessage;
@@ -28,41 +29,159 @@ import org.xulfactory.gliese.message.ChannelCloseMessage;
 import org.xulfactory.gliese.message.ChannelSuccessMessage;
 import org.xulfactory.gliese.message.ChannelFailureMessage;
 import org.xulfactory.gliese.message.ChannelExtendedDataMessage;
+import org.xulfactory.gliese.message.GlobalRequestMessage;
+import org.xulfactory.gliese.message.RequestFailureMessage;
+import org.xulfactory.gliese.message.RequestSuccessMessage;
+import org.xulfactory.gliese.util.ConcurrentIntTable;
 import org.xulfactory.gliese.util.GlieseLogger;
+import org.xulfactory.gliese.util.IdAllocator;
+import org.xulfactory.gliese.util.SerialExecutor;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Dispatcher of the connection protocol messages to the channels.
+ *
+ * The channels are opened and used concurrently by any number of
+ * threads, including virtual threads. Each open is tracked by a
+ * {@link CompletableFuture} indexed by its local channel id, completed by
+ * the dispatching thread on confirmation or failure, so that any number
+ * of opens can be in flight. The local ids are recycled once both sides
+ * have closed the channel and index lock-free tables.
+ *
+ * The thread reading the connection only demultiplexes the messages:
+ * each channel has its own dispatch queue, a {@link SerialExecutor}
+ * running on a bounded executor shared by all the connections, which
+ * delivers its messages in order.
  *
  * @author sirot
  */
 class ChannelManager
 {
- 	private int DEFAULT_WIN_INIT_SIZE = 0x10000;
- 	private int DEFAULT_PACKET_MAX_SIZE = 0x1000;
+	/** Largest maximum packet size, as accepted by OpenSSH */
+	static final int MAX_PACKET_SIZE = 0x40000;
 
 	private volatile SSHTransport transport;
-	private Map<Integer, SSHChannel> locals;
-	private Map<Integer, SSHChannel> remotes;
-	private int chanId = 1;
+	/** Open channels by local id */
+	private final ConcurrentIntTable<SSHChannel> locals
+		= new ConcurrentIntTable<SSHChannel>();
+	/** Channel opens waiting for the peer's answer, by local id */
+	private final ConcurrentIntTable<PendingOpen> opening
+		= new ConcurrentIntTable<PendingOpen>();
+	private final IdAllocator ids = new IdAllocator();
+	/** Replies expected to the global requests, in order */
+	private final Queue<CompletableFuture<Boolean>> globalReplies
+		= new ConcurrentLinkedQueue<CompletableFuture<Boolean>>();
+	private final ReentrantLock globalLock = new ReentrantLock();
+	private final ReentrantLock startLock = new ReentrantLock();
+	private volatile boolean started = false;
 	private Thread readerThread;
-	private BlockingQueue<SSHMessage> queue;
+	private volatile boolean closed = false;
+	/** Runs the dispatch queues of the channels */
+	private final Executor executor;
+	private final OutboundScheduler scheduler;
+	private volatile int windowInit = 0x10000;
+	private volatile int windowMax = 0x1000000;
+	private volatile int packetMax = 0x8000;
+	private volatile long flushDelay = SSHChannel.DEFAULT_FLUSH_DELAY;
+
+	private static final class PendingOpen
+	{
+		private final CompletableFuture<SSHChannel> future
+			= new CompletableFuture<SSHChannel>();
+		/** Time the open was sent, to measure the round-trip time */
+		private final long sent = System.nanoTime();
+	}
 
 	ChannelManager(SSHTransport transport)
+	{
+		this(transport, Gliese.getChannelExecutor());
+	}
+
+	ChannelManager(SSHTransport transport, Executor executor)
 	{
 		this.transport = transport;
-		this.locals = new HashMap<Integer, SSHChannel>();
-		this.remotes = new HashMap<Integer, SSHChannel>();
-		queue = new ArrayBlockingQueue<SSHMessage>(16);
+		this.executor = executor;
+		this.scheduler = new OutboundScheduler(transport);
 	}
 
-	private synchronized void start()
+	/**
+	 * Sets the receive window sizes of the new channels. The window
+	 * grows from the initial size up to the maximum size according to the
+	 * measured bandwidth-delay product, see {@link ReceiveWindow}.
+	 *
+	 * @param initial  the initial window size
+	 * @param max  the maximum window size
+	 */
+	void setWindowSizes(int initial, int max)
 	{
-		if (readerThread != null) {
+		this.windowInit = initial;
+		this.windowMax = max;
+	}
+
+	/**
+	 * Sets the maximum packet size advertised to the peer for the new
+	 * channels. Larger packets reduce the per-packet costs: header,
+	 * padding, MAC and dispatch.
+	 *
+	 * @param size  the maximum size of the data of a packet, up to
+	 *        {@link #MAX_PACKET_SIZE}
+	 */
+	void setMaxPacketSize(int size)
+	{
+		if (size <= 0 || size > MAX_PACKET_SIZE) {
+			throw new IllegalArgumentException("Invalid max packet size: "
+				+ size);
+		}
+		this.packetMax = size;
+	}
+
+	/**
+	 * Sets the time after which the data buffered by the output stream of
+	 * the new channels is sent if the stream has not been flushed.
+	 *
+	 * @param delay  the delay in nanoseconds, 0 to wait for the flush
+	 */
+	void setFlushDelay(long delay)
+	{
+		this.flushDelay = delay;
+	}
+
+	private void start()
+	{
+		if (started) {
 			return;
+		}
+		startLock.lock();
+		try {
+			if (!started) {
+				startDispatch();
+				started = true;
+			}
+		} finally {
+			startLock.unlock();
+		}
+	}
+
+	private void startDispatch()
+	{
+		if (transport.isNonBlocking()) {
+			/* messages are dispatched by the transport event loop */
+			transport.setMessageHandler(new SSHTransport.MessageHandler() {
+				public void handle(SSHMessage msg) throws SSHException
+				{
+					dispatch(msg);
+				}
+
+				public void closed(SSHException cause)
+				{
+					closeAllChannels();
+				}
+			});
 		} else {
 			readerThread = new Thread(new Runnable() {
 				public void run()
@@ -83,93 +202,316 @@ class ChannelManager
 
 	public void channelLoop() throws SSHException
 	{
-		SSHChannel chann = null;
-		SSHMessage msg = transport.readMessage();
+		dispatch(transport.readMessage());
+	}
+
+	/**
+	 * Handles a message of the connection protocol. The opens and the
+	 * window adjustments are handled at once; the other messages are
+	 * queued on the dispatch queue of their channel so that a channel
+	 * whose consumer is slow does not delay the other channels.
+	 *
+	 * @param msg  the received message
+	 * @throws SSHException on error
+	 */
+	void dispatch(final SSHMessage msg) throws SSHException
+	{
 		switch (msg.getID()) {
-		case ChannelSuccessMessage.ID:
-			ChannelSuccessMessage m5 = (ChannelSuccessMessage)msg;
-			chann = locals.get(m5.getChannelId());
-			synchronized (chann.LOCK) {
-				chann.lastReqSuccess = true;
-				chann.LOCK.notify();
+		case ChannelOpenConfirmationMessage.ID:
+			opened((ChannelOpenConfirmationMessage)msg);
+			return;
+		case ChannelOpenFailureMessage.ID:
+			openFailed((ChannelOpenFailureMessage)msg);
+			return;
+		case GlobalRequestMessage.ID:
+			GlobalRequestMessage m80 = (GlobalRequestMessage)msg;
+			if (m80.getWantReply()) {
+				/* no global request is supported */
+				transport.writeMessage(new RequestFailureMessage());
+			}
+			return;
+		case RequestSuccessMessage.ID:
+			globalReplied(true);
+			return;
+		case RequestFailureMessage.ID:
+			globalReplied(false);
+			return;
+		case ChannelWindowsAdjustMessage.ID:
+			ChannelWindowsAdjustMessage m7
+				= (ChannelWindowsAdjustMessage)msg;
+			SSHChannel c7 = getChannel(m7.getChannelId());
+			if (c7 != null) {
+				/* never blocks, a pending write may wait for it */
+				c7.adjustRemoteWindow(m7.getBytesToAdd());
 			}
+			return;
+		}
+		int id = recipient(msg);
+		if (id < 0) {
+			GlieseLogger.LOGGER.error(String.format(
+				"Unexpected message type: %d", msg.getID()));
+			return;
+		}
+		final SSHChannel chann = getChannel(id);
+		if (chann == null) {
+			if (msg instanceof ChannelDataMessage) {
+				((ChannelDataMessage)msg).release();
+			}
+			return;
+		}
+		chann.execute(new Runnable() {
+			public void run()
+			{
+				deliver(chann, msg);
+			}
+		});
+	}
+
+	/**
+	 * Retrieves the recipient channel of a message.
+	 *
+	 * @return  the local channel id or -1 if the message is not sent to
+	 *          a channel
+	 */
+	private static int recipient(SSHMessage msg)
+	{
+		switch (msg.getID()) {
+		case ChannelSuccessMessage.ID:
+			return ((ChannelSuccessMessage)msg).getChannelId();
+		case ChannelFailureMessage.ID:
+			return ((ChannelFailureMessage)msg).getChannelId();
+		case ChannelRequestMessage.ID:
+			return ((ChannelRequestMessage)msg).getChannelId();
+		case ChannelEOFMessage.ID:
+			return ((ChannelEOFMessage)msg).getChannelId();
+		case ChannelDataMessage.ID:
+			return ((ChannelDataMessage)msg).getChannelId();
+		case ChannelExtendedDataMessage.ID:
+			return ((ChannelExtendedDataMessage)msg).getChannelId();
+		case ChannelCloseMessage.ID:
+			return ((ChannelCloseMessage)msg).getChannelId();
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Delivers a message to its channel. Runs on the dispatch queue of
+	 * the channel.
+	 */
+	private void deliver(SSHChannel chann, SSHMessage msg)
+	{
+		switch (msg.getID()) {
+		case ChannelSuccessMessage.ID:
+			chann.requestReplied(true);
 			break;
 		case ChannelFailureMessage.ID:
-			ChannelFailureMessage m6 = (ChannelFailureMessage)msg;
-			chann = locals.get(m6.getChannelId());
-			synchronized (chann.LOCK) {
-				chann.lastReqSuccess = false;
-				chann.LOCK.notify();
-			}
+			chann.requestReplied(false);
 			break;
 		case ChannelRequestMessage.ID:
 			ChannelRequestMessage m0 = (ChannelRequestMessage)msg;
-			chann = locals.get(m0.getChannelId());
 			chann.handleRequest(m0.getRequest(), m0.getWantReply());
 			break;
-		case ChannelWindowsAdjustMessage.ID:
-			ChannelWindowsAdjustMessage m7
-				= (ChannelWindowsAdjustMessage)msg;
-			chann = locals.get(m7.getChannelId());
-			chann.adjustRemoteWindow(m7.getBytesToAdd());
-			break;
 		case ChannelEOFMessage.ID:
-			ChannelEOFMessage m2 = (ChannelEOFMessage)msg;
-			chann = locals.get(m2.getChannelId());
 			chann.eof();
 			break;
 		case ChannelDataMessage.ID:
 			ChannelDataMessage m1 = (ChannelDataMessage)msg;
-			chann = locals.get(m1.getChannelId());
-			chann.pushData(m1.getData());
+			try {
+				chann.pushData(m1.getDataBuffer(), m1.getLease());
+			} finally {
+				m1.release();
+			}
 			break;
 		case ChannelExtendedDataMessage.ID:
 			ChannelExtendedDataMessage m3 =
 				(ChannelExtendedDataMessage)msg;
-			chann = locals.get(m3.getChannelId());
 			chann.pushExtendedData(m3.getData(), m3.getDataType());
 			break;
-		case ChannelOpenConfirmationMessage.ID:
+		case ChannelCloseMessage.ID:
 			try {
-				queue.put(msg);
-			} catch (InterruptedException ex) {
-				ex.printStackTrace();
+				chann.peerClose();
+			} catch (SSHException se) {
+				GlieseLogger.LOGGER.error(se);
 			}
 			break;
-		case ChannelCloseMessage.ID:
-			ChannelCloseMessage m4 = (ChannelCloseMessage)msg;
-			chann = locals.get(m4.getChannelId());
-			chann.peerClose();
-			break;
-		default:
+		}
+	}
+
+	private SSHChannel getChannel(int id)
+	{
+		SSHChannel chann = locals.get(id);
+		if (chann == null) {
 			GlieseLogger.LOGGER.error(String.format(
-				"Unexpected message type: %d", msg.getID()));
+				"Message for unknown channel %d dropped", id));
 		}
+		return chann;
 	}
 
 	public SSHChannel openSession() throws SSHException
+	{
+		return Futures.get(openSessionAsync());
+	}
+
+	/**
+	 * Opens a session channel without waiting for the confirmation.
+	 *
+	 * @return  a future completed with the channel once the peer has
+	 *          confirmed it
+	 */
+	CompletableFuture<SSHChannel> openSessionAsync()
 	{
 		start();
+		int id = ids.allocate();
 		ChannelOpenMessage msg = new ChannelOpenMessage();
-		msg.setChannelId(chanId++);
+		msg.setChannelId(id);
 		msg.setChannelType("session");
-		msg.setInitialWindowSize(DEFAULT_WIN_INIT_SIZE);
-		msg.setMaxPacketSize(DEFAULT_PACKET_MAX_SIZE);
-		transport.writeMessage(msg);
-		ChannelOpenConfirmationMessage conf = null;
+		msg.setInitialWindowSize(windowInit);
+		msg.setMaxPacketSize(packetMax);
+		PendingOpen open = new PendingOpen();
+		/* registered before writing, the answer may arrive at once */
+		opening.put(id, open);
 		try {
-			conf = (ChannelOpenConfirmationMessage)queue.take();
-		} catch (InterruptedException ie) {
-			ie.printStackTrace();
-			throw new SSHException("Unexpected error", ie);
-		}
-		SSHChannel chann = new SSHChannel(conf.getRecipientChannelId(),
-			conf.getSenderChannelId(), DEFAULT_WIN_INIT_SIZE,
-			conf.getInitialWindowSize(), conf.getMaxPacketSize(),
-			this);
-		locals.put(conf.getRecipientChannelId(), chann);
-		remotes.put(conf.getSenderChannelId(), chann);
-		return chann;
+			transport.writeMessage(msg);
+		} catch (SSHException se) {
+			failOpen(id, se);
+		}
+		if (closed) {
+			failOpen(id, new SSHException("Connection closed"));
+		}
+		return open.future;
+	}
+
+	/**
+	 * Sends a global request which wants a reply. The replies come in the
+	 * order of the requests.
+	 *
+	 * @param name  the request name
+	 * @return  a future completed with the reply, {@code true} on success
+	 */
+	CompletableFuture<Boolean> globalRequest(String name)
+	{
+		start();
+		CompletableFuture<Boolean> reply = new CompletableFuture<Boolean>();
+		globalLock.lock();
+		try {
+			/* queued before writing, the reply may arrive at once */
+			globalReplies.add(reply);
+			transport.writeMessage(new GlobalRequestMessage(name, true));
+		} catch (SSHException se) {
+			globalReplies.remove(reply);
+			reply.completeExceptionally(se);
+		} finally {
+			globalLock.unlock();
+		}
+		if (closed) {
+			failGlobalReplies();
+		}
+		return reply;
+	}
+
+	private void globalReplied(boolean success)
+	{
+		CompletableFuture<Boolean> reply = globalReplies.poll();
+		if (reply == null) {
+			GlieseLogger.LOGGER.warn("Unexpected global request reply");
+			return;
+		}
+		reply.complete(success);
+	}
+
+	private void failGlobalReplies()
+	{
+		CompletableFuture<Boolean> reply;
+		while ((reply = globalReplies.poll()) != null) {
+			reply.completeExceptionally(
+				new SSHException("Connection closed"));
+		}
+	}
+
+	/**
+	 * Registers the confirmed channel and completes its pending open.
+	 */
+	private void opened(ChannelOpenConfirmationMessage conf)
+	{
+		int id = conf.getRecipientChannelId();
+		PendingOpen open = opening.remove(id);
+		if (open == null) {
+			GlieseLogger.LOGGER.error("Unexpected channel confirmation: "
+				+ conf);
+			return;
+		}
+		int packetSize = conf.getMaxPacketSize();
+		if (packetSize <= 0) {
+			/* no data could ever be sent on such a channel */
+			refuse(conf, open);
+			return;
+		}
+		long now = System.nanoTime();
+		ReceiveWindow window = new ReceiveWindow(windowInit, windowMax, now);
+		window.rttSample(now - open.sent);
+		/* the packets are buffered whole: bounds the buffers */
+		SSHChannel chann = new SSHChannel(id,
+			conf.getSenderChannelId(), window,
+			conf.getInitialWindowSize(),
+			Math.min(packetSize, MAX_PACKET_SIZE),
+			this, new SerialExecutor(executor));
+		chann.setFlushDelay(flushDelay);
+		locals.put(id, chann);
+		open.future.complete(chann);
+	}
+
+	/**
+	 * Fails the open of a channel confirmed with an invalid maximum
+	 * packet size and closes it on the peer side. The local id is not
+	 * released since the peer may still send messages to it.
+	 */
+	private void refuse(ChannelOpenConfirmationMessage conf,
+		PendingOpen open)
+	{
+		GlieseLogger.LOGGER.error("Invalid channel confirmation: " + conf);
+		open.future.completeExceptionally(new SSHException(
+			"Invalid max packet size: " + conf.getMaxPacketSize()));
+		ChannelCloseMessage msg = new ChannelCloseMessage();
+		msg.setChannelId(conf.getSenderChannelId());
+		try {
+			transport.writeMessage(msg);
+		} catch (SSHException se) {
+			GlieseLogger.LOGGER.error("Unable to close the channel", se);
+		}
+	}
+
+	private void openFailed(ChannelOpenFailureMessage failure)
+	{
+		GlieseLogger.LOGGER.warn("Channel open failed: " + failure);
+		failOpen(failure.getRecipientChannelId(), new SSHException(
+			String.format("%s (reason code=%d)",
+			failure.getDescription(), failure.getReasonCode())));
+	}
+
+	/**
+	 * Fails the pending open and releases its id.
+	 */
+	private void failOpen(int id, SSHException cause)
+	{
+		PendingOpen open = opening.remove(id);
+		if (open != null) {
+			ids.release(id);
+			open.future.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Forgets the channel once closed on both sides. Its id may be reused
+	 * by a new channel.
+	 *
+	 * @param chann  the closed channel
+	 */
+	void channelClosed(SSHChannel chann)
+	{
+		if (locals.remove(chann.getLocalId(), chann)) {
+			ids.release(chann.getLocalId());
+		}
 	}
 
 	/**
@@ -183,10 +525,35 @@ class ChannelManager
 		transport.writeMessage(msg);
 	}
 
+	/**
+	 * Sends a data message once the channel is scheduled, see
+	 * {@link OutboundScheduler}.
+	 *
+	 * @param flow  the outbound flow of the channel
+	 * @param msg  the message
+	 * @throws SSHException if an error occurred
+	 */
+	void writeData(OutboundScheduler.Flow flow, ChannelDataMessage msg)
+		throws SSHException
+	{
+		scheduler.write(flow, msg);
+	}
+
+	void setPriority(OutboundScheduler.Flow flow, int priority)
+	{
+		scheduler.setPriority(flow, priority);
+	}
+
 	private void closeAllChannels()
 	{
+		closed = true;
+		scheduler.close();
 		for (SSHChannel chann: locals.values()) {
 			chann.forceClose();
 		}
+		for (int id: opening.keys()) {
+			failOpen(id, new SSHException("Connection closed"));
+		}
+		failGlobalReplies();
 	}
 }
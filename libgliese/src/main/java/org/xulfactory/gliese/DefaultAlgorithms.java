@@ -31,7 +31,7 @@ class DefaultAlgorithms implements KexInitAlgorithms
 {
 	private final List<KeyExchangeAlgorithm> KEX_ALGORITHMS;
 
-	private final List<CipherAlgorithm> ENCRYPTION_ALGORITHMS;
+	private final List<SSHAlgorithm> ENCRYPTION_ALGORITHMS;
 
 	private final List<MacAlgorithm> MAC_ALGORITHMS;
 
@@ -55,12 +55,19 @@ class DefaultAlgorithms implements KexInitAlgorithms
 		KEY_ALGORITHMS = new ArrayList<SSHPublicKeyFactory>();
 		setKeyFactories(names, registry);
 
-		tmp = props.getProperty("gliese.kex.cipher", "aes128-cbc, 3des-cbc");
+		tmp = props.getProperty("gliese.kex.cipher",
+			"aes128-gcm@openssh.com, aes256-gcm@openssh.com,"
+			+ " chacha20-poly1305@openssh.com, aes128-ctr, aes192-ctr,"
+			+ " aes256-ctr, aes128-cbc, 3des-cbc");
 		names = tmp.split("\\s*,\\s*");
-		ENCRYPTION_ALGORITHMS = new ArrayList<CipherAlgorithm>();
+		ENCRYPTION_ALGORITHMS = new ArrayList<SSHAlgorithm>();
 		setCiphers(names, registry);
 
-		tmp = props.getProperty("gliese.kex.mac", "hmac-sha1, hmac-md5");
+		tmp = props.getProperty("gliese.kex.mac",
+			"umac-64-etm@openssh.com, umac-128-etm@openssh.com,"
+			+ " hmac-sha2-256-etm@openssh.com, hmac-sha2-512-etm@openssh.com,"
+			+ " umac-64@openssh.com, umac-128@openssh.com,"
+			+ " hmac-sha2-256, hmac-sha2-512, hmac-sha1, hmac-md5");
 		names = tmp.split("\\s*,\\s*");
 		MAC_ALGORITHMS = new ArrayList<MacAlgorithm>();
 		setMacs(names, registry);
@@ -102,7 +109,10 @@ class DefaultAlgorithms implements KexInitAlgorithms
 			if (name == null || "".equals(name)) {
 				continue;
 			}
-			CipherAlgorithm algo = registry.getCipher(name.trim());
+			SSHAlgorithm algo = registry.getCipher(name.trim());
+			if (algo == null) {
+				algo = registry.getAEADCipher(name.trim());
+			}
 			if (algo == null) {
 				GlieseLogger.LOGGER.warn("Unknown cipher: "+ name);
 			} else {
@@ -130,7 +140,7 @@ class DefaultAlgorithms implements KexInitAlgorithms
 	{
 		return KEX_ALGORITHMS;
 	}
-	public List<CipherAlgorithm> getEncryptionAlgorithms()
+	public List<SSHAlgorithm> getEncryptionAlgorithms()
 	{
 		return ENCRYPTION_ALGORITHMS;
 	}
@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Helpers for the blocking methods implemented on top of the
+ * asynchronous ones.
+ *
+ * @author sirot
+ */
+final class Futures
+{
+	/**
+	 * Waits for the result of the future. The wait is not interruptible,
+	 * like the other blocking methods of the library.
+	 *
+	 * @param future  the future
+	 * @return  the result
+	 * @throws SSHException  if the future completed exceptionally
+	 */
+	static <T> T get(CompletableFuture<T> future) throws SSHException
+	{
+		try {
+			return future.join();
+		} catch (CompletionException ce) {
+			Throwable cause = ce.getCause();
+			if (cause instanceof SSHException) {
+				throw new SSHException(cause.getMessage(), cause);
+			}
+			throw new SSHException("Unexpected error", cause);
+		} catch (CancellationException ce) {
+			throw new SSHException("Operation cancelled", ce);
+		}
+	}
+
+	/**
+	 * Creates a future completed with the exception.
+	 *
+	 * @param t  the exception
+	 * @return  the failed future
+	 */
+	static <T> CompletableFuture<T> failed(Throwable t)
+	{
+		CompletableFuture<T> f = new CompletableFuture<T>();
+		f.completeExceptionally(t);
+		return f;
+	}
+
+	private Futures()
+	{
+	}
+}
@@ -21,6 +21,17 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * <strong>Entry point of the library.</strong>
@@ -31,6 +42,10 @@ public final class Gliese
 {
 	private static AlgorithmRegistry registry = new AlgorithmRegistry();
 	private static Properties properties = null;
+	private static SSHEventLoopGroup loops = null;
+	private static Executor executor = null;
+	private static Executor channelExecutor = null;
+	private static ScheduledExecutorService timer = null;
 
 	/**
 	 * Opens the connection with a SSH server on the default port (22).
@@ -58,11 +73,201 @@ public final class Gliese
 	public static SSHConnection openConnection(String host, int port)
 			throws SSHException, IOException
 	{
-		SSHConnection con = new SSHConnection(registry, properties);
+		SSHConnection con = newConnection();
 		con.openConnection(host, port);
 		return con;
 	}
 
+	/**
+	 * Creates a connection which is not opened yet, configured with the
+	 * library properties.
+	 *
+	 * @return the {@code SSHConnection}
+	 * @throws IOException if the event loops cannot be created
+	 */
+	static SSHConnection newConnection() throws IOException
+	{
+		return new SSHConnection(registry, properties, getEventLoopGroup());
+	}
+
+	/**
+	 * Opens the connection with a SSH server without blocking the calling
+	 * thread. The connection, the version exchange and the key exchange
+	 * run on a thread of the executor given by
+	 * {@link #setExecutor(Executor)}, which they keep busy until the key
+	 * exchange completes, with the non-blocking transport too.
+	 *
+	 * @param host  the SSH server host name
+	 * @param port  the SSH server host port
+	 * @return  a future completed with the {@code SSHConnection}
+	 */
+	public static CompletableFuture<SSHConnection> openConnectionAsync(
+		final String host, final int port)
+	{
+		return CompletableFuture.supplyAsync(new Supplier<SSHConnection>() {
+			public SSHConnection get()
+			{
+				try {
+					return openConnection(host, port);
+				} catch (IOException ioe) {
+					throw new CompletionException(
+						new SSHException("I/O error", ioe));
+				} catch (SSHException se) {
+					throw new CompletionException(se);
+				}
+			}
+		}, getExecutor());
+	}
+
+	/**
+	 * Sets the executor running the connections and the authentications
+	 * requested through the asynchronous methods. Its number of threads
+	 * bounds the number of such operations in progress.
+	 *
+	 * @param exec  the executor, {@code null} to use the default one
+	 */
+	public static synchronized void setExecutor(Executor exec)
+	{
+		executor = exec;
+	}
+
+	/**
+	 * Retrieves the executor of the asynchronous operations. The default
+	 * executor is a pool of daemon threads, created on demand and stopped
+	 * once idle; its size is given by the {@code gliese.async.threads}
+	 * property and the extra operations wait in its queue.
+	 *
+	 * @return the executor
+	 */
+	static synchronized Executor getExecutor()
+	{
+		if (executor == null) {
+			int threads = 2 * Runtime.getRuntime().availableProcessors();
+			if (properties != null) {
+				threads = Integer.parseInt(properties.getProperty(
+					"gliese.async.threads", String.valueOf(threads)));
+			}
+			final AtomicInteger count = new AtomicInteger();
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads,
+				threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "gliese-async-"
+							+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+
+	/**
+	 * Sets the executor delivering the received messages to the channels.
+	 * Each channel is serviced by one task at a time, so the number of
+	 * threads bounds the number of channels serviced concurrently.
+	 *
+	 * @param exec  the executor, {@code null} to use the default one
+	 */
+	public static synchronized void setChannelExecutor(Executor exec)
+	{
+		channelExecutor = exec;
+	}
+
+	/**
+	 * Retrieves the executor delivering the received messages to the
+	 * channels. The default executor is a pool of daemon threads; its
+	 * size is given by the {@code gliese.channel.threads} property.
+	 *
+	 * @return the executor
+	 */
+	static synchronized Executor getChannelExecutor()
+	{
+		if (channelExecutor == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (properties != null) {
+				threads = Integer.parseInt(properties.getProperty(
+					"gliese.channel.threads", String.valueOf(threads)));
+			}
+			final AtomicInteger count = new AtomicInteger();
+			channelExecutor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "gliese-channel-"
+							+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+		return channelExecutor;
+	}
+
+	/**
+	 * Retrieves the timer of the delayed library tasks. The tasks must be
+	 * short and must not block: the long ones are handed over to the
+	 * {@link #getExecutor() executor}.
+	 *
+	 * @return the timer
+	 */
+	static synchronized ScheduledExecutorService getTimer()
+	{
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "gliese-timer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+		return timer;
+	}
+
+	/**
+	 * Sets the event loops used by the non-blocking connections. Once set
+	 * all the new connections are driven by these loops.
+	 *
+	 * @param group  the event loop group, {@code null} to use the
+	 *        {@code gliese.transport} property
+	 */
+	public static synchronized void setEventLoopGroup(SSHEventLoopGroup group)
+	{
+		loops = group;
+	}
+
+	/**
+	 * Retrieves the event loops for the new connections. The loops are
+	 * created on demand when the {@code gliese.transport} property is set
+	 * to {@code nio}; the number of threads is given by the
+	 * {@code gliese.transport.threads} property.
+	 *
+	 * @return the event loops or {@code null} for blocking connections
+	 */
+	static synchronized SSHEventLoopGroup getEventLoopGroup()
+		throws IOException
+	{
+		if (loops != null) {
+			return loops;
+		}
+		if (properties == null || !"nio".equals(
+				properties.getProperty("gliese.transport", "blocking"))) {
+			return null;
+		}
+		int threads = Integer.parseInt(properties.getProperty(
+			"gliese.transport.threads", String.valueOf(
+			Runtime.getRuntime().availableProcessors())));
+		loops = new SSHEventLoopGroup(threads);
+		return loops;
+	}
+
 	/**
 	 * Sets the library properties
 	 *
@@ -27,7 +27,13 @@ public interface KexInitAlgorithms
 {
 	List<KeyExchangeAlgorithm> getKexAlgorithms();
 
-	List<CipherAlgorithm> getEncryptionAlgorithms();
+	/**
+	 * Retrieves the encryption algorithms, each one being either a
+	 * {@link CipherAlgorithm} or an {@link AEADCipherAlgorithm}.
+	 *
+	 * @return  the algorithms in order of preference
+	 */
+	List<SSHAlgorithm> getEncryptionAlgorithms();
 
 	List<MacAlgorithm> getMacAlgorithms();
 
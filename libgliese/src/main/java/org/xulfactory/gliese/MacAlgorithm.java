@@ -40,6 +40,16 @@ public interface MacAlgorithm extends SSHAlgorithm
 	 */
 	int getKeyLength();
 
+	/**
+	 * Indicates whether the MAC is computed over the encrypted packet
+	 * instead of the plain one ({@code etm@openssh.com} algorithms). The
+	 * packet length is then sent in clear so that the MAC can be verified
+	 * before the packet is decrypted.
+	 *
+	 * @return  {@code true} for an encrypt-then-MAC algorithm
+	 */
+	boolean isEncryptThenMac();
+
 	/**
 	 * Retrieves an instance of the Mac algorithm initialized with
 	 * the provided key.
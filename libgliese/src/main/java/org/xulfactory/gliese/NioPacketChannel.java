@@ -0,0 +1,671 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese;
+
+import org.xulfactory.gliese.message.PacketDecoder;
+import org.xulfactory.gliese.message.PacketFactory;
+import org.xulfactory.gliese.message.SSHMessage;
+import org.xulfactory.gliese.util.BufferPool;
+import org.xulfactory.gliese.util.GlieseLogger;
+import org.xulfactory.gliese.util.MpscQueue;
+import org.xulfactory.gliese.util.PooledBuffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Non-blocking packet channel driven by a {@link SSHEventLoop}.
+ * </p>
+ *
+ * <p>
+ * The loop thread reads the socket, splits the identification lines and
+ * decodes the packets with the incremental {@link PacketFactory}. The
+ * received items are either queued for the threads blocked in
+ * {@link #readLine()} and {@link #readPayload()}, or handed directly to
+ * the {@link Receiver} once one has been set. The input buffer and the
+ * packets are leased from the {@link BufferPool}; the payloads must be
+ * released by their consumer.
+ * </p>
+ *
+ * <p>
+ * Packets are encrypted by the calling thread and queued; the queue is
+ * flushed with a gathering write by the last of the concurrent writers or
+ * when a batching threshold is reached. The flushing thread writes
+ * directly as long as the socket accepts the data; the remaining data is
+ * written by the loop thread when the socket becomes writable again.
+ * Writers are blocked while too much data is pending, except the loop
+ * thread itself.
+ * </p>
+ *
+ * <p>
+ * With deferred writes the calling threads only append the messages to a
+ * lock-free {@link MpscQueue}; the loop thread encrypts and sends them,
+ * so the packet sequencing and the encryption never contend for a lock.
+ * </p>
+ *
+ * @author sirot
+ */
+class NioPacketChannel
+{
+	/** Maximum length of pending output before writers are blocked */
+	private static final int MAX_PENDING = 0x100000;
+	/** Maximum number of buffers in a gathering write */
+	private static final int MAX_GATHER = 64;
+	/** Maximum length of an identification line */
+	private static final int MAX_LINE = 0x400;
+
+	/**
+	 * Receiver of the decoded packets. The methods are called by the
+	 * loop thread.
+	 */
+	interface Receiver
+	{
+		void received(PooledBuffer payload);
+
+		void closed(SSHException cause);
+	}
+
+	private final SocketChannel channel;
+	private final SSHEventLoop loop;
+	private final PacketFactory factory;
+	private SelectionKey key;
+	private final BufferPool pool;
+	private PooledBuffer inlease;
+	private ByteBuffer inbuf;
+	private boolean versionReceived = false;
+	/** Identification lines, packet payloads or the closing exception */
+	private final BlockingQueue<Object> inbound;
+	private volatile Receiver receiver;
+
+	private final ReentrantLock outLock = new ReentrantLock();
+	/** Signaled when the pending output drops below the limit */
+	private final Condition drained = outLock.newCondition();
+	private final LinkedList<PooledBuffer> outq = new LinkedList<PooledBuffer>();
+	private int pending = 0;
+	private boolean writeRegistered = false;
+	/** Bytes queued since the last flush */
+	private int batched = 0;
+	private long firstQueued;
+	private final AtomicInteger writers = new AtomicInteger();
+	private volatile boolean immediate = false;
+	private volatile int maxBatchSize = 0x10000;
+	private volatile long maxBatchDelay = 500000L;
+	private volatile SSHException closeCause = null;
+
+	/* Deferred writes */
+	private volatile boolean deferred = false;
+	/** Messages to encode or tasks to run in sequence */
+	private final MpscQueue<Object> items = new MpscQueue<Object>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Runnable drainTask = new Runnable() {
+		public void run()
+		{
+			scheduled.set(false);
+			try {
+				drain();
+			} catch (SSHException se) {
+				/* already shut down */
+			}
+		}
+	};
+
+	NioPacketChannel(SocketChannel channel, SSHEventLoop loop,
+		PacketFactory factory) throws IOException
+	{
+		this.channel = channel;
+		this.loop = loop;
+		this.factory = factory;
+		this.pool = BufferPool.getDefault();
+		this.inlease = pool.acquire(0x8000);
+		this.inbuf = inlease.buffer();
+		this.inbound = new LinkedBlockingQueue<Object>();
+		channel.configureBlocking(false);
+	}
+
+	/**
+	 * Registers the channel on its event loop.
+	 */
+	void start()
+	{
+		loop.register(channel, this);
+	}
+
+	void registered(SelectionKey key)
+	{
+		this.key = key;
+		outLock.lock();
+		try {
+			if (writeRegistered) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		} finally {
+			outLock.unlock();
+		}
+	}
+
+	void readable() throws IOException
+	{
+		int len = channel.read(inbuf);
+		if (len < 0) {
+			throw new EOFException("Connection closed by peer");
+		}
+		process();
+	}
+
+	/**
+	 * Processes the buffered input. The input buffer is in write mode
+	 * before and after the call.
+	 */
+	private void process()
+	{
+		inbuf.flip();
+		try {
+			if (!versionReceived) {
+				readLines();
+			}
+			while (versionReceived && closeCause == null) {
+				PooledBuffer payload = factory.decodePacket(inbuf);
+				if (payload == null) {
+					break;
+				}
+				deliver(payload);
+			}
+		} catch (SSHException se) {
+			shutdown(se);
+		} finally {
+			inbuf.compact();
+		}
+		if (!inbuf.hasRemaining()) {
+			int size = Math.min(inbuf.capacity() << 1,
+				PacketDecoder.MAX_PACKET_LENGTH + 0x400);
+			if (size > inbuf.capacity()) {
+				PooledBuffer tmp = pool.acquire(size);
+				inbuf.flip();
+				tmp.buffer().put(inbuf);
+				inlease.release();
+				inlease = tmp;
+				inbuf = tmp.buffer();
+			}
+		}
+	}
+
+	private void readLines() throws SSHException
+	{
+		int start = inbuf.position();
+		for (int i = start; i < inbuf.limit(); i++) {
+			if (inbuf.get(i) != '\n') {
+				continue;
+			}
+			int end = i;
+			if (end > start && inbuf.get(end - 1) == '\r') {
+				end--;
+			}
+			byte[] tmp = new byte[end - start];
+			inbuf.get(tmp);
+			inbuf.position(i + 1);
+			String line;
+			try {
+				line = new String(tmp, "ASCII");
+			} catch (UnsupportedEncodingException uee) {
+				/* Does not happen */
+				throw new Error(uee);
+			}
+			inbound.add(line);
+			start = i + 1;
+			if (line.startsWith("SSH-")) {
+				versionReceived = true;
+				return;
+			}
+		}
+		if (inbuf.remaining() > MAX_LINE) {
+			throw new SSHException("Invalid identification string");
+		}
+	}
+
+	private void deliver(PooledBuffer payload)
+	{
+		Receiver r = receiver;
+		if (r != null) {
+			r.received(payload);
+		} else {
+			inbound.add(payload);
+		}
+	}
+
+	/**
+	 * Resumes the packet decoding after a key exchange.
+	 */
+	void resume()
+	{
+		loop.execute(this, new Runnable() {
+			public void run()
+			{
+				if (closeCause == null) {
+					process();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets the receiver of the packets. The already queued packets are
+	 * passed to the receiver before any new one.
+	 *
+	 * @param r  the receiver
+	 */
+	void setReceiver(final Receiver r)
+	{
+		loop.execute(this, new Runnable() {
+			public void run()
+			{
+				Object o;
+				while ((o = inbound.peek()) instanceof PooledBuffer) {
+					/* the caller may have taken it in the meantime */
+					if (inbound.remove(o)) {
+						r.received((PooledBuffer)o);
+					}
+				}
+				receiver = r;
+				if (closeCause != null) {
+					r.closed(closeCause);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads an identification line. Blocks until a line is available.
+	 *
+	 * @return  the line without the line terminator
+	 * @throws SSHException  if the connection is closed
+	 */
+	String readLine() throws SSHException
+	{
+		Object o = take();
+		if (!(o instanceof String)) {
+			throw new SSHException("Unexpected packet");
+		}
+		return (String)o;
+	}
+
+	/**
+	 * Reads the next packet payload. Blocks until a packet is available.
+	 *
+	 * @return  the payload, to be released by the caller
+	 * @throws SSHException  if the connection is closed
+	 */
+	PooledBuffer readPayload() throws SSHException
+	{
+		Object o = take();
+		if (!(o instanceof PooledBuffer)) {
+			throw new SSHException("Unexpected identification string");
+		}
+		return (PooledBuffer)o;
+	}
+
+	private Object take() throws SSHException
+	{
+		Object o;
+		try {
+			o = inbound.take();
+		} catch (InterruptedException ie) {
+			throw new SSHException("Interrupted", ie);
+		}
+		if (o instanceof SSHException) {
+			/* leave the exception for the other readers */
+			inbound.add(o);
+			SSHException se = (SSHException)o;
+			throw new SSHException(se.getMessage(), se);
+		}
+		return o;
+	}
+
+	/**
+	 * Writes the identification string.
+	 *
+	 * @param version  the encoded identification string
+	 * @throws SSHException  if an I/O error occurred
+	 */
+	void writeVersion(byte[] version) throws SSHException
+	{
+		PooledBuffer line = pool.acquire(version.length + 2);
+		line.buffer().put(version).put((byte)'\r').put((byte)'\n').flip();
+		outLock.lock();
+		try {
+			enqueue(line);
+			flushQueue();
+		} finally {
+			outLock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes and writes the message. The packet is flushed by the last
+	 * of the concurrent writers, see {@code PacketWriter}.
+	 *
+	 * @param msg  the message
+	 * @throws SSHException  if the connection is closed
+	 */
+	void write(SSHMessage msg) throws SSHException
+	{
+		if (deferred) {
+			checkOpen();
+			factory.detach(msg);
+			submit(msg);
+			if (loop.inLoop()) {
+				drain();
+			}
+			return;
+		}
+		writers.incrementAndGet();
+		boolean full;
+		outLock.lock();
+		try {
+			try {
+				checkOpen();
+				enqueue(factory.encodePacket(msg));
+				full = batched >= maxBatchSize
+					|| System.nanoTime() - firstQueued >= maxBatchDelay;
+			} finally {
+				if (writers.decrementAndGet() == 0) {
+					full = true;
+				}
+			}
+			if (full || immediate) {
+				flushQueue();
+			}
+			while (pending > MAX_PENDING && closeCause == null
+					&& !loop.inLoop()) {
+				try {
+					drained.await();
+				} catch (InterruptedException ie) {
+					throw new SSHException("Interrupted", ie);
+				}
+			}
+		} finally {
+			outLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the task on the loop thread after the messages already written
+	 * have been encoded, and before the next ones. Without deferred
+	 * writes the task is run immediately.
+	 *
+	 * @param task  the task
+	 */
+	void execute(Runnable task)
+	{
+		if (deferred) {
+			submit(task);
+		} else {
+			task.run();
+		}
+	}
+
+	private void submit(Object item)
+	{
+		items.offer(item);
+		if (scheduled.compareAndSet(false, true)) {
+			loop.execute(this, drainTask);
+		}
+	}
+
+	/**
+	 * Encodes the queued messages and flushes them. Called by the loop
+	 * thread.
+	 */
+	private void drain() throws SSHException
+	{
+		outLock.lock();
+		try {
+			Object item;
+			while ((item = items.poll()) != null) {
+				if (item instanceof Runnable) {
+					((Runnable)item).run();
+				} else if (closeCause == null) {
+					enqueue(factory.encodePacket((SSHMessage)item));
+					if (batched >= maxBatchSize || immediate) {
+						flushQueue();
+					}
+				}
+			}
+			flushQueue();
+		} finally {
+			outLock.unlock();
+		}
+	}
+
+	/**
+	 * Defers the encoding of the messages to the loop thread.
+	 *
+	 * @param deferred  {@code true} to defer the writes
+	 */
+	void setDeferredWrites(boolean deferred)
+	{
+		this.deferred = deferred;
+	}
+
+	void setImmediateFlush(boolean immediate)
+	{
+		this.immediate = immediate;
+	}
+
+	void setBatchThresholds(int size, long delayNanos)
+	{
+		this.maxBatchSize = size;
+		this.maxBatchDelay = delayNanos;
+	}
+
+	/**
+	 * Writes the queued packets.
+	 *
+	 * @throws SSHException  if the connection is closed
+	 */
+	void flushPackets() throws SSHException
+	{
+		if (deferred) {
+			/* the loop flushes once the queue is drained */
+			checkOpen();
+			return;
+		}
+		outLock.lock();
+		try {
+			flushQueue();
+		} finally {
+			outLock.unlock();
+		}
+	}
+
+	private void enqueue(PooledBuffer data) throws SSHException
+	{
+		if (closeCause != null) {
+			data.release();
+			checkOpen();
+		}
+		if (batched == 0) {
+			firstQueued = System.nanoTime();
+		}
+		outq.add(data);
+		pending += data.buffer().remaining();
+		batched += data.buffer().remaining();
+	}
+
+	/**
+	 * Flushes the queue unless the loop is already waiting for the socket
+	 * to become writable. Must be called with the output lock held.
+	 */
+	private void flushQueue() throws SSHException
+	{
+		batched = 0;
+		if (writeRegistered) {
+			return;
+		}
+		try {
+			flush();
+		} catch (IOException ioe) {
+			shutdown(new SSHException("I/O exception on write", ioe));
+			checkOpen();
+		}
+	}
+
+	private void checkOpen() throws SSHException
+	{
+		if (closeCause != null) {
+			throw new SSHException("Connection closed", closeCause);
+		}
+	}
+
+	/**
+	 * Writes the pending packets with gathering writes until the socket
+	 * buffer is full. Must be called with the output lock held.
+	 */
+	private void flush() throws IOException
+	{
+		while (!outq.isEmpty()) {
+			int n = Math.min(outq.size(), MAX_GATHER);
+			ByteBuffer[] bufs = new ByteBuffer[n];
+			Iterator<PooledBuffer> it = outq.iterator();
+			for (int i = 0; i < n; i++) {
+				bufs[i] = it.next().buffer();
+			}
+			pending -= channel.write(bufs);
+			for (int i = 0; i < n && !bufs[i].hasRemaining(); i++) {
+				outq.removeFirst().release();
+			}
+			if (bufs[n - 1].hasRemaining()) {
+				if (!writeRegistered) {
+					writeRegistered = true;
+					setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+				return;
+			}
+		}
+		if (writeRegistered) {
+			writeRegistered = false;
+			setInterest(SelectionKey.OP_READ);
+		}
+		drained.signalAll();
+	}
+
+	private void setInterest(final int ops)
+	{
+		loop.execute(this, new Runnable() {
+			public void run()
+			{
+				if (key != null && key.isValid()) {
+					key.interestOps(ops);
+				}
+			}
+		});
+	}
+
+	void writable() throws IOException
+	{
+		outLock.lock();
+		try {
+			flush();
+			if (pending <= MAX_PENDING) {
+				drained.signalAll();
+			}
+		} finally {
+			outLock.unlock();
+		}
+	}
+
+	/**
+	 * Indicates whether the channel is still open.
+	 *
+	 * @return  {@code false} once the channel has been shut down
+	 */
+	boolean isOpen()
+	{
+		return closeCause == null;
+	}
+
+	void failed(IOException ioe)
+	{
+		shutdown(new SSHException("I/O error", ioe));
+	}
+
+	/**
+	 * Closes the channel.
+	 */
+	void close()
+	{
+		shutdown(new SSHException("Connection closed"));
+	}
+
+	private void shutdown(final SSHException cause)
+	{
+		outLock.lock();
+		try {
+			if (closeCause != null) {
+				return;
+			}
+			closeCause = cause;
+			for (PooledBuffer buf: outq) {
+				buf.release();
+			}
+			outq.clear();
+			pending = 0;
+			drained.signalAll();
+		} finally {
+			outLock.unlock();
+		}
+		inbound.add(cause);
+		try {
+			channel.close();
+		} catch (IOException ioe) {
+			GlieseLogger.LOGGER.error("I/O error on socket close", ioe);
+		}
+		loop.execute(this, new Runnable() {
+			public void run()
+			{
+				if (key != null) {
+					key.cancel();
+				}
+				inlease.release();
+				Object o;
+				while ((o = inbound.peek()) instanceof PooledBuffer) {
+					/* the caller may have taken it in the meantime */
+					if (inbound.remove(o)) {
+						((PooledBuffer)o).release();
+					}
+				}
+				Receiver r = receiver;
+				if (r != null) {
+					r.closed(cause);
+				}
+			}
+		});
+	}
+}
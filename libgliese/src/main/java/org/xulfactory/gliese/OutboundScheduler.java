@@ -0,0 +1,302 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese;
+
+import org.xulfactory.gliese.message.ChannelDataMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Outbound scheduler of the channel data of a connection.
+ * </p>
+ *
+ * <p>
+ * The data messages are queued per channel and handed to the transport
+ * one packet at a time: in strict priority order between the priority
+ * levels, and in deficit round-robin order between the channels of a
+ * level, each channel sending up to its quantum of bytes per round. A
+ * latency-sensitive channel thus waits for at most one packet of a bulk
+ * channel instead of its whole backlog.
+ * </p>
+ *
+ * <p>
+ * There is no scheduling thread: a writer hands the queued packets of any
+ * channel to the transport until its own packet has been written, then
+ * passes the hand to another waiting writer. The bytes handed to the
+ * transport and not encoded yet are bounded, so that the backlog stays in
+ * the scheduler queues when the packets are encoded by a writer thread or
+ * an event loop.
+ * </p>
+ *
+ * @author sirot
+ */
+class OutboundScheduler
+{
+	/** Number of priority levels */
+	static final int LEVELS = 3;
+	/** Maximum length of data handed to the transport and not encoded */
+	private static final int MAX_IN_FLIGHT = 0x10000;
+
+	/**
+	 * The queue of a channel.
+	 */
+	static final class Flow
+	{
+		private final int quantum;
+		private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+		private int priority;
+		private int deficit = 0;
+		private boolean active = false;
+
+		/**
+		 * Creates a new {@code Flow}.
+		 *
+		 * @param quantum  the number of bytes the flow may send per round
+		 * @param priority  the priority level, 0 being the highest
+		 */
+		Flow(int quantum, int priority)
+		{
+			this.quantum = Math.max(quantum, 1);
+			this.priority = priority;
+		}
+	}
+
+	private static final class Entry
+	{
+		private final ChannelDataMessage msg;
+		private final int size;
+		private boolean done = false;
+		private boolean encoded = false;
+		private SSHException failure;
+
+		Entry(ChannelDataMessage msg)
+		{
+			this.msg = msg;
+			this.size = msg.getDataBuffer().remaining();
+		}
+	}
+
+	private final SSHTransport transport;
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Signaled when a packet has been written or the hand released */
+	private final Condition written = lock.newCondition();
+	/** Signaled when packets handed to the transport have been encoded */
+	private final Condition credit = lock.newCondition();
+	/** Active flows of each priority level, in round-robin order */
+	private final List<ArrayDeque<Flow>> rings;
+	private boolean draining = false;
+	private int inFlight = 0;
+	private boolean closed = false;
+
+	OutboundScheduler(SSHTransport transport)
+	{
+		this.transport = transport;
+		rings = new ArrayList<ArrayDeque<Flow>>(LEVELS);
+		for (int i = 0; i < LEVELS; i++) {
+			rings.add(new ArrayDeque<Flow>());
+		}
+	}
+
+	/**
+	 * Writes a data message once its flow is scheduled. Returns when the
+	 * message has been handed to the transport.
+	 *
+	 * @param flow  the flow of the channel
+	 * @param msg  the message
+	 * @throws SSHException  if the message could not be written
+	 */
+	void write(Flow flow, ChannelDataMessage msg) throws SSHException
+	{
+		Entry e = new Entry(msg);
+		lock.lock();
+		try {
+			if (closed) {
+				throw new SSHException("Connection closed");
+			}
+			flow.queue.add(e);
+			if (!flow.active) {
+				flow.active = true;
+				flow.deficit = flow.quantum;
+				rings.get(flow.priority).add(flow);
+			}
+			while (!e.done) {
+				if (draining) {
+					written.awaitUninterruptibly();
+					continue;
+				}
+				draining = true;
+				try {
+					drain(flow, e);
+				} finally {
+					draining = false;
+					written.signalAll();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (e.failure != null) {
+			throw new SSHException(e.failure.getMessage(), e.failure);
+		}
+	}
+
+	/**
+	 * Changes the priority level of a flow. Applies from the next packet.
+	 *
+	 * @param flow  the flow
+	 * @param priority  the priority level, 0 being the highest
+	 */
+	void setPriority(Flow flow, int priority)
+	{
+		if (priority < 0 || priority >= LEVELS) {
+			throw new IllegalArgumentException("Invalid priority: "
+				+ priority);
+		}
+		lock.lock();
+		try {
+			if (flow.active) {
+				rings.get(flow.priority).remove(flow);
+				rings.get(priority).add(flow);
+			}
+			flow.priority = priority;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Fails the queued and the next messages.
+	 */
+	void close()
+	{
+		lock.lock();
+		try {
+			closed = true;
+			credit.signalAll();
+			written.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Hands the scheduled packets to the transport until the given one
+	 * has been written. Called with the lock held; the lock is released
+	 * while writing.
+	 */
+	private void drain(Flow flow, Entry mine)
+	{
+		while (!mine.done) {
+			while (inFlight >= MAX_IN_FLIGHT && !closed) {
+				credit.awaitUninterruptibly();
+			}
+			if (closed) {
+				remove(flow, mine);
+				mine.failure = new SSHException("Connection closed");
+				mine.done = true;
+				return;
+			}
+			final Entry e = next();
+			inFlight += e.size;
+			e.msg.setEncodedListener(new Runnable() {
+				public void run()
+				{
+					encoded(e);
+				}
+			});
+			SSHException failure = null;
+			lock.unlock();
+			try {
+				transport.writeMessage(e.msg);
+			} catch (SSHException se) {
+				failure = se;
+			} finally {
+				lock.lock();
+			}
+			if (failure != null) {
+				release(e);
+				e.failure = failure;
+			}
+			e.done = true;
+			written.signalAll();
+		}
+	}
+
+	/**
+	 * Selects the next packet to write and updates its flow. Called with
+	 * the lock held and at least one queued packet.
+	 */
+	private Entry next()
+	{
+		for (ArrayDeque<Flow> ring: rings) {
+			while (!ring.isEmpty()) {
+				Flow f = ring.peek();
+				Entry e = f.queue.peek();
+				if (e.size <= f.deficit) {
+					f.queue.poll();
+					f.deficit -= e.size;
+					if (f.queue.isEmpty()) {
+						ring.poll();
+						f.active = false;
+						f.deficit = 0;
+					}
+					return e;
+				}
+				/* the flow has used its quantum for this round */
+				ring.poll();
+				f.deficit += f.quantum;
+				ring.add(f);
+			}
+		}
+		throw new IllegalStateException("No packet to schedule");
+	}
+
+	private void remove(Flow flow, Entry e)
+	{
+		flow.queue.remove(e);
+		if (flow.active && flow.queue.isEmpty()) {
+			rings.get(flow.priority).remove(flow);
+			flow.active = false;
+			flow.deficit = 0;
+		}
+	}
+
+	private void encoded(Entry e)
+	{
+		lock.lock();
+		try {
+			release(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void release(Entry e)
+	{
+		if (!e.encoded) {
+			e.encoded = true;
+			inFlight -= e.size;
+			credit.signalAll();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encryption of the binary packets along with a MAC. The transport wraps
+ * the JCE ciphers into this interface; an algorithm may also provide its
+ * own implementation, see {@link ParallelCipherAlgorithm}.
+ *
+ * An instance protects the packets of one direction and keeps the state
+ * of the cipher; the packets must be processed in order.
+ *
+ * @author sirot
+ */
+public interface PacketCipher
+{
+	/**
+	 * Retrieves the length the packets are padded to a multiple of.
+	 *
+	 * @return  the block size in bytes
+	 */
+	int getBlockSize();
+
+	/**
+	 * Encrypts or decrypts the remaining bytes of {@code in} into
+	 * {@code out}. The length must be a multiple of the block size. The
+	 * buffers may share their content at the same offset, the output then
+	 * replaces the input. The positions of both buffers are advanced.
+	 *
+	 * @param in  the input
+	 * @param out  the output
+	 */
+	void update(ByteBuffer in, ByteBuffer out);
+}
@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Cipher algorithm able to spread its work over several threads. The
+ * transport uses the {@link PacketCipher} instances instead of the JCE
+ * ciphers when the {@code gliese.cipher.threads} property is set.
+ *
+ * @author sirot
+ */
+public interface ParallelCipherAlgorithm extends CipherAlgorithm
+{
+	/**
+	 * Retrieves an instance of the algorithm initialized with the
+	 * provided key and IV, running its background work on the executor.
+	 *
+	 * @param key  the key
+	 * @param iv  the initial vector
+	 * @param mode  {@code Cipher.ENCRYPT_MODE} or
+	 *        {@code Cipher.DECRYPT_MODE}
+	 * @param executor  the executor of the background work
+	 * @param threads  the maximum number of tasks run at the same time
+	 * @return  the cipher instance
+	 */
+	PacketCipher getParallelInstance(byte[] key, byte[] iv, int mode,
+		Executor executor, int threads);
+}
@@ -17,235 +17,473 @@
 
 package org.xulfactory.gliese;
 
-import org.xulfactory.gliese.util.GlieseLogger;
+import org.xulfactory.gliese.util.BufferPool;
+import org.xulfactory.gliese.util.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A pipe is a circular buffer where two threads can read and write data. When
- * the buffer is empty the call read methods blocks. When write methods are
- * called the internal buffer size is adjusted when necessary therefore the
- * call does not block.
+ * <p>
+ * A pipe is a queue of buffers between a single writer, the dispatch queue
+ * of the channel, and the readers of the channel stream. When the pipe is
+ * empty the read methods block. The write methods never block.
+ * </p>
+ *
+ * <p>
+ * The written buffers are not copied: the pipe keeps a reference on the
+ * buffers, and on their pool lease if any, until their content has been
+ * read. This way the received channel data stays in the decrypted packet
+ * buffer until it is copied to the reader's array, and the packet buffers
+ * go back to the pool as soon as they are read: an idle pipe holds no
+ * buffer.
+ * </p>
+ *
+ * <p>
+ * The buffers are queued in a bounded single-producer single-consumer
+ * ring. The writer publishes a slot by advancing the tail index, the
+ * reader frees it by advancing the head index; the indices are volatile
+ * so no lock is taken on the data path. Concurrent readers are serialized
+ * by a lock the writer never waits for. A blocked thread is parked and
+ * woken by the other side; a parked virtual thread releases its carrier
+ * thread.
+ * </p>
+ *
+ * <p>
+ * The ring bounds the number of packet buffers held by the pipe. Once it
+ * is full the writer copies the data into a single spill buffer, grown as
+ * needed, which the reader takes after the ring; the small packets do not
+ * hold whole packet buffers and the writer never blocks the dispatch
+ * queue. The buffered data is bounded by the receive window of the
+ * channel since the window credit is only returned once the data has
+ * been read.
+ * </p>
  *
  * @author sirot
  */
 class Pipe
 {
-	private byte[] buffer;
+	/** Number of slots of the ring, a power of 2 */
+	private static final int SLOTS = 64;
+	private static final int MASK = SLOTS - 1;
+	/** Initial size of the spill buffer */
+	private static final int SPILL_SIZE = 0x8000;
 
+	private final ByteBuffer[] buffers = new ByteBuffer[SLOTS];
+	private final PooledBuffer[] leases = new PooledBuffer[SLOTS];
+	/** Next slot to read, advanced by the reader */
+	private final AtomicLong head = new AtomicLong();
+	/** Next slot to write, advanced by the writer */
+	private final AtomicLong tail = new AtomicLong();
 	/**
-	 * The index of the position in the circular buffer where the
-	 * next data byte will be written. The buffer is empty if
-	 * <code>in &lt; 0</code>. The buffer is full if <code>in == out</code>.
+	 * Data written once the ring was full, after the ring slots. Claimed
+	 * by the writer to append to it, by the reader once the ring is empty
 	 */
-	private int in;
+	private final AtomicReference<PooledBuffer> spill
+		= new AtomicReference<PooledBuffer>();
+	/** Spill buffer claimed by the reader, read before the ring */
+	private volatile PooledBuffer spilled;
+	private final BufferPool pool;
+	/** Bytes written, updated by the writer */
+	private final AtomicLong written = new AtomicLong();
+	/** Bytes read, updated by the reader */
+	private final AtomicLong read = new AtomicLong();
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final byte[] one = new byte[1];
+	private volatile Thread reader;
+	private volatile boolean peerClosed = false;
+	private volatile boolean closed = false;
+
+	Pipe()
+	{
+		this(BufferPool.getDefault());
+	}
 
 	/**
-	 * The index of the position in the circular buffer from where
-	 * the next byte will be returned.
+	 * Creates a new {@code Pipe}.
+	 *
+	 * @param pool  the pool of the spill buffers
 	 */
-	private int out;
+	Pipe(BufferPool pool)
+	{
+		this.pool = pool;
+	}
 
-	private boolean peerClosed;
+	/**
+	 * Appends the remaining bytes of the buffer to the pipe. The pipe
+	 * retains the lease until the bytes have been read. Never blocks, must
+	 * be called by one thread at a time.
+	 *
+	 * @param buf  the data
+	 * @param lease  the lease on the buffer or {@code null}
+	 */
+	void write(ByteBuffer buf, PooledBuffer lease)
+	{
+		if (!buf.hasRemaining() || closed) {
+			return;
+		}
+		/* counted before the reader can see the data */
+		written.set(written.get() + buf.remaining());
+		PooledBuffer s = spill.getAndSet(null);
+		long t = tail.get();
+		boolean room = t - head.get() < SLOTS;
+		if (s == null && room) {
+			publish(t, buf, lease == null ? null : lease.retain());
+		} else {
+			/* copied after the spilled data to keep the order */
+			s = append(s, buf);
+			if (room) {
+				s.buffer().flip();
+				publish(t, s.buffer(), s);
+			} else {
+				spill.set(s);
+			}
+		}
+		wakeReader();
+		if (closed) {
+			/* closed while writing, close() may have missed the buffer */
+			drop();
+		}
+	}
 
-	Pipe(int initSize)
+	private void publish(long t, ByteBuffer buf, PooledBuffer lease)
 	{
-		buffer = new byte[initSize];
-		in = -1;
-		out = 0;
+		int i = (int)t & MASK;
+		buffers[i] = buf;
+		leases[i] = lease;
+		/* publishes the slot */
+		tail.set(t + 1);
 	}
 
-	private synchronized int getFreeSpace()
+	/**
+	 * Copies the data at the end of the spill buffer, growing it if
+	 * needed.
+	 *
+	 * @param s  the spill buffer or {@code null}
+	 * @param buf  the data
+	 * @return  the spill buffer
+	 */
+	private PooledBuffer append(PooledBuffer s, ByteBuffer buf)
 	{
-		while (in == out) {
-			try {
-				wait();
-			} catch (InterruptedException ie) {
-				// ignore
+		int len = buf.remaining();
+		if (s == null) {
+			s = pool.acquire(Math.max(len, SPILL_SIZE));
+		} else if (s.buffer().remaining() < len) {
+			ByteBuffer old = s.buffer();
+			PooledBuffer g = pool.acquire(Math.max(old.position() + len,
+				old.capacity() << 1));
+			old.flip();
+			g.buffer().put(old);
+			s.release();
+			s = g;
+		}
+		s.buffer().put(buf.duplicate());
+		return s;
+	}
+
+	/**
+	 * Waits until data is available. Must be called with the read lock
+	 * held.
+	 *
+	 * @return  {@code false} at the end of the stream
+	 */
+	private boolean waitData()
+	{
+		boolean interrupted = false;
+		try {
+			while (!hasData()) {
+				if (closed || peerClosed) {
+					/* the data may have been written before the close */
+					if (!hasData() || closed) {
+						return false;
+					}
+					continue;
+				}
+				reader = Thread.currentThread();
+				if (!hasData() && !closed && !peerClosed) {
+					LockSupport.park(this);
+					/* uninterruptible, as the reads of a socket */
+					interrupted |= Thread.interrupted();
+				}
+				reader = null;
+			}
+			return true;
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
 			}
 		}
-		int len = buffer.length;
-		if (in < 0)
-			return len;
-		int slen = in - out;
-		if (slen < 0)
-			slen += len;
-		return slen;
 	}
 
-	synchronized void write(int v)
+	private boolean hasData()
 	{
-		write(new byte[] { (byte)v }, 0, 1);
+		return head.get() != tail.get() || spill.get() != null
+			|| spilled != null;
 	}
 
-	synchronized void write(byte[] buf)
+	private void wakeReader()
 	{
-		write(buf, 0, buf.length);
+		Thread r = reader;
+		if (r != null) {
+			LockSupport.unpark(r);
+		}
 	}
 
-	synchronized void write(byte[] buf, int off, int len)
+	int read()
 	{
-		while (len > free()) {
-			increase(buffer.length);
+		readLock.lock();
+		try {
+			if (read(one, 0, 1) < 0) {
+				return -1;
+			}
+			return one[0] & 0xFF;
+		} finally {
+			unlock();
 		}
-		int blen = buffer.length;
-		while (len > 0) {
-			int clen = Math.min(getFreeSpace(), len);
-			if (in < 0) {
-				System.arraycopy(buf, off, buffer, 0, clen);
-				in = clen;
-				out = 0;
-				notifyAll();
-			} else {
-				int rlen = blen - in;
-				if (rlen <= clen) {
-					System.arraycopy(buf, off,
-						buffer, in, rlen);
-					System.arraycopy(buf, off + rlen,
-						buffer, 0, clen - rlen);
-					in = clen - rlen;
+	}
+
+	int read(byte[] buf, int off, int len)
+	{
+		if (len < 0 || off < 0 || len > (buf.length - off))
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return 0;
+		return (int)read(new ByteBuffer[] {ByteBuffer.wrap(buf, off, len)},
+			0, 1);
+	}
+
+	/**
+	 * Reads a sequence of bytes into the buffers. Blocks until data is
+	 * available, then returns as many buffered bytes as possible without
+	 * blocking.
+	 *
+	 * @param dsts  the buffers
+	 * @param offset  the index of the first buffer
+	 * @param length  the number of buffers
+	 * @return  the number of bytes read, -1 at the end of the stream
+	 */
+	long read(ByteBuffer[] dsts, int offset, int length)
+	{
+		int last = offset + length;
+		while (offset < last && !dsts[offset].hasRemaining()) {
+			offset++;
+		}
+		if (offset == last) {
+			return 0;
+		}
+		readLock.lock();
+		try {
+			if (!waitData()) {
+				return -1;
+			}
+			long copied = 0;
+			ByteBuffer src;
+			while (offset < last && (src = current()) != null) {
+				ByteBuffer dst = dsts[offset];
+				int l = Math.min(dst.remaining(), src.remaining());
+				if (l == src.remaining()) {
+					dst.put(src);
 				} else {
-					System.arraycopy(buf, off,
-						buffer, in, clen);
-					in += clen;
+					ByteBuffer tmp = src.duplicate();
+					tmp.limit(tmp.position() + l);
+					dst.put(tmp);
+					src.position(tmp.position());
+				}
+				copied += l;
+				consumed(src);
+				if (!dst.hasRemaining()) {
+					offset++;
 				}
 			}
-			off += clen;
-			len -= clen;
+			read.set(read.get() + copied);
+			return copied;
+		} finally {
+			unlock();
 		}
 	}
 
-	synchronized int read()
+	/**
+	 * Writes the buffered data to a channel, straight from the packet
+	 * buffers. Blocks until data is available.
+	 *
+	 * @param target  the target channel
+	 * @return  the number of bytes written, -1 at the end of the stream
+	 * @throws IOException  if an I/O error occurred on the target
+	 */
+	long read(WritableByteChannel target) throws IOException
 	{
-		while (in < 0) {
-			if (isClosed())
+		readLock.lock();
+		try {
+			if (!waitData()) {
 				return -1;
+			}
+			long copied = 0;
+			ByteBuffer src;
 			try {
-				wait();
-			} catch (InterruptedException ie) {
-				// ignore
+				while ((src = current()) != null) {
+					int n = target.write(src);
+					copied += n;
+					if (src.hasRemaining()) {
+						/* the target does not accept more data */
+						break;
+					}
+					consumed(src);
+				}
+			} finally {
+				read.set(read.get() + copied);
 			}
+			return copied;
+		} finally {
+			unlock();
 		}
-		if (in == out)
-			notifyAll();
-		int v = buffer[out ++] & 0xFF;
-		if (out == buffer.length)
-			out = 0;
-		if (in == out)
-			in = -1;
-		return v;
 	}
 
-	synchronized int read(byte[] buf)
+	/**
+	 * Retrieves the oldest buffer. Must be called with the read lock held.
+	 *
+	 * @return  the buffer or {@code null} if the pipe is empty
+	 */
+	private ByteBuffer current()
 	{
-		return read(buf, 0, buf.length);
+		PooledBuffer s = spilled;
+		if (s != null) {
+			return s.buffer();
+		}
+		long h = head.get();
+		if (h != tail.get()) {
+			return buffers[(int)h & MASK];
+		}
+		s = spill.get();
+		/* the spill buffer follows the ring slots: the ring is empty */
+		if (s != null && tail.get() == h && spill.compareAndSet(s, null)) {
+			s.buffer().flip();
+			spilled = s;
+			return s.buffer();
+		}
+		return null;
 	}
 
-	synchronized int read(byte[] buf, int off, int len)
+	/**
+	 * Frees the oldest buffer once it has been read. Must be called with
+	 * the read lock held.
+	 */
+	private void consumed(ByteBuffer src)
 	{
-		if (len < 0 || off < 0 || len > (buf.length - off))
-			throw new IndexOutOfBoundsException();
-		if (len == 0)
-			return 0;
-		/*
-		 * We get the first byte. This blocks if there is no
-		 * buffered data. Then we return that byte, and as
-		 * many buffered bytes as we also have at that point
-		 * in the buffer. Thus, we block no more than strictly
-		 * necessary.
-		 *
-		 * The call to read() also performs the appropriate
-		 * notification if the buffer was full prior to this call.
-		 */
-		int v = read();
-		if (v < 0)
-			return -1;
-		buf[off ++] = (byte)v;
-		if (-- len == 0 || in < 0)
-			return 1;
+		if (src.hasRemaining()) {
+			return;
+		}
+		PooledBuffer s = spilled;
+		if (s != null) {
+			spilled = null;
+			s.release();
+			return;
+		}
+		long h = head.get();
+		int i = (int)h & MASK;
+		release(leases[i]);
+		buffers[i] = null;
+		leases[i] = null;
+		/* frees the slot */
+		head.set(h + 1);
+	}
 
-		/*
-		 * We have read a byte (so the buffer is not full anymore),
-		 * we want more, and the buffer is not empty (this was
-		 * explicitely filtered out).
-		 */
-		if (in <= out) {
-			int blen = buffer.length;
-			int clen = Math.min(len, in + blen - out);
-			int rlen = blen - out;
-			int elen = clen - rlen;
-			if (elen < 0) {
-				System.arraycopy(buffer, out, buf, off, clen);
-				out += clen;
-			} else {
-				System.arraycopy(buffer, out, buf, off, rlen);
-				System.arraycopy(buffer, 0,
-					buf, off + rlen, elen);
-				out = elen;
-				if (in == out)
-					in = -1;
-			}
-			return clen + 1;
-		} else {
-			int clen = Math.min(len, in - out);
-			System.arraycopy(buffer, out, buf, off, clen);
-			out += clen;
-			if (in == out)
-				in = -1;
-			return clen + 1;
+	private static void release(PooledBuffer lease)
+	{
+		if (lease != null) {
+			lease.release();
 		}
 	}
 
-	synchronized int getBufferSize()
+	int available()
 	{
-		return buffer.length;
+		return (int)Math.min(written.get() - read.get(), Integer.MAX_VALUE);
 	}
 
-	synchronized int free()
+	/**
+	 * Signals the end of the stream. The readers get the buffered data
+	 * first.
+	 */
+	void peerClose()
 	{
-		return buffer.length - available();
+		peerClosed = true;
+		wakeReader();
 	}
 
-	synchronized int available()
+	/**
+	 * Closes the pipe: the buffered data is discarded, the next written
+	 * data is dropped and the readers get the end of the stream.
+	 */
+	void close()
 	{
-		if (in < 0)
-			return 0;
-		int len = buffer.length;
-		if (in < out) {
-			return len - (out - in);
-		} else if (in == out) {
-			return len;
-		} else {
-			return in - out;
+		closed = true;
+		wakeReader();
+		discard();
+	}
+
+	/**
+	 * Releases the buffered data. Waits for the pending read.
+	 */
+	private void discard()
+	{
+		readLock.lock();
+		try {
+			clear();
+		} finally {
+			unlock();
 		}
 	}
 
 	/**
-	 * Increases the buffer size of the given amount.
+	 * Releases the read lock. The writer does not wait for the lock, so
+	 * the owner releases the data written after the pipe was closed.
 	 */
-	synchronized void increase(int size)
+	private void unlock()
 	{
-		byte[] nbuffer = new byte[buffer.length + size];
-		if (in < 0) {
-			buffer = nbuffer;
-		} else if (in > out) {
-			System.arraycopy(buffer, out, nbuffer, 0, in - out);
-			out = 0;
-			in = in - out;
-			buffer = nbuffer;
-		} else if (in <= out) {
-			int len = buffer.length;
-			System.arraycopy(buffer, out, nbuffer, 0, len - out);
-			System.arraycopy(buffer, 0, nbuffer, len - out, in);
-			out = 0;
-			in = len - out + in;
-			buffer = nbuffer;
+		readLock.unlock();
+		if (closed) {
+			drop();
 		}
-		GlieseLogger.LOGGER.debug(String.format("Old buffer size: %d, new buffer size: %d", nbuffer.length - size, nbuffer.length));
 	}
 
-	synchronized void peerClose()
+	/**
+	 * Releases the buffered data of a closed pipe if no read is pending,
+	 * without blocking. Otherwise the owner of the read lock releases it
+	 * once done.
+	 */
+	private void drop()
 	{
-		this.peerClosed = true;
-		notifyAll();
+		while (hasData() && readLock.tryLock()) {
+			try {
+				clear();
+			} finally {
+				readLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Releases the buffered data. Must be called with the read lock held.
+	 */
+	private void clear()
+	{
+		long h = head.get();
+		long t = tail.get();
+		for (; h != t; h++) {
+			int i = (int)h & MASK;
+			release(leases[i]);
+			buffers[i] = null;
+			leases[i] = null;
+		}
+		head.set(h);
+		release(spilled);
+		spilled = null;
+		release(spill.getAndSet(null));
+		read.set(written.get());
 	}
 
 	/**
@@ -255,8 +493,8 @@ class Pipe
 	 * @return {@code true} if the pipe is closed and all data has been 
 	 *         read, {@code false} otherwise
 	 */
-	synchronized boolean isClosed()
+	boolean isClosed()
 	{
-		return peerClosed && in < 0;
+		return (peerClosed || closed) && !hasData();
 	}
 }
@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Receive window of a channel, tuned to the bandwidth-delay product.
+ * </p>
+ *
+ * <p>
+ * The bytes consumed by the application are returned to the peer in a
+ * single window adjustment once they reach half of the window, so the
+ * reads only update a counter. On each adjustment the consumption rate
+ * since the previous one is multiplied by the round-trip time to estimate
+ * the bandwidth-delay product; the window is grown to twice this product,
+ * up to the configured maximum, so that a window-limited channel doubles
+ * its window on every adjustment and the growth stops once the network or
+ * the application is the bottleneck. The window never shrinks.
+ * </p>
+ *
+ * <p>
+ * The round-trip time is first measured on the channel open, then on each
+ * window adjustment sent while the peer had exhausted the window: the
+ * peer is stalled until it receives the adjustment, so the next data
+ * arrives one round trip later. The samples are smoothed as TCP does, so
+ * the estimate follows the changes of the path during the transfer.
+ * </p>
+ *
+ * @author sirot
+ */
+class ReceiveWindow
+{
+	private final ReentrantLock lock = new ReentrantLock();
+	private final long max;
+	/** Window size */
+	private long size;
+	/** Bytes the peer may still send */
+	private long available;
+	/** Consumed bytes not returned to the peer yet */
+	private final AtomicLong unacked = new AtomicLong();
+	/** Consumed bytes triggering a window adjustment */
+	private volatile long threshold;
+	private long lastAdjust;
+	private long rtt = -1;
+	/** Send time of the pending window adjustment, -1 if none */
+	private long probe = -1;
+
+	/**
+	 * Creates a new {@code ReceiveWindow}.
+	 *
+	 * @param initial  the initial window size, as advertised to the peer
+	 * @param max  the maximum window size
+	 * @param now  the current time, in nanoseconds
+	 */
+	ReceiveWindow(long initial, long max, long now)
+	{
+		this.size = initial;
+		this.available = initial;
+		this.max = Math.max(initial, max);
+		this.threshold = initial >> 1;
+		this.lastAdjust = now;
+	}
+
+	/**
+	 * Records a round-trip time measurement.
+	 *
+	 * @param nanos  the round-trip time, in nanoseconds
+	 */
+	void rttSample(long nanos)
+	{
+		lock.lock();
+		try {
+			sample(nanos);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void sample(long nanos)
+	{
+		if (nanos <= 0) {
+			return;
+		}
+		/* smoothed round-trip time, gain 1/8 (RFC 6298) */
+		rtt = rtt < 0 ? nanos : rtt + ((nanos - rtt) >> 3);
+	}
+
+	/**
+	 * Accounts for received data.
+	 *
+	 * @param len  the length of the received data
+	 * @return  the length of data within the window, the extra data must
+	 *          be dropped
+	 */
+	int received(int len)
+	{
+		lock.lock();
+		try {
+			if (probe >= 0) {
+				sample(System.nanoTime() - probe);
+				probe = -1;
+			}
+			int l = (int)Math.min(len, available);
+			available -= l;
+			return l;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Accounts for consumed data.
+	 *
+	 * @param len  the length of the consumed data
+	 * @return  the number of bytes to add to the peer's window, 0 if no
+	 *          window adjustment is due yet
+	 */
+	long consumed(int len)
+	{
+		if (unacked.addAndGet(len) < threshold) {
+			return 0;
+		}
+		return credit(System.nanoTime());
+	}
+
+	/**
+	 * Returns the consumed bytes to the peer and grows the window if the
+	 * consumption rate calls for it.
+	 *
+	 * @param now  the current time, in nanoseconds
+	 * @return  the number of bytes to add to the peer's window
+	 */
+	long credit(long now)
+	{
+		lock.lock();
+		try {
+			long bytes = unacked.getAndSet(0);
+			if (bytes == 0) {
+				return 0;
+			}
+			long elapsed = now - lastAdjust;
+			lastAdjust = now;
+			long grow = 0;
+			if (rtt > 0 && elapsed > 0 && size < max) {
+				/* twice the bandwidth-delay product */
+				double target = 2.0 * bytes * rtt / elapsed;
+				if (target > size) {
+					grow = (long)Math.min(max, target) - size;
+				}
+			}
+			if (available == 0) {
+				/* the peer waits for this adjustment */
+				probe = now;
+			}
+			size += grow;
+			threshold = size >> 1;
+			available += bytes + grow;
+			return bytes + grow;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves the round-trip time estimate.
+	 *
+	 * @return  the round-trip time, in nanoseconds, -1 if unknown
+	 */
+	long getRtt()
+	{
+		lock.lock();
+		try {
+			return rtt;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves the window size.
+	 *
+	 * @return  the size
+	 */
+	long getSize()
+	{
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -23,54 +23,193 @@ import org.xulfactory.gliese.message.ChannelRequestMessage;
 import org.xulfactory.gliese.message.ChannelRequestMessage.ChannelRequest;
 import org.xulfactory.gliese.message.ChannelSuccessMessage;
 import org.xulfactory.gliese.message.ChannelWindowsAdjustMessage;
+import org.xulfactory.gliese.message.EnvChannelRequest;
 import org.xulfactory.gliese.message.ExecChannelRequest;
 import org.xulfactory.gliese.message.ExitStatusChannelRequest;
+import org.xulfactory.gliese.message.PtyChannelRequest;
 import org.xulfactory.gliese.message.SSHMessage;
+import org.xulfactory.gliese.message.SubsystemChannelRequest;
+import org.xulfactory.gliese.util.BufferPool;
 import org.xulfactory.gliese.util.GlieseLogger;
+import org.xulfactory.gliese.util.PooledBuffer;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 /**
  * A channel between the client and the remote peer.
  *
+ * The blocking methods wait on {@link Condition}s and no monitor is held
+ * while a message is written, so that the channels can be driven by
+ * virtual threads without pinning their carrier threads.
+ *
+ * The received messages are delivered in order by the dispatch queue of
+ * the channel. The request replies and the exit status are also
+ * available as {@link CompletableFuture}s completed by that queue; the
+ * dependent actions which are not asynchronous run on it and only delay
+ * the messages of this channel.
+ *
+ * Instead of the input streams, a {@link ChannelDataListener} may be
+ * called back by the dispatch queue with the received data.
+ *
+ * The outgoing data of the channels of a connection is interleaved at
+ * packet boundaries by an {@link OutboundScheduler}, according to the
+ * channel priorities.
+ *
  * @author sirot
  */
 public final class SSHChannel
 {
-	/** channel opening lock */
-	final Object LOCK = new Object();
+	/** Priority of the latency-sensitive channels */
+	public static final int PRIORITY_INTERACTIVE = 0;
+	/** Default priority */
+	public static final int PRIORITY_NORMAL = 1;
+	/** Priority of the bulk transfers */
+	public static final int PRIORITY_BULK = 2;
+	/** Default bound of the latency of the buffered output data */
+	static final long DEFAULT_FLUSH_DELAY = TimeUnit.MILLISECONDS.toNanos(1);
+	/** Size of the file regions mapped by {@link #sendFile} */
+	private static final int MAP_SEGMENT = 0x4000000;
+	/** Amount of data sent between two progress reports */
+	private static final int PROGRESS_STEP = 0x100000;
+
+	/** Guards the close state */
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Keeps the pending replies in the order of the requests */
+	private final ReentrantLock requestLock = new ReentrantLock();
+	/** Signaled when the peer closes the channel */
+	private final Condition closed = lock.newCondition();
 	private final int localId;
 	private final int remoteId;
 	private final ChannelManager manager;
+	/** Delivers the received messages in order */
+	private final Executor dispatcher;
 	private final ChannelInputStream in;
 	private final ChannelInputStream err;
 	private final ChannelOutputStream out;
 	private int exitStatus = -1;
 	private boolean peerClose = false;
 	private boolean closeSent = false;
-	private long lSize, rSize;
-	private long lAvailable, rAvailable;
+	private final ReceiveWindow window;
+	private long rSize;
+	private long rAvailable;
 	private final int rPacketMax;
-	boolean lastReqSuccess = false;
+	private final OutboundScheduler.Flow flow;
+	private volatile int priority = PRIORITY_NORMAL;
+	private volatile ChannelDataListener listener;
+	/** Replies expected from the peer, in the order of the requests */
+	private final Queue<CompletableFuture<Boolean>> replies
+		= new ConcurrentLinkedQueue<CompletableFuture<Boolean>>();
+	private final CompletableFuture<Integer> exitStatusFuture
+		= new CompletableFuture<Integer>();
 
-	SSHChannel(int localId, int remoteId, long lSize, long rSize,
-		int rPacketMax, ChannelManager manager)
+	SSHChannel(int localId, int remoteId, ReceiveWindow window, long rSize,
+		int rPacketMax, ChannelManager manager, Executor dispatcher)
 	{
 		this.localId = localId;
 		this.remoteId = remoteId;
 		this.manager = manager;
-		this.lSize = lSize;
-		this.lAvailable = lSize;
+		this.dispatcher = dispatcher;
+		this.window = window;
 		this.rSize = rSize;
 		this.rAvailable = rSize;
 		this.rPacketMax = rPacketMax;
+		this.flow = new OutboundScheduler.Flow(rPacketMax, priority);
 		this.in = new ChannelInputStream();
 		this.err = new ChannelInputStream();
 		this.out = new ChannelOutputStream();
 	}
 
+	/**
+	 * Retrieves the local channel id.
+	 *
+	 * @return  the local id
+	 */
+	int getLocalId()
+	{
+		return localId;
+	}
+
+	/**
+	 * Sets the priority of the outgoing data of this channel. The data of
+	 * a channel is only sent when no channel of higher priority has data
+	 * to send; the channels of the same priority share the connection
+	 * fairly. Applies from the next packet.
+	 *
+	 * @param priority  {@link #PRIORITY_INTERACTIVE},
+	 *        {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+	 */
+	public void setPriority(int priority)
+	{
+		manager.setPriority(flow, priority);
+		this.priority = priority;
+	}
+
+	/**
+	 * Retrieves the priority of the outgoing data of this channel.
+	 *
+	 * @return  the priority
+	 */
+	public int getPriority()
+	{
+		return priority;
+	}
+
+	/**
+	 * Enables or disables the coalescing of the small writes on the
+	 * output stream. An unbuffered channel sends a packet per write,
+	 * which suits the interactive sessions sending keystrokes. Disabling
+	 * the buffering sends the buffered data.
+	 *
+	 * @param buffered  {@code false} for the unbuffered mode
+	 * @throws IOException  if the buffered data cannot be sent
+	 */
+	public void setOutputBuffered(boolean buffered) throws IOException
+	{
+		out.setBuffered(buffered);
+	}
+
+	/**
+	 * Sets the time after which the buffered output data is sent even if
+	 * the stream has not been flushed.
+	 *
+	 * @param delay  the delay in nanoseconds, 0 to wait for the flush
+	 */
+	void setFlushDelay(long delay)
+	{
+		out.setFlushDelay(delay);
+	}
+
+	/**
+	 * Queues a task on the dispatch queue of the channel.
+	 *
+	 * @param task  the task
+	 */
+	void execute(Runnable task)
+	{
+		dispatcher.execute(task);
+	}
+
 	/**
 	 * Executes a command on the remote host;
 	 *
@@ -79,28 +218,192 @@ public final class SSHChannel
 	 * @throws SSHException
 	 */
 	public void execCommand(String command) throws SSHException
+	{
+		Futures.get(execCommandAsync(command));
+	}
+
+	/**
+	 * Executes a command on the remote host without waiting for the
+	 * peer's answer.
+	 *
+	 * @param command  the command to execute
+	 * @return  a future completed once the peer accepted the command, or
+	 *          completed exceptionally with a {@code SSHException} if the
+	 *          peer rejected it
+	 */
+	public CompletableFuture<Void> execCommandAsync(String command)
 	{
 		GlieseLogger.LOGGER.info("Executing command '" + command + "'");
-		lastReqSuccess = false;
+		return request(new ExecChannelRequest(command));
+	}
+
+	/**
+	 * Sets an environment variable of the remote command. The peer may
+	 * only accept some variables.
+	 *
+	 * @param name  the variable name
+	 * @param value  the variable value
+	 * @throws SSHException  if the peer rejected the variable
+	 */
+	public void setEnvironment(String name, String value) throws SSHException
+	{
+		Futures.get(setEnvironmentAsync(name, value));
+	}
+
+	/**
+	 * Sets an environment variable of the remote command without waiting
+	 * for the peer's answer.
+	 *
+	 * @param name  the variable name
+	 * @param value  the variable value
+	 * @return  a future completed once the peer accepted the variable
+	 */
+	public CompletableFuture<Void> setEnvironmentAsync(String name,
+		String value)
+	{
+		return request(new EnvChannelRequest(name, value));
+	}
+
+	/**
+	 * Allocates a pseudo-terminal for the remote command.
+	 *
+	 * @param term  the terminal type, {@code vt100} for instance
+	 * @param columns  the width in characters
+	 * @param rows  the height in rows
+	 * @throws SSHException  if the peer rejected the request
+	 */
+	public void requestPty(String term, int columns, int rows)
+		throws SSHException
+	{
+		Futures.get(requestPtyAsync(term, columns, rows));
+	}
+
+	/**
+	 * Allocates a pseudo-terminal for the remote command without waiting
+	 * for the peer's answer.
+	 *
+	 * @param term  the terminal type, {@code vt100} for instance
+	 * @param columns  the width in characters
+	 * @param rows  the height in rows
+	 * @return  a future completed once the peer allocated the terminal
+	 */
+	public CompletableFuture<Void> requestPtyAsync(String term, int columns,
+		int rows)
+	{
+		return request(new PtyChannelRequest(term, columns, rows));
+	}
+
+	/**
+	 * Starts a subsystem on the remote host, {@code sftp} for instance.
+	 *
+	 * @param name  the subsystem name
+	 * @throws SSHException  if the peer rejected the request
+	 */
+	public void startSubsystem(String name) throws SSHException
+	{
+		Futures.get(startSubsystemAsync(name));
+	}
+
+	/**
+	 * Starts a subsystem on the remote host without waiting for the
+	 * peer's answer.
+	 *
+	 * @param name  the subsystem name
+	 * @return  a future completed once the peer started the subsystem
+	 */
+	public CompletableFuture<Void> startSubsystemAsync(String name)
+	{
+		return request(new SubsystemChannelRequest(name));
+	}
+
+	/**
+	 * Sends a request without waiting for the reply. The replies come in
+	 * the order of the requests, so several requests may be in flight:
+	 * {@code env}, {@code pty-req} and {@code exec} are sent back to back
+	 * and cost a single round trip.
+	 *
+	 * @param req  the request
+	 * @return  a future completed once the peer accepted the request, or
+	 *          completed exceptionally with a {@code SSHException} if the
+	 *          peer rejected it
+	 */
+	private CompletableFuture<Void> request(final ChannelRequest req)
+	{
 		ChannelRequestMessage msg = new ChannelRequestMessage();
 		msg.setChannelId(remoteId);
 		msg.setWantReply(true);
-		ExecChannelRequest req = new ExecChannelRequest(command);
 		msg.setRequest(req);
-		manager.writeMessage(msg);
-		synchronized (LOCK) {
-			while (true) {
-				try {
-					LOCK.wait();
-					break;
-				} catch (InterruptedException ie) {
-					// ignore
+		return sendRequest(msg).thenApply(new Function<Boolean, Void>() {
+			public Void apply(Boolean success)
+			{
+				if (!success) {
+					throw new CompletionException(new SSHException(
+						"Remote peer rejected " + req.getRequestType()
+						+ " request"));
 				}
+				return null;
 			}
+		});
+	}
+
+	/**
+	 * Sends a request which wants a reply.
+	 *
+	 * @param msg  the request
+	 * @return  a future completed with the reply, {@code true} on success
+	 */
+	private CompletableFuture<Boolean> sendRequest(ChannelRequestMessage msg)
+	{
+		CompletableFuture<Boolean> reply = new CompletableFuture<Boolean>();
+		requestLock.lock();
+		try {
+			/* queued before writing, the reply may arrive at once */
+			replies.add(reply);
+			manager.writeMessage(msg);
+		} catch (SSHException se) {
+			replies.remove(reply);
+			reply.completeExceptionally(se);
+		} finally {
+			requestLock.unlock();
+		}
+		if (isPeerClosed()) {
+			failReplies();
+		}
+		return reply;
+	}
+
+	/**
+	 * Notifies the reply to the oldest pending request.
+	 *
+	 * @param success  {@code true} if the request succeeded
+	 */
+	void requestReplied(boolean success)
+	{
+		CompletableFuture<Boolean> reply = replies.poll();
+		if (reply == null) {
+			GlieseLogger.LOGGER.warn(String.format(
+				"Unexpected request reply on channel %d", localId));
+			return;
+		}
+		reply.complete(success);
+	}
+
+	private void failReplies()
+	{
+		CompletableFuture<Boolean> reply;
+		while ((reply = replies.poll()) != null) {
+			reply.completeExceptionally(
+				new SSHException("Channel is closed"));
 		}
-		if (!lastReqSuccess) {
-			throw new SSHException(
-				"Remote peer rejected exec request");
+	}
+
+	private boolean isPeerClosed()
+	{
+		lock.lock();
+		try {
+			return peerClose;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -109,9 +412,18 @@ public final class SSHChannel
 		boolean success = false;
 		if ("exit-status".equals(request.getRequestType())) {
 			exitStatus = ((ExitStatusChannelRequest)request).getStatus();
+			exitStatusFuture.complete(exitStatus);
+			ChannelDataListener l = listener;
+			if (l != null) {
+				try {
+					l.exitStatus(this, exitStatus);
+				} catch (RuntimeException re) {
+					GlieseLogger.LOGGER.error("Data listener failure", re);
+				}
+			}
 			success = true;
 		} else if ("eow@openssh.com".equals(request.getRequestType())) {
-			out.close();
+			out.discard();
 		} else {
 			GlieseLogger.LOGGER.warn("Unsupported channel request: "
 				+ request.getRequestType());
@@ -141,57 +453,117 @@ public final class SSHChannel
 		return exitStatus;
 	}
 
-	synchronized void peerClose() throws SSHException
+	/**
+	 * Retrieves the exit status once the command has terminated.
+	 *
+	 * @return  a future completed with the exit status, or with -1 if the
+	 *          channel has been closed without exit status
+	 */
+	public CompletableFuture<Integer> getExitStatusAsync()
 	{
-		// out.peerClose();
-		peerClose = true;
-		in.close();
-		out.close();
-		err.close();
-		notifyAll();
+		return exitStatusFuture;
+	}
+
+	void peerClose() throws SSHException
+	{
+		/* the data received before the close can still be read */
+		in.eof();
+		out.discard();
+		err.eof();
+		boolean both;
+		lock.lock();
+		try {
+			peerClose = true;
+			both = closeSent;
+			closed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		failReplies();
+		exitStatusFuture.complete(exitStatus);
+		notifyClosed();
+		if (both) {
+			manager.channelClosed(this);
+		}
 	}
 
 	void forceClose()
 	{
 		in.close();
-		out.close();
+		out.discard();
 		err.close();
-		closeSent = true;
-		peerClose = true;
+		lock.lock();
+		try {
+			closeSent = true;
+			peerClose = true;
+			closed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		failReplies();
+		exitStatusFuture.completeExceptionally(
+			new SSHException("Connection closed"));
+		/* after the messages already queued for the listener */
+		execute(new Runnable() {
+			public void run()
+			{
+				notifyClosed();
+			}
+		});
+	}
+
+	private void notifyClosed()
+	{
+		ChannelDataListener l = listener;
+		if (l != null) {
+			try {
+				l.closed(this);
+			} catch (RuntimeException re) {
+				GlieseLogger.LOGGER.error("Data listener failure", re);
+			}
+		}
 	}
 
 	/**
 	 * Closes the channel an wait the peer close message if it has not
-	 * been set.
+	 * been set. The buffered output data is sent first.
 	 *
 	 * @throws SSHException
 	 */
 	public void close() throws SSHException
 	{
+		try {
+			out.flush();
+		} catch (IOException ioe) {
+			GlieseLogger.LOGGER.warn("Buffered data not sent: "
+				+ ioe.getMessage());
+		}
 		ChannelCloseMessage msg = new ChannelCloseMessage();
 		msg.setChannelId(remoteId);
 		manager.writeMessage(msg);
 		in.close();
-		out.close();
+		out.discard();
 		err.close();
-		closeSent = true;
-		if (peerClose) {
-			return;
-		}
-		synchronized (this) {
+		lock.lock();
+		try {
+			closeSent = true;
 			while (!peerClose) {
-				try {
-					wait();
-				} catch (InterruptedException ie) {
-					// ignore
-				}
+				closed.awaitUninterruptibly();
 			}
+		} finally {
+			lock.unlock();
 		}
+		manager.channelClosed(this);
 	}
 
-	public synchronized boolean isClosed()
+	public boolean isClosed()
 	{
-		return peerClose && closeSent;
+		lock.lock();
+		try {
+			return peerClose && closeSent;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	public InputStream getInputStream()
@@ -204,23 +576,232 @@ public final class SSHChannel
 		return err;
 	}
 
+	/**
+	 * Retrieves the standard input of the remote command. The small writes
+	 * are coalesced into packets, see {@link #setOutputBuffered(boolean)};
+	 * the data is sent at the latest after a short delay.
+	 *
+	 * @return  the output stream
+	 */
 	public OutputStream getOutputStream()
 	{
 		return out;
 	}
 
-	void pushData(final byte[] data)
+	/**
+	 * Registers a listener called back with the received data and the
+	 * channel events instead of buffering the data for the streams. Must
+	 * be set before the data arrives, before the command is executed for
+	 * instance. The listener returns the window credit with
+	 * {@link #consumed(int)}.
+	 *
+	 * @param listener  the listener
+	 */
+	public void setDataListener(ChannelDataListener listener)
 	{
-		int len = checkLocalWindow(data.length);
-		in.pushData(data, len);
+		this.listener = listener;
+	}
+
+	/**
+	 * Acknowledges the consumption of data delivered to the
+	 * {@link ChannelDataListener}. The peer may send as much data again.
+	 *
+	 * @param len  the number of bytes consumed
+	 */
+	public void consumed(int len)
+	{
+		adjustLocalWindow(len);
+	}
+
+	/**
+	 * Retrieves a channel view of the standard output of the remote
+	 * command. The data is copied from the decrypted packet buffers
+	 * straight into the caller's buffers. The view and the input stream
+	 * share the same data.
+	 *
+	 * @return  the blocking channel
+	 */
+	public ScatteringByteChannel getInputChannel()
+	{
+		return new InputChannel(in);
+	}
+
+	/**
+	 * Retrieves a channel view of the error output of the remote command.
+	 *
+	 * @return  the blocking channel
+	 */
+	public ScatteringByteChannel getErrorChannel()
+	{
+		return new InputChannel(err);
+	}
+
+	/**
+	 * Retrieves a channel view of the standard input of the remote
+	 * command. The writes of at least a packet are sent without
+	 * intermediate copy, the smaller ones are coalesced like the writes
+	 * on the output stream.
+	 *
+	 * @return  the blocking channel
+	 */
+	public WritableByteChannel getOutputChannel()
+	{
+		return new OutputChannel();
+	}
+
+	/**
+	 * Writes the standard output of the remote command to a channel, a
+	 * {@code FileChannel} for instance, until the end of the stream. The
+	 * data is written straight from the decrypted packet buffers.
+	 *
+	 * @param target  the blocking target channel
+	 * @return  the number of bytes transferred
+	 * @throws IOException  if an I/O error occurred on the target
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException
+	{
+		long total = 0;
+		long n;
+		while ((n = in.transferTo(target)) >= 0) {
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Sends the content of a channel, a {@code FileChannel} for instance,
+	 * to the standard input of the remote command until its end. The data
+	 * is read into a pooled buffer and sent from it.
+	 *
+	 * @param src  the blocking source channel
+	 * @return  the number of bytes transferred
+	 * @throws IOException  if an I/O error occurred
+	 */
+	public long transferFrom(ReadableByteChannel src) throws IOException
+	{
+		PooledBuffer lease = BufferPool.getDefault().acquire(
+			Math.max(rPacketMax, 0x8000));
+		try {
+			ByteBuffer buf = lease.buffer();
+			long total = 0;
+			while (true) {
+				buf.clear();
+				int n = src.read(buf);
+				if (n < 0) {
+					out.flush();
+					return total;
+				}
+				buf.flip();
+				out.write(buf);
+				total += n;
+			}
+		} finally {
+			lease.release();
+		}
+	}
+
+	/**
+	 * Uploads a file to the standard input of the remote command,
+	 * {@code cat > file} for instance. See
+	 * {@link #sendFile(FileChannel, long, long, TransferListener)}.
+	 *
+	 * @param file  the file to upload
+	 * @param listener  the progress listener or {@code null}
+	 * @return  the number of bytes sent
+	 * @throws IOException  if an I/O error occurred
+	 */
+	public long sendFile(Path file, TransferListener listener)
+		throws IOException
+	{
+		FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			return sendFile(fc, 0, fc.size(), listener);
+		} finally {
+			fc.close();
+		}
+	}
+
+	/**
+	 * Uploads a region of a file to the standard input of the remote
+	 * command. The file is mapped in memory by segments and the packets
+	 * are framed straight from the mapping: the data is copied once, into
+	 * the packet buffer where it is encrypted. The packets follow the
+	 * remote window and the peer's max packet size.
+	 *
+	 * @param file  the file channel, opened for reading
+	 * @param position  the position of the first byte to send
+	 * @param count  the number of bytes to send
+	 * @param listener  the progress listener or {@code null}
+	 * @return  the number of bytes sent, less than {@code count} if the
+	 *          end of the file has been reached
+	 * @throws IOException  if an I/O error occurred
+	 */
+	public long sendFile(FileChannel file, long position, long count,
+		TransferListener listener) throws IOException
+	{
+		long total = Math.max(0, Math.min(count, file.size() - position));
+		long start = System.nanoTime();
+		long sent = 0;
+		while (sent < total) {
+			int len = (int)Math.min(total - sent, MAP_SEGMENT);
+			MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY,
+				position + sent, len);
+			while (map.hasRemaining()) {
+				ByteBuffer step = map.slice();
+				step.limit(Math.min(step.limit(), PROGRESS_STEP));
+				out.write(step);
+				map.position(map.position() + step.limit());
+				sent += step.limit();
+				if (listener != null) {
+					long elapsed = Math.max(1, System.nanoTime() - start);
+					/* in double, sent * 10^9 overflows past 9 GB */
+					listener.progress(sent, total,
+						(long)(sent * 1e9 / elapsed));
+				}
+			}
+		}
+		out.flush();
+		return sent;
+	}
+
+	/**
+	 * Queues the received data on the input stream. The data is not
+	 * copied, the lease is retained until the data has been read.
+	 *
+	 * @param data  the received data
+	 * @param lease  the packet buffer lease or {@code null}
+	 */
+	void pushData(ByteBuffer data, PooledBuffer lease)
+	{
+		int len = checkLocalWindow(data.remaining());
+		ChannelDataListener l = listener;
+		if (l != null) {
+			ByteBuffer slice = data.asReadOnlyBuffer();
+			slice.limit(slice.position() + len);
+			try {
+				l.data(this, slice);
+			} catch (RuntimeException re) {
+				GlieseLogger.LOGGER.error("Data listener failure", re);
+			}
+		} else {
+			in.pushData(data, len, lease);
+		}
 		GlieseLogger.LOGGER.debug(String.format("read %d bytes on channel %d", len, localId));
 	}
 
 	void pushExtendedData(final byte[] data, int dataType)
 	{
 		int len = checkLocalWindow(data.length);
-		if (dataType == 1) {
-			err.pushData(data, len);
+		ChannelDataListener l = listener;
+		if (l != null) {
+			try {
+				l.extendedData(this, dataType,
+					ByteBuffer.wrap(data, 0, len).asReadOnlyBuffer());
+			} catch (RuntimeException re) {
+				GlieseLogger.LOGGER.error("Data listener failure", re);
+			}
+		} else if (dataType == 1) {
+			err.pushData(ByteBuffer.wrap(data), len, null);
 		} else {
 			GlieseLogger.LOGGER.warn("Unsupported extended data type: " + dataType);
 		}
@@ -233,84 +814,132 @@ public final class SSHChannel
 	 * @param len  the length of received data
 	 * @param the length of data to be copied on the stream
 	 */
-	private synchronized int checkLocalWindow(int len)
+	private int checkLocalWindow(int len)
 	{
-		long max = lAvailable;
-		if (max < len) {
+		int l = window.received(len);
+		if (l < len) {
 			GlieseLogger.LOGGER.warn(String.format(
 				"Peer data length exceeds allowed windows " +
-				"size. %d bytes dropped.", len - max));
-			return (int)max;
+				"size. %d bytes dropped.", len - l));
 		}
-		return len;
+		return l;
 	}
 
-	private synchronized void adjustLocalWindow(int len)
+	/**
+	 * Accounts for the data read by the application. The window
+	 * adjustment, if any, is sent by the dispatch queue of the channel
+	 * rather than the reading thread.
+	 *
+	 * @param len  the length of data read
+	 */
+	private void adjustLocalWindow(int len)
 	{
-		/* double the window size when 75% has been consummed */
-		long threshold = lSize >> 2;
-		lAvailable -= len;
-		if (lAvailable <= threshold) {
-			ChannelWindowsAdjustMessage msg = new ChannelWindowsAdjustMessage(remoteId, lSize);
-			try {
-				manager.writeMessage(msg);
-				lAvailable += lSize;
-				lSize = lSize << 1;
-			} catch (SSHException se) {
-				GlieseLogger.LOGGER.error("Unable to send message: " + msg);
-			}
+		if (len <= 0) {
+			return;
+		}
+		long credit = window.consumed(len);
+		if (credit > 0) {
+			final ChannelWindowsAdjustMessage msg
+				= new ChannelWindowsAdjustMessage(remoteId, credit);
+			execute(new Runnable() {
+				public void run()
+				{
+					try {
+						manager.writeMessage(msg);
+					} catch (SSHException se) {
+						GlieseLogger.LOGGER.error("Unable to send message: " + msg);
+					}
+				}
+			});
 		}
 	}
 
 	void adjustRemoteWindow(long len)
 	{
-		synchronized (out) {
-			rSize += len;
-			rAvailable += len;
-			GlieseLogger.LOGGER.debug(String.format("Increase " +
-				"remote window channel=%d, added bytes=%d",
-				localId, len));
-			out.notifyAll();
-		}
+		out.windowAdjusted(len);
+		GlieseLogger.LOGGER.debug(String.format("Increase " +
+			"remote window channel=%d, added bytes=%d",
+			localId, len));
 	}
 
 	void eof()
 	{
 		in.eof();
 		err.eof();
+		ChannelDataListener l = listener;
+		if (l != null) {
+			try {
+				l.eof(this);
+			} catch (RuntimeException re) {
+				GlieseLogger.LOGGER.error("Data listener failure", re);
+			}
+		}
 		GlieseLogger.LOGGER.debug(String.format("EOF on channel %d", localId));
 	}
 
 	private class ChannelInputStream extends InputStream
 	{
-		private Pipe pipe;
-		private boolean eof = false;
-		private boolean closed = false;
+		/** Allocated on first use, never with a data listener */
+		private final AtomicReference<Pipe> pipe
+			= new AtomicReference<Pipe>();
+		private volatile boolean eof = false;
+		private volatile boolean closed = false;
 
-		public ChannelInputStream()
+		private Pipe pipe()
 		{
-			pipe = new Pipe(0x4000);
+			Pipe p = pipe.get();
+			if (p == null) {
+				p = new Pipe();
+				if (pipe.compareAndSet(null, p)) {
+					/* the stream may have ended before */
+					if (eof) {
+						p.peerClose();
+					}
+					if (closed) {
+						p.close();
+					}
+				} else {
+					p = pipe.get();
+				}
+			}
+			return p;
 		}
 
-		private synchronized void pushData(byte[] data, int len)
+		/**
+		 * Queues the received data. Called by the dispatch queue.
+		 */
+		private void pushData(ByteBuffer data, int len, PooledBuffer lease)
 		{
 			if (eof) {
 				/* Input is closed, drop new data */
 				return;
 			}
-			pipe.write(data, 0, len);
+			if (len < data.remaining()) {
+				data.limit(data.position() + len);
+			}
+			pipe().write(data, lease);
 		}
 
-		synchronized void eof()
+		/**
+		 * Signals the end of the stream, the buffered data can still be
+		 * read.
+		 */
+		void eof()
 		{
-			pipe.peerClose();
+			eof = true;
+			Pipe p = pipe.get();
+			if (p != null) {
+				p.peerClose();
+			}
 		}
 
 		@Override
 		public int read() throws IOException
 		{
-			int x = pipe.read();
-			adjustLocalWindow(1);
+			int x = pipe().read();
+			if (x >= 0) {
+				adjustLocalWindow(1);
+			}
 			return x;
 		}
 
@@ -323,32 +952,103 @@ public final class SSHChannel
 		@Override
 		public int read(byte[] buf, int off, int len) throws IOException
 		{
-			int l = pipe.read(buf, off, len);
+			int l = pipe().read(buf, off, len);
 			adjustLocalWindow(l);
 			return l;
 		}
 
+		long read(ByteBuffer[] dsts, int offset, int length)
+		{
+			long l = pipe().read(dsts, offset, length);
+			adjustLocalWindow((int)l);
+			return l;
+		}
+
+		long transferTo(WritableByteChannel target) throws IOException
+		{
+			long l = 0;
+			try {
+				l = pipe().read(target);
+			} finally {
+				/* the bytes written before a failure are consumed too */
+				adjustLocalWindow((int)l);
+			}
+			return l;
+		}
+
 		@Override
 		public int available() throws IOException
 		{
-			return pipe.available();
+			return pipe().available();
 		}
 
+		/**
+		 * Discards the buffered data and releases the packet buffers.
+		 */
 		@Override
 		public void close()
 		{
-			this.closed = true;
+			closed = true;
+			Pipe p = pipe.get();
+			if (p != null) {
+				p.close();
+			}
 		}
 	}
 
+	/**
+	 * The writers are serialized by a lock held while the data messages
+	 * are written; the remote window is guarded by a distinct lock so that
+	 * the window adjustments are never delayed by a pending write.
+	 *
+	 * The small writes are coalesced in a buffer of the size of the peer's
+	 * max packet, leased from the {@link BufferPool} while it holds data.
+	 * The buffer is sent when it is full, on {@link #flush()}, or once the
+	 * flush delay has elapsed since the first buffered byte. The writes
+	 * larger than the buffer are sent without copy.
+	 */
 	private class ChannelOutputStream extends OutputStream
 	{
+		private final ReentrantLock writeLock = new ReentrantLock();
+		private final ReentrantLock windowLock = new ReentrantLock();
+		private final Condition windowOpened = windowLock.newCondition();
 		private boolean closed = false;
+		/** Coalescing buffer, {@code null} when empty */
+		private PooledBuffer buffer;
+		private volatile boolean buffered = true;
+		private volatile long flushDelay = DEFAULT_FLUSH_DELAY;
+		private boolean flushScheduled = false;
+		private final Runnable delayedFlush = new Runnable() {
+			public void run()
+			{
+				writeLock.lock();
+				try {
+					flushScheduled = false;
+					flushBuffer();
+				} catch (IOException ioe) {
+					GlieseLogger.LOGGER.debug("Delayed flush failed: "
+						+ ioe.getMessage());
+				} finally {
+					writeLock.unlock();
+				}
+			}
+		};
 
 		@Override
 		public void write(int b) throws IOException
 		{
-			write(new byte[] {(byte)b}, 0, 1);
+			writeLock.lock();
+			try {
+				if (!buffered) {
+					send(ByteBuffer.wrap(new byte[] {(byte)b}));
+					return;
+				}
+				ByteBuffer buf = buffer();
+				buf.put((byte)b);
+				buffered(buf);
+			} finally {
+				writeLock.unlock();
+			}
 		}
 
 		@Override
@@ -358,39 +1058,288 @@ public final class SSHChannel
 		}
 
 		@Override
-		public synchronized void write(byte[] buf, int off, int len)
+		public void write(byte[] buf, int off, int len)
 			throws IOException
 		{
-			while (len > 0) {
-				if (closed) {
-					throw new IOException("Channel is closed");
+			write(ByteBuffer.wrap(buf, off, len));
+		}
+
+		/**
+		 * Writes the remaining bytes of the buffer.
+		 *
+		 * @param src  the data
+		 */
+		void write(ByteBuffer src) throws IOException
+		{
+			writeLock.lock();
+			try {
+				if (!buffered || src.remaining() >= rPacketMax) {
+					flushBuffer();
+					send(src);
+					return;
 				}
-				int l = Math.min((int)Math.min(len, rAvailable),
-					rPacketMax);
-				if (l == 0) {
-					try {
-						wait();
-						continue;
-					} catch (InterruptedException ex) {
-					}
+				ByteBuffer buf = buffer();
+				if (src.remaining() > buf.remaining()) {
+					ByteBuffer head = src.duplicate();
+					head.limit(head.position() + buf.remaining());
+					buf.put(head);
+					src.position(head.position());
+					flushBuffer();
+					buf = buffer();
 				}
+				buf.put(src);
+				buffered(buf);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			writeLock.lock();
+			try {
+				flushBuffer();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		void setBuffered(boolean buffered) throws IOException
+		{
+			writeLock.lock();
+			try {
+				this.buffered = buffered;
+				flushBuffer();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		void setFlushDelay(long delay)
+		{
+			this.flushDelay = delay;
+		}
+
+		private ByteBuffer buffer()
+		{
+			if (buffer == null) {
+				buffer = BufferPool.getDefault().acquire(rPacketMax);
+				buffer.buffer().limit(rPacketMax);
+			}
+			return buffer.buffer();
+		}
+
+		/**
+		 * Sends the buffer if it is full, otherwise arms the delayed
+		 * flush.
+		 */
+		private void buffered(ByteBuffer buf) throws IOException
+		{
+			if (!buf.hasRemaining()) {
+				flushBuffer();
+			} else if (!flushScheduled && flushDelay > 0) {
+				flushScheduled = true;
+				Gliese.getTimer().schedule(new Runnable() {
+					public void run()
+					{
+						Gliese.getExecutor().execute(delayedFlush);
+					}
+				}, flushDelay, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		private void flushBuffer() throws IOException
+		{
+			if (buffer == null) {
+				return;
+			}
+			PooledBuffer lease = buffer;
+			buffer = null;
+			try {
+				ByteBuffer buf = lease.buffer();
+				buf.flip();
+				send(buf);
+			} finally {
+				lease.release();
+			}
+		}
+
+		/**
+		 * Sends the remaining bytes of the buffer.
+		 */
+		private void send(ByteBuffer src) throws IOException
+		{
+			while (src.hasRemaining()) {
+				int l = reserve(src.remaining());
+				ByteBuffer data = src.slice();
+				data.limit(l);
 				ChannelDataMessage msg = new ChannelDataMessage();
 				msg.setChannelId(remoteId);
-				msg.setData(buf, off, l);
+				msg.setData(data);
 				try {
-					manager.writeMessage(msg);
+					manager.writeData(flow, msg);
 				} catch (SSHException se) {
 					throw new IOException(se);
 				}
-				rAvailable -= l;
-				len -= l;
+				src.position(src.position() + l);
+			}
+		}
+
+		boolean isClosed()
+		{
+			windowLock.lock();
+			try {
+				return closed;
+			} finally {
+				windowLock.unlock();
 			}
 		}
 
-		public synchronized void close()
+		/**
+		 * Waits for room in the remote window and reserves it.
+		 *
+		 * @param len  the length of data to send
+		 * @return  the length of the next data message
+		 */
+		private int reserve(int len) throws IOException
 		{
-			this.closed = true;
-			notifyAll();
+			windowLock.lock();
+			try {
+				while (true) {
+					if (closed) {
+						throw new IOException("Channel is closed");
+					}
+					int l = Math.min((int)Math.min(len, rAvailable),
+						rPacketMax);
+					if (l > 0) {
+						rAvailable -= l;
+						return l;
+					}
+					windowOpened.awaitUninterruptibly();
+				}
+			} finally {
+				windowLock.unlock();
+			}
+		}
+
+		void windowAdjusted(long len)
+		{
+			windowLock.lock();
+			try {
+				rSize += len;
+				rAvailable += len;
+				windowOpened.signalAll();
+			} finally {
+				windowLock.unlock();
+			}
+		}
+
+		/**
+		 * Sends the buffered data and closes the stream.
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			try {
+				flush();
+			} finally {
+				discard();
+			}
+		}
+
+		/**
+		 * Closes the stream and drops the buffered data.
+		 */
+		void discard()
+		{
+			windowLock.lock();
+			try {
+				this.closed = true;
+				windowOpened.signalAll();
+			} finally {
+				windowLock.unlock();
+			}
+			/* the writer waiting for the window has been woken up */
+			writeLock.lock();
+			try {
+				if (buffer != null) {
+					buffer.release();
+					buffer = null;
+				}
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	private class InputChannel implements ScatteringByteChannel
+	{
+		private final ChannelInputStream stream;
+		private volatile boolean open = true;
+
+		InputChannel(ChannelInputStream stream)
+		{
+			this.stream = stream;
+		}
+
+		public int read(ByteBuffer dst) throws IOException
+		{
+			return (int)read(new ByteBuffer[] {dst}, 0, 1);
+		}
+
+		public long read(ByteBuffer[] dsts) throws IOException
+		{
+			return read(dsts, 0, dsts.length);
+		}
+
+		public long read(ByteBuffer[] dsts, int offset, int length)
+			throws IOException
+		{
+			if (offset < 0 || length < 0 || offset > dsts.length - length) {
+				throw new IndexOutOfBoundsException();
+			}
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+			return stream.read(dsts, offset, length);
+		}
+
+		public boolean isOpen()
+		{
+			return open;
+		}
+
+		public void close()
+		{
+			open = false;
+			stream.close();
+		}
+	}
+
+	private class OutputChannel implements WritableByteChannel
+	{
+		private volatile boolean open = true;
+
+		public int write(ByteBuffer src) throws IOException
+		{
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+			int len = src.remaining();
+			out.write(src);
+			return len;
+		}
+
+		public boolean isOpen()
+		{
+			return open && !out.isClosed();
+		}
+
+		public void close() throws IOException
+		{
+			open = false;
+			out.close();
 		}
 	}
 }
@@ -22,11 +22,23 @@ import org.xulfactory.gliese.util.GlieseLogger;
 import java.io.IOException;
 import java.security.Signature;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 /**
  * This class represents a connection with the server. Once connected the
  * first thing to do is calling is one of the {@code authenticate} methods.
  *
+ * The {@code ...Async} methods return immediately. The authentication
+ * runs on a thread of the executor given by {@link Gliese#setExecutor},
+ * which it keeps busy until the server replies, with the non-blocking
+ * transport too; the session opens are completed by the thread
+ * dispatching the received messages.
+ *
  * @author sirot
  */
 public class SSHConnection
@@ -38,12 +50,28 @@ public class SSHConnection
 	private SSHTransport transport;
 	private AuthenticationManager authentication;
 	private ChannelManager channels;
+	private final SSHEventLoopGroup loops;
 
 	SSHConnection(AlgorithmRegistry registry, Properties props)
+	{
+		this(registry, props, null);
+	}
+
+	/**
+	 * Creates a new {@code SSHConnection}.
+	 *
+	 * @param registry  the algorithm registry
+	 * @param props  the library properties
+	 * @param loops  the event loops driving the connection, or
+	 *        {@code null} for a blocking connection
+	 */
+	SSHConnection(AlgorithmRegistry registry, Properties props,
+		SSHEventLoopGroup loops)
 	{
 		this.registry = registry;
 		this.properties = props != null ? props : new Properties();
 		this.algos = new DefaultAlgorithms(registry, properties);
+		this.loops = loops;
 	}
 
 	public void setHostKeyVerifier(HostKeyVerifier hv)
@@ -55,11 +83,29 @@ public class SSHConnection
 		throws IOException, SSHException
 	{
 		GlieseLogger.LOGGER.info("Starting transport layer.");
-		transport = new SSHTransport(host, port, algos, hv);
+		transport = new SSHTransport(host, port, algos, hv, loops);
+		transport.setImmediateFlush("immediate".equals(
+			properties.getProperty("gliese.transport.flush", "batch")));
+		transport.setBatchThresholds(Integer.parseInt(
+			properties.getProperty("gliese.transport.batch.size", "65536")),
+			Long.parseLong(properties.getProperty(
+			"gliese.transport.batch.delay", "500")) * 1000L);
+		transport.setWriterThread("thread".equals(
+			properties.getProperty("gliese.transport.writer", "caller")));
+		transport.setCipherThreads(Integer.parseInt(
+			properties.getProperty("gliese.cipher.threads", "0")));
 		transport.openConnection();
 		GlieseLogger.LOGGER.info("Transport layer established.");
 		authentication = new AuthenticationManager(transport);
 		channels = new ChannelManager(transport);
+		channels.setWindowSizes(Integer.parseInt(properties.getProperty(
+			"gliese.channel.window.initial", "65536")),
+			Integer.parseInt(properties.getProperty(
+			"gliese.channel.window.max", "16777216")));
+		channels.setMaxPacketSize(Integer.parseInt(properties.getProperty(
+			"gliese.channel.packet.max", "32768")));
+		channels.setFlushDelay(Long.parseLong(properties.getProperty(
+			"gliese.channel.flush.delay", "1000")) * 1000L);
 	}
 
 	/**
@@ -81,6 +127,30 @@ public class SSHConnection
 		return authentication.authenticate(username, password);
 	}
 
+	/**
+	 * Authenticates the user with a password without blocking the
+	 * calling thread.
+	 *
+	 * @param username  the user name
+	 * @param password  the password
+	 * @return  a future completed with the authentication result
+	 */
+	public CompletableFuture<AuthenticationResult> authenticateAsync(
+		final String username, final char[] password)
+	{
+		return CompletableFuture.supplyAsync(
+			new Supplier<AuthenticationResult>() {
+				public AuthenticationResult get()
+				{
+					try {
+						return authenticate(username, password);
+					} catch (SSHException se) {
+						throw new CompletionException(se);
+					}
+				}
+			}, Gliese.getExecutor());
+	}
+
 	public AuthenticationResult authenticate(String username, SSHPublicKey key, Signature signer)
 		throws SSHException
 	{
@@ -103,6 +173,53 @@ public class SSHConnection
 		return channels.openSession();
 	}
 
+	/**
+	 * Opens a session channel without blocking the calling thread.
+	 *
+	 * @return  a future completed with the channel once the server has
+	 *          confirmed it
+	 */
+	public CompletableFuture<SSHChannel> openSessionAsync()
+	{
+		if (!isAuthenticated()) {
+			throw new IllegalStateException(
+				"Connection is not authenticated");
+		}
+		return channels.openSessionAsync();
+	}
+
+	/**
+	 * Checks that the server still answers: sends a
+	 * {@code keepalive@openssh.com} global request and waits for the
+	 * reply. Any reply proves the connection alive, the servers which do
+	 * not know the request answer with a failure.
+	 *
+	 * @param timeout  the maximum time to wait, in milliseconds
+	 * @return  {@code true} if the server replied in time
+	 */
+	public boolean isAlive(long timeout)
+	{
+		if (!isAuthenticated()) {
+			throw new IllegalStateException(
+				"Connection is not authenticated");
+		}
+		if (!isOpen()) {
+			return false;
+		}
+		try {
+			channels.globalRequest("keepalive@openssh.com")
+				.get(timeout, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (ExecutionException ee) {
+			return false;
+		} catch (TimeoutException te) {
+			return false;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
 	/**
 	 * Indicates if the authentication has been successfully completed.
 	 */
@@ -111,6 +228,29 @@ public class SSHConnection
 		return  authentication.isAuthenticated();
 	}
 
+	/**
+	 * Sends the messages as soon as they are written instead of batching
+	 * the messages written concurrently. Interactive sessions should
+	 * enable it. The default is given by the {@code gliese.transport.flush}
+	 * property ({@code batch} or {@code immediate}).
+	 *
+	 * @param immediate  {@code true} to flush every message
+	 */
+	public void setImmediateFlush(boolean immediate)
+	{
+		transport.setImmediateFlush(immediate);
+	}
+
+	/**
+	 * Indicates whether the connection with the server is still open.
+	 *
+	 * @return  {@code true} if the connection is open
+	 */
+	public boolean isOpen()
+	{
+		return transport != null && transport.isOpen();
+	}
+
 	public SSHTransport getTransport()
 	{
 		return transport;
@@ -121,6 +261,8 @@ public class SSHConnection
 	 */
 	public void close()
 	{
-		transport.close();
+		if (transport != null) {
+			transport.close();
+		}
 	}
 }
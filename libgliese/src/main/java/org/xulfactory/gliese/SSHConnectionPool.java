@@ -0,0 +1,635 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese;
+
+import org.xulfactory.gliese.util.GlieseLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Pool of authenticated connections, keyed by host, port, user and
+ * credentials.
+ * </p>
+ *
+ * <p>
+ * A {@link Lease} gives the exclusive use of a connection until it is
+ * closed; the sessions are opened on the pooled connection with
+ * {@link Lease#openSession()}. At most {@code maxPerKey} connections are
+ * opened for a key, further leases wait for a connection to be returned.
+ * </p>
+ *
+ * <p>
+ * The connections are checked before being leased and the closed ones
+ * are discarded. A connection idle for a while is probed with a
+ * {@code keepalive@openssh.com} request first, which detects the
+ * half-open connections the socket state does not reveal. The
+ * connections which stay idle longer than the idle timeout are closed by
+ * a background thread. A connection attempt which
+ * fails on an I/O or protocol error is retried with an exponential
+ * backoff; an authentication failure is not retried.
+ * </p>
+ *
+ * @author sirot
+ */
+public class SSHConnectionPool
+{
+	private final Map<Key, Pool> pools = new ConcurrentHashMap<Key, Pool>();
+	private final int maxPerKey;
+	private final long idleTimeout;
+	private final ScheduledExecutorService evictor;
+	private volatile HostKeyVerifier hv;
+	private volatile long leaseTimeout = 30000L;
+	private volatile int maxAttempts = 5;
+	private volatile long initialBackoff = 100L;
+	private volatile long maxBackoff = 10000L;
+	private volatile long probeIdle = 10000L;
+	private volatile long probeTimeout = 5000L;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a new {@code SSHConnectionPool} with at most 8 connections
+	 * per key, closed after 5 minutes of inactivity.
+	 */
+	public SSHConnectionPool()
+	{
+		this(8, 300000L);
+	}
+
+	/**
+	 * Creates a new {@code SSHConnectionPool}.
+	 *
+	 * @param maxPerKey  the maximum number of connections per key
+	 * @param idleTimeout  the time after which an idle connection is
+	 *        closed, in milliseconds
+	 */
+	public SSHConnectionPool(int maxPerKey, long idleTimeout)
+	{
+		if (maxPerKey <= 0) {
+			throw new IllegalArgumentException("maxPerKey: " + maxPerKey);
+		}
+		this.maxPerKey = maxPerKey;
+		this.idleTimeout = idleTimeout;
+		this.evictor = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "gliese-pool-evictor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		long period = Math.max(idleTimeout / 2, 1000L);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public void setHostKeyVerifier(HostKeyVerifier hv)
+	{
+		this.hv = hv;
+	}
+
+	/**
+	 * Sets the maximum time to wait for a connection when all the
+	 * connections of a key are leased.
+	 *
+	 * @param timeout  the timeout in milliseconds
+	 */
+	public void setLeaseTimeout(long timeout)
+	{
+		this.leaseTimeout = timeout;
+	}
+
+	/**
+	 * Sets the reconnection policy. The delay between two attempts
+	 * doubles from {@code initial} up to {@code max}.
+	 *
+	 * @param attempts  the maximum number of connection attempts
+	 * @param initial  the delay after the first failure, in milliseconds
+	 * @param max  the maximum delay, in milliseconds
+	 */
+	public void setReconnectPolicy(int attempts, long initial, long max)
+	{
+		this.maxAttempts = attempts;
+		this.initialBackoff = initial;
+		this.maxBackoff = max;
+	}
+
+	/**
+	 * Sets when a connection is probed before being leased. A connection
+	 * idle for less than {@code idle} is only checked to be open.
+	 *
+	 * @param idle  the idle time after which the connection is probed,
+	 *        in milliseconds
+	 * @param timeout  the maximum time to wait for the reply of the
+	 *        server, in milliseconds
+	 */
+	public void setProbePolicy(long idle, long timeout)
+	{
+		this.probeIdle = idle;
+		this.probeTimeout = timeout;
+	}
+
+	/**
+	 * Leases an authenticated connection. Reuses an idle connection of the
+	 * same key if any, opens a new one if the limit is not reached or
+	 * waits for a connection to be returned.
+	 *
+	 * @param host  the SSH server host name
+	 * @param port  the SSH server host port
+	 * @param username  the user name
+	 * @param password  the password
+	 * @return  the lease, to be closed once done
+	 * @throws SSHException  if the connection or the authentication
+	 *         failed, or on timeout
+	 */
+	public Lease lease(String host, int port, String username,
+		char[] password) throws SSHException
+	{
+		if (closed) {
+			throw new IllegalStateException("Pool is closed");
+		}
+		Key key = new Key(host, port, username, password);
+		while (true) {
+			Pool pool = pools.get(key);
+			if (pool == null) {
+				Pool p = new Pool(key, password.clone());
+				pool = pools.putIfAbsent(key, p);
+				if (pool == null) {
+					pool = p;
+				}
+			}
+			Lease lease = pool.lease();
+			if (lease != null) {
+				return lease;
+			}
+			/* the pool was dropped in the meantime */
+		}
+	}
+
+	/**
+	 * Closes the idle connections and the leased ones once returned.
+	 */
+	public void close()
+	{
+		closed = true;
+		evictor.shutdown();
+		for (Pool pool: pools.values()) {
+			pool.closeIdle(0);
+		}
+	}
+
+	/**
+	 * Closes the connections idle for longer than the idle timeout.
+	 */
+	void evictIdle()
+	{
+		for (Pool pool: pools.values()) {
+			pool.closeIdle(idleTimeout);
+		}
+	}
+
+	/**
+	 * Opens and authenticates a connection.
+	 */
+	SSHConnection connect(String host, int port, String username,
+		char[] password) throws IOException, SSHException
+	{
+		SSHConnection con = Gliese.newConnection();
+		con.setHostKeyVerifier(hv);
+		try {
+			con.openConnection(host, port);
+		} catch (IOException ioe) {
+			con.close();
+			throw ioe;
+		} catch (SSHException se) {
+			con.close();
+			throw se;
+		}
+		AuthenticationResult r;
+		try {
+			r = con.authenticate(username, password);
+		} catch (SSHException se) {
+			con.close();
+			throw se;
+		}
+		if (!r.isSuccess()) {
+			con.close();
+			throw new AuthenticationException(username);
+		}
+		return con;
+	}
+
+	/**
+	 * Connects, retrying with an exponential backoff.
+	 */
+	private SSHConnection connectWithRetry(Key key, char[] password)
+		throws SSHException
+	{
+		long backoff = initialBackoff;
+		for (int attempt = 1; ; attempt++) {
+			Exception cause;
+			try {
+				return connect(key.host, key.port, key.username, password);
+			} catch (AuthenticationException ae) {
+				throw ae;
+			} catch (IOException ioe) {
+				cause = ioe;
+			} catch (SSHException se) {
+				cause = se;
+			}
+			if (attempt >= maxAttempts || closed) {
+				throw new SSHException(String.format(
+					"Unable to connect to %s:%d after %d attempts",
+					key.host, key.port, attempt), cause);
+			}
+			GlieseLogger.LOGGER.warn(String.format(
+				"Connection to %s:%d failed (%s), retrying in %d ms",
+				key.host, key.port, cause.getMessage(), backoff));
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new SSHException("Interrupted", ie);
+			}
+			backoff = Math.min(backoff << 1, maxBackoff);
+		}
+	}
+
+	/**
+	 * Leased connection. Closing the lease returns the connection to the
+	 * pool.
+	 */
+	public final class Lease
+	{
+		private final Pool pool;
+		private final Entry entry;
+		private final AtomicBoolean returned = new AtomicBoolean();
+
+		private Lease(Pool pool, Entry entry)
+		{
+			this.pool = pool;
+			this.entry = entry;
+		}
+
+		/**
+		 * Retrieves the leased connection.
+		 *
+		 * @return  the connection
+		 */
+		public SSHConnection getConnection()
+		{
+			return entry.connection;
+		}
+
+		/**
+		 * Opens a session channel on the leased connection.
+		 *
+		 * @return  the channel
+		 * @throws SSHException  if the channel cannot be opened
+		 */
+		public SSHChannel openSession() throws SSHException
+		{
+			return entry.connection.openSession();
+		}
+
+		/**
+		 * Closes the connection instead of returning it to the pool, for
+		 * instance after a protocol error.
+		 */
+		public void invalidate()
+		{
+			entry.connection.close();
+			close();
+		}
+
+		/**
+		 * Returns the connection to the pool.
+		 */
+		public void close()
+		{
+			if (returned.compareAndSet(false, true)) {
+				pool.release(entry);
+			}
+		}
+	}
+
+	/**
+	 * Pooled connection.
+	 */
+	private static final class Entry
+	{
+		/** Taken from a dropped pool */
+		static final Entry DROPPED = new Entry(null);
+
+		final SSHConnection connection;
+		long lastUsed;
+
+		Entry(SSHConnection connection)
+		{
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * Connections of a key. The pool keeps a copy of the password to
+	 * open new connections; it is cleared once the pool is empty and
+	 * dropped.
+	 */
+	private final class Pool
+	{
+		private final Key key;
+		private final char[] password;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition available = lock.newCondition();
+		/** Idle connections, the most recently used first */
+		private final Deque<Entry> idle = new ArrayDeque<Entry>();
+		/** Number of connections, idle, leased or being opened */
+		private int total = 0;
+		/** Whether the pool was removed from the pools map */
+		private boolean dropped = false;
+
+		Pool(Key key, char[] password)
+		{
+			this.key = key;
+			this.password = password;
+		}
+
+		/**
+		 * Leases a connection of the pool.
+		 *
+		 * @return  the lease or {@code null} if the pool was dropped
+		 */
+		Lease lease() throws SSHException
+		{
+			long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(leaseTimeout);
+			Entry e;
+			while ((e = take(deadline)) != null) {
+				if (e == Entry.DROPPED) {
+					return null;
+				}
+				/* probe without holding the lock */
+				if (isAlive(e)) {
+					return new Lease(this, e);
+				}
+				GlieseLogger.LOGGER.debug(String.format(
+					"Discarding dead connection to %s:%d",
+					key.host, key.port));
+				discard(e);
+			}
+			/* connect without holding the lock */
+			try {
+				return new Lease(this, new Entry(
+					connectWithRetry(key, password)));
+			} catch (SSHException se) {
+				lock.lock();
+				try {
+					total--;
+					available.signal();
+				} finally {
+					lock.unlock();
+				}
+				throw se;
+			}
+		}
+
+		/**
+		 * Takes an idle connection or reserves a new one, waiting until
+		 * the deadline if the limit is reached.
+		 *
+		 * @return  the most recently used idle connection, {@code null}
+		 *          if a new connection must be opened or {@link Entry#DROPPED}
+		 */
+		private Entry take(long deadline) throws SSHException
+		{
+			lock.lock();
+			try {
+				if (dropped) {
+					return Entry.DROPPED;
+				}
+				while (true) {
+					Entry e;
+					while ((e = idle.pollFirst()) != null) {
+						if (e.connection.isOpen()) {
+							return e;
+						}
+						/* closed while idle */
+						total--;
+						e.connection.close();
+					}
+					if (total < maxPerKey) {
+						total++;
+						return null;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						throw new SSHException(String.format(
+							"No connection available to %s:%d",
+							key.host, key.port));
+					}
+					try {
+						available.awaitNanos(remaining);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw new SSHException("Interrupted", ie);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Checks an idle connection before leasing it. The connections
+		 * idle for a while may be half-open: the server is probed.
+		 */
+		private boolean isAlive(Entry e)
+		{
+			long idleTime = System.nanoTime() - e.lastUsed;
+			if (idleTime < TimeUnit.MILLISECONDS.toNanos(probeIdle)) {
+				return true;
+			}
+			return e.connection.isAlive(probeTimeout);
+		}
+
+		private void discard(Entry e)
+		{
+			lock.lock();
+			try {
+				total--;
+				available.signal();
+			} finally {
+				lock.unlock();
+			}
+			e.connection.close();
+		}
+
+		void release(Entry e)
+		{
+			boolean reuse = !closed && e.connection.isOpen();
+			lock.lock();
+			try {
+				if (reuse) {
+					e.lastUsed = System.nanoTime();
+					idle.addFirst(e);
+				} else {
+					total--;
+				}
+				available.signal();
+			} finally {
+				lock.unlock();
+			}
+			if (!reuse) {
+				e.connection.close();
+			}
+		}
+
+		/**
+		 * Closes the connections idle for longer than the timeout. The
+		 * pool is dropped once it has no connection left.
+		 */
+		void closeIdle(long timeout)
+		{
+			long limit = System.nanoTime()
+				- TimeUnit.MILLISECONDS.toNanos(timeout);
+			Deque<Entry> evicted = new ArrayDeque<Entry>();
+			lock.lock();
+			try {
+				Iterator<Entry> it = idle.descendingIterator();
+				while (it.hasNext()) {
+					Entry e = it.next();
+					if (e.lastUsed - limit > 0) {
+						break;
+					}
+					it.remove();
+					evicted.add(e);
+					total--;
+				}
+				if (!evicted.isEmpty()) {
+					available.signalAll();
+				}
+				if (total == 0) {
+					dropped = true;
+					pools.remove(key, this);
+					Arrays.fill(password, '\0');
+				}
+			} finally {
+				lock.unlock();
+			}
+			for (Entry e: evicted) {
+				GlieseLogger.LOGGER.debug(String.format(
+					"Closing idle connection to %s:%d",
+					key.host, key.port));
+				e.connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Pool key. The key only keeps a digest of the password, the
+	 * plaintext copy needed to reconnect is held by the {@link Pool}.
+	 */
+	private static final class Key
+	{
+		final String host;
+		final int port;
+		final String username;
+		private final byte[] secret;
+
+		Key(String host, int port, String username, char[] password)
+		{
+			this.host = host;
+			this.port = port;
+			this.username = username;
+			this.secret = digest(password);
+		}
+
+		private static byte[] digest(char[] password)
+		{
+			ByteBuffer b = Charset.forName("UTF-8").encode(
+				CharBuffer.wrap(password));
+			try {
+				MessageDigest md = MessageDigest.getInstance("SHA-256");
+				md.update(b);
+				return md.digest();
+			} catch (NoSuchAlgorithmException nsae) {
+				/* Does not happen */
+				throw new Error(nsae);
+			} finally {
+				if (b.hasArray()) {
+					Arrays.fill(b.array(), (byte)0);
+				}
+			}
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key)o;
+			return host.equals(k.host) && port == k.port
+				&& username.equals(k.username)
+				&& MessageDigest.isEqual(secret, k.secret);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (host.hashCode() * 31 + port) * 31
+				+ username.hashCode();
+		}
+	}
+
+	/**
+	 * Rejected credentials, not retried.
+	 */
+	private static final class AuthenticationException extends SSHException
+	{
+		private static final long serialVersionUID = 1L;
+
+		AuthenticationException(String username)
+		{
+			super("Authentication failed for user " + username);
+		}
+	}
+}
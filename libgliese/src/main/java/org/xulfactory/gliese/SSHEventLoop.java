@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese;
+
+import org.xulfactory.gliese.util.GlieseLogger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector thread driving the I/O of several non-blocking connections.
+ * All the callbacks of the registered {@link NioPacketChannel} are executed
+ * by the loop thread.
+ *
+ * @author sirot
+ */
+class SSHEventLoop implements Runnable
+{
+	private final Selector selector;
+	private final Thread thread;
+	private final Queue<Task> tasks;
+	private volatile boolean running = true;
+
+	/**
+	 * Task of a channel. The channel fails if the task throws.
+	 */
+	private static final class Task
+	{
+		private final NioPacketChannel handler;
+		private final Runnable task;
+
+		Task(NioPacketChannel handler, Runnable task)
+		{
+			this.handler = handler;
+			this.task = task;
+		}
+	}
+
+	SSHEventLoop(String name) throws IOException
+	{
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Task>();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Indicates whether the current thread is the loop thread.
+	 */
+	boolean inLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Executes a task of a channel on the loop thread. The channel is
+	 * failed if the task throws.
+	 *
+	 * @param handler  the channel
+	 * @param task  the task
+	 */
+	void execute(NioPacketChannel handler, Runnable task)
+	{
+		tasks.add(new Task(handler, task));
+		if (!inLoop()) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Registers a channel on this loop.
+	 *
+	 * @param channel  the non-blocking socket channel
+	 * @param handler  the channel handler
+	 */
+	void register(final SocketChannel channel, final NioPacketChannel handler)
+	{
+		execute(handler, new Runnable() {
+			public void run()
+			{
+				try {
+					SelectionKey key = channel.register(selector,
+						SelectionKey.OP_READ, handler);
+					handler.registered(key);
+				} catch (IOException ioe) {
+					handler.failed(ioe);
+				}
+			}
+		});
+	}
+
+	public void run()
+	{
+		try {
+			while (running) {
+				try {
+					selector.select();
+				} catch (IOException ioe) {
+					GlieseLogger.LOGGER.error("Selector failure", ioe);
+					break;
+				}
+				runTasks();
+				Iterator<SelectionKey> it
+					= selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					NioPacketChannel handler
+						= (NioPacketChannel)key.attachment();
+					try {
+						if (key.isValid() && key.isWritable()) {
+							handler.writable();
+						}
+						if (key.isValid() && key.isReadable()) {
+							handler.readable();
+						}
+					} catch (IOException ioe) {
+						handler.failed(ioe);
+					} catch (Throwable t) {
+						/* an Error fails the connection, not the loop */
+						GlieseLogger.LOGGER.error(
+							"Unexpected error in event loop", t);
+						handler.failed(new IOException(t));
+					}
+				}
+			}
+		} finally {
+			/* the pending registrations first */
+			runTasks();
+			/* the waiting callers must not hang */
+			for (SelectionKey key: selector.keys()) {
+				((NioPacketChannel)key.attachment()).failed(
+					new IOException("Event loop stopped"));
+			}
+			/* the shutdown tasks notify the receivers */
+			runTasks();
+			try {
+				selector.close();
+			} catch (IOException ioe) {
+				GlieseLogger.LOGGER.error("I/O error on selector close", ioe);
+			}
+		}
+	}
+
+	private void runTasks()
+	{
+		Task t;
+		while ((t = tasks.poll()) != null) {
+			try {
+				t.task.run();
+			} catch (Throwable e) {
+				GlieseLogger.LOGGER.error("Unexpected error in event loop", e);
+				t.handler.failed(new IOException(e));
+			}
+		}
+	}
+
+	/**
+	 * Stops the loop. The registered connections are closed.
+	 */
+	void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+}
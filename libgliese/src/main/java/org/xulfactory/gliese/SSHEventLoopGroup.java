@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed group of event loop threads shared by the non-blocking
+ * connections. Each connection is bound to one loop for its whole life;
+ * the loops are assigned in a round-robin fashion.
+ *
+ * @author sirot
+ */
+public final class SSHEventLoopGroup
+{
+	private final SSHEventLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Creates a new {@code SSHEventLoopGroup}.
+	 *
+	 * @param threads  the number of event loop threads
+	 * @throws IOException  if a selector cannot be opened
+	 */
+	public SSHEventLoopGroup(int threads) throws IOException
+	{
+		if (threads <= 0) {
+			throw new IllegalArgumentException(
+				"Invalid number of threads: " + threads);
+		}
+		loops = new SSHEventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new SSHEventLoop("SSHEventLoop-" + i);
+		}
+	}
+
+	SSHEventLoop next()
+	{
+		int i = next.getAndIncrement() & Integer.MAX_VALUE;
+		return loops[i % loops.length];
+	}
+
+	/**
+	 * Stops all the event loops and closes their connections.
+	 */
+	public void shutdown()
+	{
+		for (SSHEventLoop loop: loops) {
+			loop.shutdown();
+		}
+	}
+}
@@ -17,6 +17,7 @@
 
 package org.xulfactory.gliese;
 
+import org.xulfactory.gliese.message.PacketCrypto;
 import org.xulfactory.gliese.message.PacketFactory;
 import org.xulfactory.gliese.message.KexInitMessage;
 import org.xulfactory.gliese.message.NewKeysMessage;
@@ -24,6 +25,7 @@ import org.xulfactory.gliese.message.SSHMessage;
 import org.xulfactory.gliese.message.DebugMessage;
 import org.xulfactory.gliese.message.DisconnectMessage;
 import org.xulfactory.gliese.util.GlieseLogger;
+import org.xulfactory.gliese.util.PooledBuffer;
 import org.xulfactory.gliese.util.Utils;
 
 import java.io.BufferedReader;
@@ -36,6 +38,7 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -48,7 +51,6 @@ import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.crypto.Cipher;
-import javax.crypto.Mac;
 
 /**
  * Handler on the transport layer.
@@ -100,6 +102,14 @@ public class SSHTransport
 	private final InetAddress address;
 	/** Connected socket to the peer */
 	private final Socket socket;
+	/** Non-blocking channel, {@code null} in blocking mode */
+	private final NioPacketChannel nio;
+	/* Write batching settings */
+	private boolean immediateFlush = false;
+	private int batchSize = 0x10000;
+	private long batchDelay = 500000L;
+	private boolean writerThread = false;
+	private int cipherThreads = 0;
 
 	/** List of supported algorithm for the key exchange */
 	private KexInitAlgorithms algos;
@@ -109,6 +119,9 @@ public class SSHTransport
 	/** The session id generated after the initial key exchange */
 	private byte[] sessionId = null;
 
+	/** MAC name reported when the cipher authenticates the packets */
+	static final String IMPLICIT_MAC = "<implicit>";
+
 	/* Negotiated algorithms */
 	private String kexAlgo;
 	private String hostKeyAlgo;
@@ -117,16 +130,46 @@ public class SSHTransport
 	private String integrityCS;
 	private String integritySC;
 
-	private Map<String, CipherAlgorithm> cipherAlgos;
+	private Map<String, SSHAlgorithm> cipherAlgos;
 	private Map<String, MacAlgorithm> macAlgos;
 
 	SSHTransport(String host, int port, KexInitAlgorithms algos,
 		HostKeyVerifier hv) throws IOException
+	{
+		this(host, port, algos, hv, null);
+	}
+
+	/**
+	 * Creates a new {@code SSHTransport}.
+	 *
+	 * @param host  the peer host name
+	 * @param port  the peer port
+	 * @param algos  the supported algorithms
+	 * @param hv  the host key verifier
+	 * @param loops  the event loops driving the connection, or
+	 *        {@code null} to use a blocking socket
+	 * @throws IOException if the connection fails
+	 */
+	SSHTransport(String host, int port, KexInitAlgorithms algos,
+		HostKeyVerifier hv, SSHEventLoopGroup loops) throws IOException
 	{
 		this.algos = algos;
 		InetSocketAddress addr = new InetSocketAddress(host, port);
-		socket = new Socket();
-		socket.connect(addr);
+		if (loops == null) {
+			/* channel backed socket, for the gathering writes */
+			socket = SocketChannel.open(addr).socket();
+			nio = null;
+		} else {
+			SocketChannel channel = SocketChannel.open(addr);
+			socket = channel.socket();
+			factory = new PacketFactory();
+			try {
+				nio = new NioPacketChannel(channel, loops.next(), factory);
+			} catch (IOException ioe) {
+				channel.close();
+				throw ioe;
+			}
+		}
 		address = socket.getInetAddress();
 		this.hv = hv != null ? hv : new ConsoleHostKeyVerifier();
 //		this.hv = hv != null ? hv : new HostKeyVerifier() {
@@ -149,6 +192,7 @@ public class SSHTransport
 		this.algos = algos;
 		address = s.getInetAddress();
 		this.socket = s;
+		this.nio = null;
 		this.hv = hv != null ? hv : new ConsoleHostKeyVerifier();
 	}
 
@@ -170,13 +214,33 @@ public class SSHTransport
 
 	private void initConnection() throws SSHException, IOException
 	{
+		initAlgorithms(algos);
+		String thisVersion = new Formatter().format(VERSION, GLIESE_VERSION,
+				System.getProperty("os.name"), System.getProperty("os.arch"))
+				.toString();
+		vc = thisVersion.getBytes("ASCII");
+
+		String line = null;
+		StringBuilder sb = new StringBuilder();
+		if (nio != null) {
+			nio.setDeferredWrites(writerThread);
+			nio.start();
+			nio.writeVersion(vc);
+			for (;;) {
+				line = nio.readLine();
+				if (line.startsWith("SSH-")) {
+					break;
+				} else {
+					sb.append(line).append("\r\n");
+				}
+			}
+			parseVersion(line, sb.toString());
+			return;
+		}
 		InputStream in = socket.getInputStream();
 		OutputStream out = socket.getOutputStream();
-		initAlgorithms(algos);
 		BufferedReader br = new BufferedReader(
 			new InputStreamReader(in, "ASCII"));
-		String line = null;
-		StringBuilder sb = new StringBuilder();
 		for (;;) {
 			line = br.readLine();
 			if (line.startsWith("SSH-")) {
@@ -185,7 +249,23 @@ public class SSHTransport
 				sb.append(line).append("\r\n");
 			}
 		}
-		banner = sb.toString();
+		parseVersion(line, sb.toString());
+		out.write(vc);
+		out.write('\r');
+		out.write('\n');
+		out.flush();		
+		factory = new PacketFactory(in, out, socket.getChannel());
+		factory.setImmediateFlush(immediateFlush);
+		factory.setBatchThresholds(batchSize, batchDelay);
+		if (writerThread) {
+			factory.startWriter("gliese-writer-" + address.getHostAddress());
+		}
+	}
+
+	private void parseVersion(String line, String banner)
+		throws SSHException, IOException
+	{
+		this.banner = banner;
 		Pattern p = Pattern.compile(VER_EX_REGEXP);
 		Matcher m = p.matcher(line);
 		if (!m.find()) {
@@ -197,17 +277,6 @@ public class SSHTransport
 			throw new SSHException("Unsupported protocol version: " + protoVersion);
 		}
 		vs = line.getBytes("ASCII");
-
-		String thisVersion = new Formatter().format(VERSION, GLIESE_VERSION,
-				System.getProperty("os.name"), System.getProperty("os.arch"))
-				.toString();
-
-		vc = thisVersion.getBytes("ASCII");
-		out.write(vc);
-		out.write('\r');
-		out.write('\n');
-		out.flush();		
-		factory = new PacketFactory(in, out);
 	}
 
 	private void exchangeKey() throws SSHException
@@ -253,14 +322,23 @@ public class SSHTransport
 			serverKex.getEncryptionAlgorithmsServerToClient(),
 			clientKex.getEncryptionAlgorithmsServerToClient(),
 			false);
-		integrityCS = selectAlgorithm(
-			serverKex.getMacAlgorithmsClientToServer(),
-			clientKex.getMacAlgorithmsClientToServer(),
-			false);
-		integritySC = selectAlgorithm(
-			serverKex.getMacAlgorithmsServerToClient(),
-			clientKex.getMacAlgorithmsServerToClient(),
-			false);
+		/* the AEAD ciphers authenticate the packets themselves */
+		if (cipherAlgos.get(encryptionCS) instanceof AEADCipherAlgorithm) {
+			integrityCS = IMPLICIT_MAC;
+		} else {
+			integrityCS = selectAlgorithm(
+				serverKex.getMacAlgorithmsClientToServer(),
+				clientKex.getMacAlgorithmsClientToServer(),
+				false);
+		}
+		if (cipherAlgos.get(encryptionSC) instanceof AEADCipherAlgorithm) {
+			integritySC = IMPLICIT_MAC;
+		} else {
+			integritySC = selectAlgorithm(
+				serverKex.getMacAlgorithmsServerToClient(),
+				clientKex.getMacAlgorithmsServerToClient(),
+				false);
+		}
 
 		GlieseLogger.LOGGER.info(String.format(
 			"Negotiated algorithms: %s %s", kexAlgo, hostKeyAlgo));
@@ -341,24 +419,64 @@ public class SSHTransport
 			throw new Error(nsae);
 		}
 
-		CipherAlgorithm ccsh = cipherAlgos.get(encryptionCS);
-		CipherAlgorithm csch = cipherAlgos.get(encryptionSC);
-		MacAlgorithm mcsh = macAlgos.get(integrityCS);
-		MacAlgorithm msch = macAlgos.get(integritySC);
-
-		byte[] ivcs = derivation(k, h, (byte)65, sessionId, ccsh.getBlockLength(), dg);
-		byte[] ivsc = derivation(k, h, (byte)66, sessionId, csch.getBlockLength(), dg);
-		byte[] keycs = derivation(k, h, (byte)67, sessionId, ccsh.getKeyLength(), dg);
-		byte[] keysc = derivation(k, h, (byte)68, sessionId, csch.getKeyLength(), dg);
-		byte[] maccs = derivation(k, h, (byte)69, sessionId, mcsh.getLength(), dg);
-		byte[] macsc = derivation(k, h, (byte)70, sessionId, msch.getLength(), dg);
-
-		Cipher ccs = ccsh.getInstance(keycs, ivcs, Cipher.ENCRYPT_MODE);
-		Cipher csc = csch.getInstance(keysc, ivsc, Cipher.DECRYPT_MODE);
-		Mac mcs = mcsh.getInstance(maccs);
-		Mac msc = msch.getInstance(macsc);
+		PacketCrypto cs = newCrypto(encryptionCS, integrityCS, k, h,
+			(byte)65, Cipher.ENCRYPT_MODE, dg);
+		PacketCrypto sc = newCrypto(encryptionSC, integritySC, k, h,
+			(byte)66, Cipher.DECRYPT_MODE, dg);
+
+		if (nio != null) {
+			final PacketCrypto fcs = cs, fsc = sc;
+			/* after the deferred SSH_MSG_NEWKEYS has been encoded */
+			nio.execute(new Runnable() {
+				public void run()
+				{
+					factory.newKeys(fcs, fsc);
+					nio.resume();
+				}
+			});
+		} else {
+			factory.newKeys(cs, sc);
+		}
+	}
 
-		factory.newKeys(ccs, csc, mcs, msc);
+	/**
+	 * Initializes the algorithms of one direction.
+	 *
+	 * @param cipherName  the negotiated cipher
+	 * @param macName  the negotiated MAC
+	 * @param k  the shared secret
+	 * @param h  the exchange hash
+	 * @param x  the letter of the IV: 'A' or 'B', the keys follow
+	 * @param mode  the cipher mode
+	 * @param dg  the digest algorithm defined by the exchange method
+	 * @return  the algorithms
+	 */
+	private PacketCrypto newCrypto(String cipherName, String macName,
+		BigInteger k, byte[] h, byte x, int mode, MessageDigest dg)
+	{
+		SSHAlgorithm algo = cipherAlgos.get(cipherName);
+		if (algo instanceof AEADCipherAlgorithm) {
+			AEADCipherAlgorithm aa = (AEADCipherAlgorithm)algo;
+			byte[] iv = derivation(k, h, x, sessionId, aa.getIVLength(), dg);
+			byte[] key = derivation(k, h, (byte)(x + 2), sessionId,
+				aa.getKeyLength(), dg);
+			return new PacketCrypto(aa.getAEADInstance(key, iv, mode));
+		}
+		CipherAlgorithm ca = (CipherAlgorithm)algo;
+		MacAlgorithm ma = macAlgos.get(macName);
+		byte[] iv = derivation(k, h, x, sessionId, ca.getBlockLength(), dg);
+		byte[] key = derivation(k, h, (byte)(x + 2), sessionId,
+			ca.getKeyLength(), dg);
+		byte[] mkey = derivation(k, h, (byte)(x + 4), sessionId,
+			ma.getKeyLength(), dg);
+		if (cipherThreads > 0 && ca instanceof ParallelCipherAlgorithm) {
+			return new PacketCrypto(((ParallelCipherAlgorithm)ca)
+				.getParallelInstance(key, iv, mode, Gliese.getExecutor(),
+				cipherThreads), ma.getInstance(mkey),
+				ma.isEncryptThenMac());
+		}
+		return new PacketCrypto(ca.getInstance(key, iv, mode),
+			ma.getInstance(mkey), ma.isEncryptThenMac());
 	}
 
 	/**
@@ -400,9 +518,9 @@ public class SSHTransport
 
 	private void initAlgorithms(KexInitAlgorithms algos)
 	{
-		cipherAlgos = new HashMap<String, CipherAlgorithm>();
+		cipherAlgos = new HashMap<String, SSHAlgorithm>();
 		macAlgos = new HashMap<String, MacAlgorithm>();
-		for (CipherAlgorithm algo: algos.getEncryptionAlgorithms()) {
+		for (SSHAlgorithm algo: algos.getEncryptionAlgorithms()) {
 			cipherAlgos.put(algo.getName(), algo);
 		}
 		for (MacAlgorithm algo: algos.getMacAlgorithms()) {
@@ -418,7 +536,84 @@ public class SSHTransport
 	 */
 	public void writeMessage(SSHMessage msg) throws SSHException
 	{
-		factory.writeMessage(msg);
+		if (nio != null) {
+			nio.write(msg);
+		} else {
+			factory.writeMessage(msg);
+		}
+	}
+
+	/**
+	 * Sends the messages as soon as they are written instead of batching
+	 * them with the messages written concurrently. Suited to interactive
+	 * sessions.
+	 *
+	 * @param immediate  {@code true} to flush every message
+	 */
+	public synchronized void setImmediateFlush(boolean immediate)
+	{
+		this.immediateFlush = immediate;
+		if (nio != null) {
+			nio.setImmediateFlush(immediate);
+		} else if (factory != null) {
+			factory.setImmediateFlush(immediate);
+		}
+	}
+
+	/**
+	 * Encrypts and sends the messages from a dedicated thread, or from the
+	 * event loop thread for a non-blocking transport, instead of the
+	 * writing threads. Must be called before the connection is opened.
+	 *
+	 * @param enabled  {@code true} to use a writer thread
+	 */
+	synchronized void setWriterThread(boolean enabled)
+	{
+		this.writerThread = enabled;
+	}
+
+	/**
+	 * Sets the number of worker threads of the ciphers able to run in
+	 * parallel. Must be called before the connection is opened.
+	 *
+	 * @param threads  the number of threads, 0 to use the JCE ciphers
+	 */
+	synchronized void setCipherThreads(int threads)
+	{
+		this.cipherThreads = threads;
+	}
+
+	/**
+	 * Sets the thresholds above which the batched messages are sent even
+	 * if other threads are writing.
+	 *
+	 * @param size  the maximum number of batched bytes
+	 * @param delayNanos  the maximum time a message may be delayed, in
+	 *        nanoseconds
+	 */
+	public synchronized void setBatchThresholds(int size, long delayNanos)
+	{
+		this.batchSize = size;
+		this.batchDelay = delayNanos;
+		if (nio != null) {
+			nio.setBatchThresholds(size, delayNanos);
+		} else if (factory != null) {
+			factory.setBatchThresholds(size, delayNanos);
+		}
+	}
+
+	/**
+	 * Sends the batched messages.
+	 *
+	 * @throws SSHException if an error occurred
+	 */
+	public void flush() throws SSHException
+	{
+		if (nio != null) {
+			nio.flushPackets();
+		} else {
+			factory.flush();
+		}
 	}
 
 	/**
@@ -459,30 +654,114 @@ public class SSHTransport
 		SSHMessage m;
 		do {
 			try {
-				m = factory.readMessage(namespace);
+				if (nio != null) {
+					PooledBuffer payload = nio.readPayload();
+					try {
+						m = factory.decodeMessage(payload, namespace);
+					} finally {
+						payload.release();
+					}
+				} else {
+					m = factory.readMessage(namespace);
+				}
 			} catch (SSHException se) {
 				close();
 				throw se;
 			}
-			if (m.getID() == DisconnectMessage.ID) {
-				DisconnectMessage msg = (DisconnectMessage)m;
-				GlieseLogger.LOGGER.info("Disconnect message received: " + msg);
-				close();
-				throw new SSHException(String.format(
-					"%s (reason code=%d)", msg.getMessage(),
-					msg.getReasonCode()));
-			} else if (m.getID() == DebugMessage.ID) {
-				DebugMessage msg = (DebugMessage)m;
-				if (msg.isAlwaysDisplay()) {
-					GlieseLogger.LOGGER.info("Debug message: " + msg.getMessage());
-				} else {
-					GlieseLogger.LOGGER.debug("Debug message: " + msg.getMessage());
-				}
+		} while (handleTransportMessage(m));
+		return m;
+	}
+
+	/**
+	 * Handles the messages of the transport layer which can be received
+	 * at any time.
+	 *
+	 * @param m  the received message
+	 * @return {@code true} if the message has been consumed
+	 * @throws SSHException if the peer disconnected
+	 */
+	private boolean handleTransportMessage(SSHMessage m) throws SSHException
+	{
+		if (m.getID() == DisconnectMessage.ID) {
+			DisconnectMessage msg = (DisconnectMessage)m;
+			GlieseLogger.LOGGER.info("Disconnect message received: " + msg);
+			close();
+			throw new SSHException(String.format(
+				"%s (reason code=%d)", msg.getMessage(),
+				msg.getReasonCode()));
+		} else if (m.getID() == DebugMessage.ID) {
+			DebugMessage msg = (DebugMessage)m;
+			if (msg.isAlwaysDisplay()) {
+				GlieseLogger.LOGGER.info("Debug message: " + msg.getMessage());
 			} else {
-				break;
+				GlieseLogger.LOGGER.debug("Debug message: " + msg.getMessage());
 			}
-		} while (true);
-		return m;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Indicates whether the transport is driven by an event loop.
+	 *
+	 * @return {@code true} for a non-blocking transport
+	 */
+	boolean isNonBlocking()
+	{
+		return nio != null;
+	}
+
+	/**
+	 * Dispatches all the next incoming messages to the handler instead of
+	 * queueing them for {@link #readMessage()}. The handler is called by
+	 * the event loop thread. Only supported by non-blocking transports.
+	 *
+	 * @param handler  the message handler
+	 */
+	void setMessageHandler(final MessageHandler handler)
+	{
+		nio.setReceiver(new NioPacketChannel.Receiver() {
+			public void received(PooledBuffer payload)
+			{
+				try {
+					SSHMessage m = factory.decodeMessage(payload, null);
+					if (!handleTransportMessage(m)) {
+						handler.handle(m);
+					}
+				} catch (SSHException se) {
+					GlieseLogger.LOGGER.error(se.getMessage(), se);
+					close();
+				} finally {
+					payload.release();
+				}
+			}
+
+			public void closed(SSHException cause)
+			{
+				handler.closed(cause);
+			}
+		});
+	}
+
+	/**
+	 * Handler of the messages dispatched by a non-blocking transport.
+	 */
+	interface MessageHandler
+	{
+		/**
+		 * Handles a received message.
+		 *
+		 * @param msg  the message
+		 * @throws SSHException  on fatal error, the connection is closed
+		 */
+		void handle(SSHMessage msg) throws SSHException;
+
+		/**
+		 * Called once the connection is closed.
+		 *
+		 * @param cause  the closing cause
+		 */
+		void closed(SSHException cause);
 	}
 
 	/**
@@ -619,8 +898,36 @@ public class SSHTransport
 		return protoVersion;
 	}
 
+	/**
+	 * Indicates whether the connection with the peer is still open.
+	 *
+	 * @return  {@code false} once the transport has been closed, or the
+	 *          connection lost
+	 */
+	public boolean isOpen()
+	{
+		if (nio != null) {
+			return nio.isOpen();
+		}
+		return !socket.isClosed();
+	}
+
 	public void close()
 	{
+		if (nio != null) {
+			nio.close();
+			return;
+		}
+		try {
+			if (factory != null) {
+				factory.flush();
+			}
+		} catch (SSHException se) {
+			GlieseLogger.LOGGER.error("Unable to flush messages", se);
+		}
+		if (factory != null) {
+			factory.close();
+		}
 		try {
 			socket.close();
 		} catch (IOException ioe) {
@@ -0,0 +1,40 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese;
+
+/**
+ * Listener of the progress of a file upload. See
+ * {@link SSHChannel#sendFile(java.nio.channels.FileChannel, long, long,
+ * TransferListener)}.
+ *
+ * The listener is called by the sending thread between the packets and
+ * must not block for long since the upload waits meanwhile.
+ *
+ * @author sirot
+ */
+public interface TransferListener
+{
+	/**
+	 * Called when data has been handed over to the connection.
+	 *
+	 * @param transferred  the number of bytes sent so far
+	 * @param total  the number of bytes to send
+	 * @param throughput  the average throughput since the start of the
+	 *        transfer, in bytes per second
+	 */
+	void progress(long transferred, long total, long throughput);
+}
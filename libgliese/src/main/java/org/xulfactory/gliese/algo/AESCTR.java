@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese.algo;
+
+import java.util.concurrent.Executor;
+import javax.crypto.spec.SecretKeySpec;
+import org.xulfactory.gliese.PacketCipher;
+import org.xulfactory.gliese.ParallelCipherAlgorithm;
+
+/**
+ * Base implementation of the {@code aes128-ctr}, {@code aes192-ctr} and
+ * {@code aes256-ctr} algorithms (RFC 4344). The keystream does not depend
+ * on the data, so the parallel instances compute it ahead of the packets
+ * on worker threads and only xor it with the packets.
+ *
+ * @author sirot
+ */
+public class AESCTR extends BaseCipherAlgorithm
+	implements ParallelCipherAlgorithm
+{
+	private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+
+	/**
+	 * The {@code aes128-ctr} algorithm
+	 */
+	public static class AES128CTR extends AESCTR
+	{
+		public AES128CTR()
+		{
+			super("aes128-ctr", 16);
+		}
+	}
+
+	/**
+	 * The {@code aes192-ctr} algorithm
+	 */
+	public static class AES192CTR extends AESCTR
+	{
+		public AES192CTR()
+		{
+			super("aes192-ctr", 24);
+		}
+	}
+
+	/**
+	 * The {@code aes256-ctr} algorithm
+	 */
+	public static class AES256CTR extends AESCTR
+	{
+		public AES256CTR()
+		{
+			super("aes256-ctr", 32);
+		}
+	}
+
+	protected AESCTR(String name, int keyLength)
+	{
+		super(name, TRANSFORMATION, "AES", 16, keyLength);
+	}
+
+	public PacketCipher getParallelInstance(byte[] key, byte[] iv,
+		int mode, Executor executor, int threads)
+	{
+		/* encryption and decryption are the same xor */
+		return new ParallelCTR(TRANSFORMATION, new SecretKeySpec(key, "AES"),
+			iv, executor, threads);
+	}
+}
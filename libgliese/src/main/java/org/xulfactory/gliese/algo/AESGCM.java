@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese.algo;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.xulfactory.gliese.AEADCipher;
+import org.xulfactory.gliese.AEADCipherAlgorithm;
+
+/**
+ * Base implementation of the {@code aes128-gcm@openssh.com} and
+ * {@code aes256-gcm@openssh.com} algorithms (RFC 5647 as profiled by
+ * OpenSSH). The packet length is sent in clear and authenticated as
+ * associated data. The nonce is made of the 4 fixed bytes of the IV and
+ * of an 8 bytes invocation counter incremented after each packet.
+ *
+ * @author sirot
+ */
+public class AESGCM implements AEADCipherAlgorithm
+{
+	private static final int TAG_LENGTH = 16;
+
+	/**
+	 * The {@code aes128-gcm@openssh.com} algorithm
+	 */
+	public static class AES128GCM extends AESGCM
+	{
+		public AES128GCM()
+		{
+			super("aes128-gcm@openssh.com", 16);
+		}
+	}
+
+	/**
+	 * The {@code aes256-gcm@openssh.com} algorithm
+	 */
+	public static class AES256GCM extends AESGCM
+	{
+		public AES256GCM()
+		{
+			super("aes256-gcm@openssh.com", 32);
+		}
+	}
+
+	private final String name;
+	private final int keyLength;
+
+	protected AESGCM(String name, int keyLength)
+	{
+		this.name = name;
+		this.keyLength = keyLength;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public int getKeyLength()
+	{
+		return keyLength;
+	}
+
+	public int getIVLength()
+	{
+		return 12;
+	}
+
+	public AEADCipher getAEADInstance(byte[] key, byte[] iv, int mode)
+	{
+		try {
+			return new GCMCipher(Cipher.getInstance("AES/GCM/NoPadding"),
+				new SecretKeySpec(key, "AES"), iv.clone(), mode);
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new Error(nsae);// FIXME
+		} catch (NoSuchPaddingException nspe) {
+			throw new Error(nspe);// FIXME
+		}
+	}
+
+	private static class GCMCipher implements AEADCipher
+	{
+		private final Cipher cipher;
+		private final SecretKeySpec key;
+		/** Fixed field followed by the invocation counter */
+		private final byte[] nonce;
+		private final int mode;
+
+		GCMCipher(Cipher cipher, SecretKeySpec key, byte[] nonce, int mode)
+		{
+			this.cipher = cipher;
+			this.key = key;
+			this.nonce = nonce;
+			this.mode = mode;
+		}
+
+		public int getBlockLength()
+		{
+			return 16;
+		}
+
+		public int getTagLength()
+		{
+			return TAG_LENGTH;
+		}
+
+		public int getPacketLength(int seq, ByteBuffer head)
+		{
+			return head.getInt(head.position());
+		}
+
+		public void seal(int seq, ByteBuffer packet)
+		{
+			ByteBuffer aad = packet.duplicate();
+			aad.limit(aad.position() + 4);
+			ByteBuffer in = packet.duplicate();
+			in.position(aad.limit());
+			ByteBuffer out = in.duplicate();
+			out.limit(out.capacity());
+			try {
+				init();
+				cipher.updateAAD(aad);
+				cipher.doFinal(in, out);
+			} catch (GeneralSecurityException gse) {
+				/* Does not happen */
+				throw new Error(gse);
+			}
+			packet.limit(out.position());
+			increment();
+		}
+
+		public boolean open(int seq, ByteBuffer head, ByteBuffer src,
+			int len, ByteBuffer dst)
+		{
+			ByteBuffer in = src.duplicate();
+			in.limit(in.position() + len + TAG_LENGTH);
+			try {
+				init();
+				cipher.updateAAD(head.duplicate());
+				cipher.doFinal(in, dst);
+			} catch (AEADBadTagException abte) {
+				return false;
+			} catch (GeneralSecurityException gse) {
+				/* Does not happen */
+				throw new Error(gse);
+			}
+			src.position(in.position());
+			increment();
+			return true;
+		}
+
+		private void init() throws GeneralSecurityException
+		{
+			cipher.init(mode, key, new GCMParameterSpec(
+				TAG_LENGTH * 8, nonce));
+		}
+
+		private void increment()
+		{
+			for (int i = nonce.length - 1; i >= 4; i--) {
+				if (++nonce[i] != 0) {
+					break;
+				}
+			}
+		}
+	}
+}
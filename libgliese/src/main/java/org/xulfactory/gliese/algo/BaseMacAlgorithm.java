@@ -35,6 +35,7 @@ public class BaseMacAlgorithm implements MacAlgorithm
 	private int keyLength;
 	private int blockLength;
 	private String algoName;
+	private boolean etm;
 
 	/**
 	 * Creates an {@code MacHandler}.
@@ -46,11 +47,27 @@ public class BaseMacAlgorithm implements MacAlgorithm
 	 */
 	public BaseMacAlgorithm(String name, String algoName,
 		int blockLength, int keyLength)
+	{
+		this(name, algoName, blockLength, keyLength, false);
+	}
+
+	/**
+	 * Creates an {@code MacHandler}.
+	 *
+	 * @param name  the SSH standardized Mac name
+	 * @param algoName  the JCA Mac algorithm name
+	 * @param blockLength   the block length in bytes
+	 * @param keyLength   the key length in bytes
+	 * @param etm  {@code true} for an encrypt-then-MAC algorithm
+	 */
+	public BaseMacAlgorithm(String name, String algoName,
+		int blockLength, int keyLength, boolean etm)
 	{
 		this.name = name;
 		this.algoName = algoName;
 		this.blockLength = blockLength;
 		this.keyLength = keyLength;
+		this.etm = etm;
 	}
 
 	public int getLength()
@@ -68,6 +85,11 @@ public class BaseMacAlgorithm implements MacAlgorithm
 		return name;
 	}
 
+	public boolean isEncryptThenMac()
+	{
+		return etm;
+	}
+
 	public Mac getInstance(byte[] key)
 	{
 		try {
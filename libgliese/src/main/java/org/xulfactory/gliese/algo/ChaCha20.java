@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese.algo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * ChaCha20 stream cipher, in its original form with a 64 bits block
+ * counter and a 64 bits nonce. The block function works on local
+ * variables and the keystream is xored a word at a time, so no memory is
+ * allocated per block.
+ *
+ * @author sirot
+ */
+final class ChaCha20
+{
+	private static final int C0 = 0x61707865;
+	private static final int C1 = 0x3320646e;
+	private static final int C2 = 0x79622d32;
+	private static final int C3 = 0x6b206574;
+
+	private final int k0, k1, k2, k3, k4, k5, k6, k7;
+	/** Keystream of the current block */
+	private final int[] ks = new int[16];
+
+	/**
+	 * Creates the cipher with a 256 bits key.
+	 *
+	 * @param key  the key array
+	 * @param off  the offset of the key
+	 */
+	ChaCha20(byte[] key, int off)
+	{
+		ByteBuffer k = ByteBuffer.wrap(key, off, 32)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		k0 = k.getInt();
+		k1 = k.getInt();
+		k2 = k.getInt();
+		k3 = k.getInt();
+		k4 = k.getInt();
+		k5 = k.getInt();
+		k6 = k.getInt();
+		k7 = k.getInt();
+	}
+
+	/**
+	 * Xors the keystream with the remaining bytes of {@code src} into
+	 * {@code dst}. The buffers may be the same.
+	 *
+	 * @param nonce  the nonce, the little-endian value of its 8 bytes
+	 * @param counter  the first block counter
+	 * @param src  the input
+	 * @param dst  the output
+	 */
+	void crypt(long nonce, long counter, ByteBuffer src, ByteBuffer dst)
+	{
+		ByteBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer out = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int n0 = (int)nonce;
+		int n1 = (int)(nonce >>> 32);
+		while (in.remaining() >= 64) {
+			block(counter++, n0, n1);
+			for (int i = 0; i < 16; i++) {
+				out.putInt(in.getInt() ^ ks[i]);
+			}
+		}
+		if (in.hasRemaining()) {
+			block(counter, n0, n1);
+			for (int i = 0; in.hasRemaining(); i++) {
+				out.put((byte)(in.get() ^ (ks[i >> 2] >>> ((i & 3) << 3))));
+			}
+		}
+		src.position(in.position());
+		dst.position(out.position());
+	}
+
+	/**
+	 * Computes a keystream block.
+	 *
+	 * @param nonce  the nonce
+	 * @param counter  the block counter
+	 * @param out  the array receiving the 64 bytes of the block
+	 */
+	void keystream(long nonce, long counter, byte[] out)
+	{
+		block(counter, (int)nonce, (int)(nonce >>> 32));
+		for (int i = 0; i < 64; i++) {
+			out[i] = (byte)(ks[i >> 2] >>> ((i & 3) << 3));
+		}
+	}
+
+	private void block(long counter, int n0, int n1)
+	{
+		int x0 = C0, x1 = C1, x2 = C2, x3 = C3;
+		int x4 = k0, x5 = k1, x6 = k2, x7 = k3;
+		int x8 = k4, x9 = k5, x10 = k6, x11 = k7;
+		int x12 = (int)counter, x13 = (int)(counter >>> 32);
+		int x14 = n0, x15 = n1;
+		for (int i = 0; i < 10; i++) {
+			/* column rounds */
+			x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 16);
+			x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 12);
+			x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 8);
+			x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 7);
+			x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 16);
+			x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 12);
+			x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 8);
+			x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 7);
+			x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 16);
+			x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 12);
+			x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 8);
+			x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 7);
+			x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 16);
+			x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 12);
+			x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 8);
+			x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 7);
+			/* diagonal rounds */
+			x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 16);
+			x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 12);
+			x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 8);
+			x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 7);
+			x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 16);
+			x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 12);
+			x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 8);
+			x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 7);
+			x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 16);
+			x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 12);
+			x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 8);
+			x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 7);
+			x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 16);
+			x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 12);
+			x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 8);
+			x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 7);
+		}
+		ks[0] = x0 + C0;
+		ks[1] = x1 + C1;
+		ks[2] = x2 + C2;
+		ks[3] = x3 + C3;
+		ks[4] = x4 + k0;
+		ks[5] = x5 + k1;
+		ks[6] = x6 + k2;
+		ks[7] = x7 + k3;
+		ks[8] = x8 + k4;
+		ks[9] = x9 + k5;
+		ks[10] = x10 + k6;
+		ks[11] = x11 + k7;
+		ks[12] = x12 + (int)counter;
+		ks[13] = x13 + (int)(counter >>> 32);
+		ks[14] = x14 + n0;
+		ks[15] = x15 + n1;
+	}
+}
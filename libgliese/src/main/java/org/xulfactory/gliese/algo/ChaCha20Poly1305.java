@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese.algo;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import org.xulfactory.gliese.AEADCipher;
+import org.xulfactory.gliese.AEADCipherAlgorithm;
+
+/**
+ * The {@code chacha20-poly1305@openssh.com} algorithm, fast without AES
+ * instructions. The 64 bytes key holds two ChaCha20 keys: the second one
+ * encrypts the packet length field, the first one the rest of the packet
+ * and provides the Poly1305 key in its first keystream block. The nonce is
+ * the packet sequence number; the tag covers the whole encrypted packet.
+ *
+ * @author sirot
+ */
+public class ChaCha20Poly1305 implements AEADCipherAlgorithm
+{
+	private static final int TAG_LENGTH = 16;
+
+	public String getName()
+	{
+		return "chacha20-poly1305@openssh.com";
+	}
+
+	public int getKeyLength()
+	{
+		return 64;
+	}
+
+	public int getIVLength()
+	{
+		return 0;
+	}
+
+	public AEADCipher getAEADInstance(byte[] key, byte[] iv, int mode)
+	{
+		return new ChaChaPolyCipher(key);
+	}
+
+	private static class ChaChaPolyCipher implements AEADCipher
+	{
+		private final ChaCha20 main;
+		private final ChaCha20 header;
+		private final Poly1305 poly = new Poly1305();
+		private final byte[] polyKey = new byte[64];
+		private final byte[] tag = new byte[TAG_LENGTH];
+		private final byte[] code = new byte[TAG_LENGTH];
+		private final ByteBuffer length = ByteBuffer.allocate(4);
+
+		ChaChaPolyCipher(byte[] key)
+		{
+			this.main = new ChaCha20(key, 0);
+			this.header = new ChaCha20(key, 32);
+		}
+
+		public int getBlockLength()
+		{
+			return 8;
+		}
+
+		public int getTagLength()
+		{
+			return TAG_LENGTH;
+		}
+
+		public int getPacketLength(int seq, ByteBuffer head)
+		{
+			length.clear();
+			header.crypt(nonce(seq), 0, head.duplicate(), length);
+			return length.getInt(0);
+		}
+
+		public void seal(int seq, ByteBuffer packet)
+		{
+			long nonce = nonce(seq);
+			ByteBuffer len = packet.duplicate();
+			len.limit(len.position() + 4);
+			header.crypt(nonce, 0, len, len.duplicate());
+			ByteBuffer body = packet.duplicate();
+			body.position(len.limit());
+			main.crypt(nonce, 1, body, body.duplicate());
+			main.keystream(nonce, 0, polyKey);
+			poly.init(polyKey);
+			poly.update(packet);
+			poly.finish(tag, 0);
+			int end = packet.limit();
+			packet.limit(end + TAG_LENGTH);
+			ByteBuffer out = packet.duplicate();
+			out.position(end);
+			out.put(tag);
+		}
+
+		public boolean open(int seq, ByteBuffer head, ByteBuffer src,
+			int len, ByteBuffer dst)
+		{
+			long nonce = nonce(seq);
+			ByteBuffer body = src.duplicate();
+			body.limit(body.position() + len);
+			main.keystream(nonce, 0, polyKey);
+			poly.init(polyKey);
+			poly.update(head);
+			poly.update(body);
+			poly.finish(code, 0);
+			ByteBuffer t = src.duplicate();
+			t.position(body.limit());
+			t.get(tag);
+			if (!MessageDigest.isEqual(code, tag)) {
+				return false;
+			}
+			main.crypt(nonce, 1, body, dst);
+			src.position(t.position());
+			return true;
+		}
+
+		/**
+		 * The sequence number as a big-endian 64 bits nonce.
+		 */
+		private static long nonce(int seq)
+		{
+			return (long)Integer.reverseBytes(seq) << 32;
+		}
+	}
+}
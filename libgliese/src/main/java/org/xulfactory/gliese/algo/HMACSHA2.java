@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese.algo;
+
+/**
+ * The {@code hmac-sha2-256} and {@code hmac-sha2-512} hmac algorithms
+ * (RFC 6668) and their encrypt-then-MAC variants.
+ *
+ * @author sirot
+ */
+public class HMACSHA2 extends BaseMacAlgorithm
+{
+	/**
+	 * The {@code hmac-sha2-256} algorithm
+	 */
+	public static class HMACSHA256 extends HMACSHA2
+	{
+		public HMACSHA256()
+		{
+			super("hmac-sha2-256", "HmacSHA256", 32, false);
+		}
+	}
+
+	/**
+	 * The {@code hmac-sha2-512} algorithm
+	 */
+	public static class HMACSHA512 extends HMACSHA2
+	{
+		public HMACSHA512()
+		{
+			super("hmac-sha2-512", "HmacSHA512", 64, false);
+		}
+	}
+
+	/**
+	 * The {@code hmac-sha2-256-etm@openssh.com} algorithm
+	 */
+	public static class HMACSHA256ETM extends HMACSHA2
+	{
+		public HMACSHA256ETM()
+		{
+			super("hmac-sha2-256-etm@openssh.com", "HmacSHA256", 32, true);
+		}
+	}
+
+	/**
+	 * The {@code hmac-sha2-512-etm@openssh.com} algorithm
+	 */
+	public static class HMACSHA512ETM extends HMACSHA2
+	{
+		public HMACSHA512ETM()
+		{
+			super("hmac-sha2-512-etm@openssh.com", "HmacSHA512", 64, true);
+		}
+	}
+
+	protected HMACSHA2(String name, String algoName, int length, boolean etm)
+	{
+		super(name, algoName, length, length, etm);
+	}
+}
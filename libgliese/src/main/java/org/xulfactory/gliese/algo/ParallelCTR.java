@@ -0,0 +1,254 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese.algo;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.xulfactory.gliese.PacketCipher;
+
+/**
+ * Counter mode cipher xoring the packets with a keystream precomputed by
+ * worker tasks. The keystream is split into chunks kept in a ring: the
+ * chunks ahead of the current one are computed while the packets are
+ * processed, and a chunk is scheduled again for the next turn of the ring
+ * as soon as it has been consumed. The chunks are computed by the JCE
+ * counter mode cipher over zeros, so it keeps using the hardware
+ * instructions when they are available.
+ *
+ * @author sirot
+ */
+final class ParallelCTR implements PacketCipher
+{
+	/** Keystream length of a chunk */
+	static final int CHUNK = 0x10000;
+	/** Chunks in the ring per thread */
+	private static final int DEPTH = 4;
+	private static final byte[] ZEROS = new byte[CHUNK];
+
+	/** One chunk of the ring */
+	private static final class Chunk
+	{
+		final byte[] data = new byte[CHUNK];
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		/** Chunk to compute, set before the chunk is scheduled */
+		long target;
+		/** Chunk held by the data, -1 if none */
+		volatile long index = -1;
+	}
+
+	private final String transformation;
+	private final SecretKeySpec key;
+	private final byte[] iv;
+	private final Executor executor;
+	private final int threads;
+	private final Chunk[] ring;
+	private final Queue<Chunk> pending = new ConcurrentLinkedQueue<Chunk>();
+	private final Queue<Cipher> ciphers = new ConcurrentLinkedQueue<Cipher>();
+	private final AtomicInteger running = new AtomicInteger();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition filled = lock.newCondition();
+	private volatile GeneralSecurityException failure;
+	/** Keystream bytes consumed */
+	private long pos = 0;
+
+	private final Runnable worker = new Runnable() {
+		public void run()
+		{
+			do {
+				Cipher c = ciphers.poll();
+				try {
+					if (c == null) {
+						c = Cipher.getInstance(transformation);
+					}
+					Chunk chunk;
+					while ((chunk = pending.poll()) != null) {
+						fill(c, chunk);
+					}
+				} catch (GeneralSecurityException gse) {
+					failure = gse;
+					signal();
+				}
+				if (c != null) {
+					ciphers.add(c);
+				}
+				running.decrementAndGet();
+				/* a chunk scheduled while leaving is not left behind */
+			} while (!pending.isEmpty() && acquire());
+		}
+	};
+
+	/**
+	 * Creates the cipher and starts filling the ring.
+	 *
+	 * @param transformation  the JCE counter mode transformation
+	 * @param key  the key
+	 * @param iv  the initial counter block
+	 * @param executor  the executor of the worker tasks
+	 * @param threads  the maximum number of worker tasks
+	 */
+	ParallelCTR(String transformation, SecretKeySpec key, byte[] iv,
+		Executor executor, int threads)
+	{
+		this.transformation = transformation;
+		this.key = key;
+		this.iv = iv.clone();
+		this.executor = executor;
+		this.threads = Math.max(threads, 1);
+		this.ring = new Chunk[this.threads * DEPTH];
+		for (int i = 0; i < ring.length; i++) {
+			ring[i] = new Chunk();
+			ring[i].target = i;
+			schedule(ring[i]);
+		}
+	}
+
+	public int getBlockSize()
+	{
+		return iv.length;
+	}
+
+	public void update(ByteBuffer in, ByteBuffer out)
+	{
+		while (in.hasRemaining()) {
+			long c = pos / CHUNK;
+			Chunk chunk = ring[(int)(c % ring.length)];
+			await(chunk, c);
+			int off = (int)(pos % CHUNK);
+			int len = Math.min(CHUNK - off, in.remaining());
+			xor(in, out, chunk, off, len);
+			pos += len;
+			if (off + len == CHUNK) {
+				chunk.target = c + ring.length;
+				schedule(chunk);
+			}
+		}
+	}
+
+	private static void xor(ByteBuffer in, ByteBuffer out, Chunk chunk,
+		int off, int len)
+	{
+		if (in.hasArray() && out.hasArray()) {
+			byte[] a = in.array();
+			int i0 = in.arrayOffset() + in.position();
+			byte[] b = out.array();
+			int o0 = out.arrayOffset() + out.position();
+			byte[] k = chunk.data;
+			for (int i = 0; i < len; i++) {
+				b[o0 + i] = (byte)(a[i0 + i] ^ k[off + i]);
+			}
+			in.position(in.position() + len);
+			out.position(out.position() + len);
+			return;
+		}
+		ByteBuffer k = chunk.buffer;
+		int i = 0;
+		if (in.order() == out.order() && in.order() == k.order()) {
+			for (; i + 8 <= len; i += 8) {
+				out.putLong(in.getLong() ^ k.getLong(off + i));
+			}
+		}
+		for (; i < len; i++) {
+			out.put((byte)(in.get() ^ k.get(off + i)));
+		}
+	}
+
+	/**
+	 * Waits until the chunk holds the given part of the keystream.
+	 */
+	private void await(Chunk chunk, long c)
+	{
+		if (chunk.index == c) {
+			return;
+		}
+		lock.lock();
+		try {
+			while (chunk.index != c) {
+				if (failure != null) {
+					throw new Error(failure);// FIXME
+				}
+				filled.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void signal()
+	{
+		lock.lock();
+		try {
+			filled.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues the chunk and starts a worker task if less than the maximum
+	 * are running.
+	 */
+	private void schedule(Chunk chunk)
+	{
+		pending.add(chunk);
+		if (acquire()) {
+			executor.execute(worker);
+		}
+	}
+
+	private boolean acquire()
+	{
+		for (;;) {
+			int n = running.get();
+			if (n >= threads) {
+				return false;
+			}
+			if (running.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Computes the keystream of the chunk target: the counter mode
+	 * encryption of zeros from the initial counter plus the number of
+	 * blocks before the chunk.
+	 */
+	private void fill(Cipher c, Chunk chunk) throws GeneralSecurityException
+	{
+		long target = chunk.target;
+		byte[] ctr = iv.clone();
+		long add = target * (CHUNK / ctr.length);
+		for (int i = ctr.length - 1; i >= 0 && add != 0; i--) {
+			long v = (ctr[i] & 0xff) + (add & 0xff);
+			ctr[i] = (byte)v;
+			add = (add >>> 8) + (v >>> 8);
+		}
+		c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ctr));
+		c.doFinal(ZEROS, 0, CHUNK, chunk.data, 0);
+		chunk.index = target;
+		signal();
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese.algo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Poly1305 one-time authenticator (RFC 8439), computed on 26 bits limbs
+ * with 64 bits products. The instance is reused: {@link #init(byte[])}
+ * starts a new message.
+ *
+ * @author sirot
+ */
+final class Poly1305
+{
+	private static final long M26 = 0x3ffffff;
+
+	private long r0, r1, r2, r3, r4;
+	private long s1, s2, s3, s4;
+	private long h0, h1, h2, h3, h4;
+	private long p0, p1, p2, p3;
+	/** Pending bytes of an incomplete block */
+	private final byte[] partial = new byte[16];
+	private int plen;
+
+	/**
+	 * Starts a new message.
+	 *
+	 * @param key  the one-time key, at least 32 bytes
+	 */
+	void init(byte[] key)
+	{
+		ByteBuffer k = ByteBuffer.wrap(key, 0, 32)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		long t0 = k.getInt() & 0xffffffffL;
+		long t1 = k.getInt() & 0xffffffffL;
+		long t2 = k.getInt() & 0xffffffffL;
+		long t3 = k.getInt() & 0xffffffffL;
+		r0 = t0 & 0x3ffffff;
+		r1 = ((t0 >>> 26) | (t1 << 6)) & 0x3ffff03;
+		r2 = ((t1 >>> 20) | (t2 << 12)) & 0x3ffc0ff;
+		r3 = ((t2 >>> 14) | (t3 << 18)) & 0x3f03fff;
+		r4 = (t3 >>> 8) & 0x00fffff;
+		s1 = r1 * 5;
+		s2 = r2 * 5;
+		s3 = r3 * 5;
+		s4 = r4 * 5;
+		p0 = k.getInt() & 0xffffffffL;
+		p1 = k.getInt() & 0xffffffffL;
+		p2 = k.getInt() & 0xffffffffL;
+		p3 = k.getInt() & 0xffffffffL;
+		h0 = h1 = h2 = h3 = h4 = 0;
+		plen = 0;
+	}
+
+	/**
+	 * Adds the remaining bytes of the buffer to the message. The buffer
+	 * position is not modified.
+	 *
+	 * @param data  the data
+	 */
+	void update(ByteBuffer data)
+	{
+		ByteBuffer in = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (plen > 0) {
+			while (plen < 16 && in.hasRemaining()) {
+				partial[plen++] = in.get();
+			}
+			if (plen < 16) {
+				return;
+			}
+			ByteBuffer p = ByteBuffer.wrap(partial)
+				.order(ByteOrder.LITTLE_ENDIAN);
+			block(p.getInt(0), p.getInt(4), p.getInt(8), p.getInt(12),
+				1L << 24);
+			plen = 0;
+		}
+		while (in.remaining() >= 16) {
+			block(in.getInt(), in.getInt(), in.getInt(), in.getInt(),
+				1L << 24);
+		}
+		while (in.hasRemaining()) {
+			partial[plen++] = in.get();
+		}
+	}
+
+	/**
+	 * Computes the tag of the message.
+	 *
+	 * @param out  the array receiving the 16 bytes of the tag
+	 * @param off  the offset in the array
+	 */
+	void finish(byte[] out, int off)
+	{
+		if (plen > 0) {
+			partial[plen++] = 1;
+			while (plen < 16) {
+				partial[plen++] = 0;
+			}
+			ByteBuffer p = ByteBuffer.wrap(partial)
+				.order(ByteOrder.LITTLE_ENDIAN);
+			block(p.getInt(0), p.getInt(4), p.getInt(8), p.getInt(12), 0);
+			plen = 0;
+		}
+		/* full carry */
+		long c;
+		c = h1 >>> 26; h1 &= M26; h2 += c;
+		c = h2 >>> 26; h2 &= M26; h3 += c;
+		c = h3 >>> 26; h3 &= M26; h4 += c;
+		c = h4 >>> 26; h4 &= M26; h0 += c * 5;
+		c = h0 >>> 26; h0 &= M26; h1 += c;
+		/* h - p */
+		long g0 = h0 + 5; c = g0 >>> 26; g0 &= M26;
+		long g1 = h1 + c; c = g1 >>> 26; g1 &= M26;
+		long g2 = h2 + c; c = g2 >>> 26; g2 &= M26;
+		long g3 = h3 + c; c = g3 >>> 26; g3 &= M26;
+		long g4 = h4 + c - (1L << 26);
+		/* select h if h < p, h - p otherwise */
+		long mask = (g4 >>> 63) - 1;
+		h0 = (h0 & ~mask) | (g0 & mask);
+		h1 = (h1 & ~mask) | (g1 & mask);
+		h2 = (h2 & ~mask) | (g2 & mask);
+		h3 = (h3 & ~mask) | (g3 & mask);
+		h4 = (h4 & ~mask) | (g4 & mask);
+		/* h + pad, modulo 2^128 */
+		long f0 = ((h0) | (h1 << 26)) & 0xffffffffL;
+		long f1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+		long f2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+		long f3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+		f0 += p0;
+		f1 += p1 + (f0 >>> 32);
+		f2 += p2 + (f1 >>> 32);
+		f3 += p3 + (f2 >>> 32);
+		ByteBuffer o = ByteBuffer.wrap(out, off, 16)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		o.putInt((int)f0);
+		o.putInt((int)f1);
+		o.putInt((int)f2);
+		o.putInt((int)f3);
+	}
+
+	private void block(int m0, int m1, int m2, int m3, long hibit)
+	{
+		long t0 = m0 & 0xffffffffL;
+		long t1 = m1 & 0xffffffffL;
+		long t2 = m2 & 0xffffffffL;
+		long t3 = m3 & 0xffffffffL;
+		h0 += t0 & M26;
+		h1 += ((t0 >>> 26) | (t1 << 6)) & M26;
+		h2 += ((t1 >>> 20) | (t2 << 12)) & M26;
+		h3 += ((t2 >>> 14) | (t3 << 18)) & M26;
+		h4 += (t3 >>> 8) | hibit;
+		long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+		long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+		long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+		long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+		long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+		long c = d0 >>> 26; h0 = d0 & M26;
+		d1 += c; c = d1 >>> 26; h1 = d1 & M26;
+		d2 += c; c = d2 >>> 26; h2 = d2 & M26;
+		d3 += c; c = d3 >>> 26; h3 = d3 & M26;
+		d4 += c; c = d4 >>> 26; h4 = d4 & M26;
+		h0 += c * 5; c = h0 >>> 26; h0 &= M26;
+		h1 += c;
+	}
+}
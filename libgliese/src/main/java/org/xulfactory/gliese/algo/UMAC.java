@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese.algo;
+
+import java.security.InvalidKeyException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.xulfactory.gliese.MacAlgorithm;
+
+/**
+ * Base implementation of the {@code umac-64@openssh.com} and
+ * {@code umac-128@openssh.com} algorithms and of their encrypt-then-MAC
+ * variants. The JCE providers do not implement UMAC, the returned
+ * {@code Mac} is backed by a {@link UMACSpi}.
+ *
+ * @author sirot
+ */
+public class UMAC implements MacAlgorithm
+{
+	/**
+	 * The {@code umac-64@openssh.com} algorithm
+	 */
+	public static class UMAC64 extends UMAC
+	{
+		public UMAC64()
+		{
+			super("umac-64@openssh.com", 8, false);
+		}
+	}
+
+	/**
+	 * The {@code umac-128@openssh.com} algorithm
+	 */
+	public static class UMAC128 extends UMAC
+	{
+		public UMAC128()
+		{
+			super("umac-128@openssh.com", 16, false);
+		}
+	}
+
+	/**
+	 * The {@code umac-64-etm@openssh.com} algorithm
+	 */
+	public static class UMAC64ETM extends UMAC
+	{
+		public UMAC64ETM()
+		{
+			super("umac-64-etm@openssh.com", 8, true);
+		}
+	}
+
+	/**
+	 * The {@code umac-128-etm@openssh.com} algorithm
+	 */
+	public static class UMAC128ETM extends UMAC
+	{
+		public UMAC128ETM()
+		{
+			super("umac-128-etm@openssh.com", 16, true);
+		}
+	}
+
+	/** Wraps the UMAC implementation into a JCE {@code Mac} */
+	private static final class UMACMac extends Mac
+	{
+		UMACMac(UMACSpi spi, String name)
+		{
+			super(spi, null, name);
+		}
+	}
+
+	private static final int KEY_LENGTH = 16;
+
+	private final String name;
+	private final int length;
+	private final boolean etm;
+
+	protected UMAC(String name, int length, boolean etm)
+	{
+		this.name = name;
+		this.length = length;
+		this.etm = etm;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public int getLength()
+	{
+		return length;
+	}
+
+	public int getKeyLength()
+	{
+		return KEY_LENGTH;
+	}
+
+	public boolean isEncryptThenMac()
+	{
+		return etm;
+	}
+
+	public Mac getInstance(byte[] key)
+	{
+		try {
+			Mac mac = new UMACMac(new UMACSpi(length), name);
+			mac.init(new SecretKeySpec(key, "UMAC"));
+			return mac;
+		} catch (InvalidKeyException ike) {
+			throw new Error(ike);// FIXME
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese.algo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.MacSpi;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>
+ * UMAC message authentication code (RFC 4418) as used by the
+ * {@code umac-64@openssh.com} and {@code umac-128@openssh.com} MACs. The
+ * message is hashed by UHASH: NH over the 1024 bytes chunks, a polynomial
+ * hash over the chunk hashes and an inner product hash. The tag is the
+ * hash xored with a pad obtained by encrypting the nonce with AES.
+ * </p>
+ *
+ * <p>
+ * SSH computes the MAC over the packet sequence number followed by the
+ * packet, but UMAC takes the sequence number as its 8 bytes nonce: the
+ * first four bytes given after each reset are taken as the low bytes of
+ * the nonce instead of being hashed. The state is allocated once, so
+ * hashing a packet does not allocate. As in the reference implementation
+ * the polynomial hash is not extended to 128 bits, which limits the
+ * messages to 16MB.
+ * </p>
+ *
+ * @author sirot
+ */
+final class UMACSpi extends MacSpi
+{
+	private static final int CHUNK = 1024;
+	/** Maximum number of chunks hashed by the 64 bits polynomial */
+	private static final int MAX_CHUNKS = 0x4000;
+	private static final long M32 = 0xffffffffL;
+	private static final long P36 = (1L << 36) - 5;
+	/** 2^64 - 59 */
+	private static final long P64 = -59L;
+	private static final long MASK64 = 0x01ffffff01ffffffL;
+
+	private final int tagLength;
+	private final int iters;
+	private Cipher pdf;
+	private int[] l1key;
+	private long[] l2key;
+	private long[] l3key1;
+	private int[] l3key2;
+
+	private final byte[] chunk = new byte[CHUNK];
+	private final IntBuffer words = ByteBuffer.wrap(chunk)
+		.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+	/** Words of the current chunk */
+	private final int[] m = new int[CHUNK / 4];
+	/** Bytes in the current chunk */
+	private int len = 0;
+	/** Chunks hashed so far */
+	private int chunks = 0;
+	private final long[] nh;
+	private final long[] first;
+	private final long[] poly;
+	/** Nonce followed by zeros, then the nonce of the cached pad */
+	private final byte[] nonce = new byte[16];
+	private final byte[] padNonce = new byte[16];
+	private final byte[] pad = new byte[16];
+	private boolean padValid = false;
+	/** Nonce bytes received */
+	private int seqLength = 0;
+	private final byte[] one = new byte[1];
+
+	/**
+	 * Creates the MAC.
+	 *
+	 * @param tagLength  the tag length: 4, 8, 12 or 16 bytes
+	 */
+	UMACSpi(int tagLength)
+	{
+		this.tagLength = tagLength;
+		this.iters = tagLength / 4;
+		this.nh = new long[iters];
+		this.first = new long[iters];
+		this.poly = new long[iters];
+	}
+
+	/**
+	 * Sets the whole nonce of the next message, instead of taking the
+	 * sequence number from the message.
+	 *
+	 * @param n  the nonce, at most 8 bytes
+	 */
+	void setNonce(byte[] n)
+	{
+		Arrays.fill(nonce, (byte)0);
+		System.arraycopy(n, 0, nonce, 0, n.length);
+		seqLength = 4;
+	}
+
+	@Override
+	protected int engineGetMacLength()
+	{
+		return tagLength;
+	}
+
+	@Override
+	protected void engineInit(Key key, AlgorithmParameterSpec params)
+		throws InvalidKeyException, InvalidAlgorithmParameterException
+	{
+		if (params != null) {
+			throw new InvalidAlgorithmParameterException(
+				"No parameter expected");
+		}
+		try {
+			Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+			aes.init(Cipher.ENCRYPT_MODE,
+				new SecretKeySpec(key.getEncoded(), "AES"));
+			pdf = Cipher.getInstance("AES/ECB/NoPadding");
+			pdf.init(Cipher.ENCRYPT_MODE,
+				new SecretKeySpec(kdf(aes, 0, 16).array(), "AES"));
+			ByteBuffer b = kdf(aes, 1, CHUNK + (iters - 1) * 16);
+			l1key = new int[b.remaining() / 4];
+			b.asIntBuffer().get(l1key);
+			b = kdf(aes, 2, iters * 24);
+			l2key = new long[iters];
+			for (int i = 0; i < iters; i++) {
+				l2key[i] = b.getLong(i * 24) & MASK64;
+			}
+			/* the first half of the inner product hits zeros */
+			b = kdf(aes, 3, iters * 64);
+			l3key1 = new long[iters * 4];
+			for (int i = 0; i < l3key1.length; i++) {
+				l3key1[i] = Long.remainderUnsigned(
+					b.getLong(((i >> 2) * 8 + 4 + (i & 3)) * 8), P36);
+			}
+			b = kdf(aes, 4, iters * 4);
+			l3key2 = new int[iters];
+			b.asIntBuffer().get(l3key2);
+		} catch (InvalidKeyException ike) {
+			throw ike;
+		} catch (GeneralSecurityException gse) {
+			throw new InvalidKeyException(gse);
+		}
+		padValid = false;
+		engineReset();
+	}
+
+	/**
+	 * Derives key material from the AES key.
+	 */
+	private static ByteBuffer kdf(Cipher aes, int index, int n)
+		throws GeneralSecurityException
+	{
+		ByteBuffer in = ByteBuffer.allocate(16);
+		ByteBuffer out = ByteBuffer.allocate((n + 15) & ~15);
+		for (long i = 1; out.hasRemaining(); i++) {
+			in.clear();
+			in.putLong((long)index).putLong(i).flip();
+			aes.update(in, out);
+		}
+		out.clear();
+		out.limit(n);
+		return out;
+	}
+
+	@Override
+	protected void engineUpdate(byte input)
+	{
+		one[0] = input;
+		engineUpdate(one, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int off, int n)
+	{
+		while (n > 0 && seqLength < 4) {
+			nonce[4 + seqLength++] = input[off++];
+			n--;
+		}
+		while (n > 0) {
+			if (len == CHUNK) {
+				/* a full chunk is the last one until more data comes */
+				hash(CHUNK);
+				len = 0;
+			}
+			int k = Math.min(n, CHUNK - len);
+			System.arraycopy(input, off, chunk, len, k);
+			len += k;
+			off += k;
+			n -= k;
+		}
+	}
+
+	@Override
+	protected void engineUpdate(ByteBuffer input)
+	{
+		while (input.hasRemaining() && seqLength < 4) {
+			nonce[4 + seqLength++] = input.get();
+		}
+		while (input.hasRemaining()) {
+			if (len == CHUNK) {
+				hash(CHUNK);
+				len = 0;
+			}
+			int k = Math.min(input.remaining(), CHUNK - len);
+			input.get(chunk, len, k);
+			len += k;
+		}
+	}
+
+	@Override
+	protected byte[] engineDoFinal()
+	{
+		byte[] tag = new byte[tagLength];
+		hash(len);
+		for (int i = 0; i < iters; i++) {
+			long b;
+			if (chunks == 1) {
+				b = first[i];
+			} else {
+				b = poly[i];
+				if (Long.compareUnsigned(b, P64) >= 0) {
+					b -= P64;
+				}
+			}
+			int c = (int)(innerProduct(i, b) ^ l3key2[i]);
+			tag[4 * i] = (byte)(c >>> 24);
+			tag[4 * i + 1] = (byte)(c >>> 16);
+			tag[4 * i + 2] = (byte)(c >>> 8);
+			tag[4 * i + 3] = (byte)c;
+		}
+		int index = 0;
+		if (tagLength <= 8) {
+			int mask = 16 / tagLength - 1;
+			index = nonce[7] & mask;
+			nonce[7] &= ~mask;
+		}
+		if (!padValid || !Arrays.equals(nonce, padNonce)) {
+			try {
+				pdf.update(nonce, 0, 16, pad, 0);
+			} catch (ShortBufferException sbe) {
+				/* Does not happen */
+				throw new Error(sbe);
+			}
+			System.arraycopy(nonce, 0, padNonce, 0, 16);
+			padValid = true;
+		}
+		for (int i = 0; i < tagLength; i++) {
+			tag[i] ^= pad[index * tagLength + i];
+		}
+		engineReset();
+		return tag;
+	}
+
+	@Override
+	protected void engineReset()
+	{
+		len = 0;
+		chunks = 0;
+		seqLength = 0;
+		Arrays.fill(nonce, (byte)0);
+	}
+
+	/**
+	 * Hashes the current chunk with NH and feeds the result to the
+	 * polynomial hash.
+	 *
+	 * @param n  the length of the chunk
+	 */
+	private void hash(int n)
+	{
+		if (chunks == MAX_CHUNKS) {
+			throw new IllegalStateException("Message too long");
+		}
+		int padded = n == 0 ? 32 : (n + 31) & ~31;
+		Arrays.fill(chunk, n, padded, (byte)0);
+		words.clear();
+		words.get(m, 0, padded / 4);
+		for (int i = 0; i < iters; i++) {
+			nh[i] = nh(m, padded / 4, l1key, 4 * i);
+		}
+		for (int i = 0; i < iters; i++) {
+			long a = nh[i] + 8L * n;
+			if (chunks == 0) {
+				first[i] = a;
+			} else {
+				if (chunks == 1) {
+					poly[i] = polyHash(1, l2key[i], first[i]);
+				}
+				poly[i] = polyHash(poly[i], l2key[i], a);
+			}
+		}
+		chunks++;
+	}
+
+	/**
+	 * Computes the NH hash of the message words with the key words
+	 * starting at {@code o}.
+	 */
+	private static long nh(int[] m, int n, int[] k, int o)
+	{
+		long y = 0;
+		for (int j = 0; j < n; j += 8) {
+			y += ((m[j] + k[o + j]) & M32) * ((m[j + 4] + k[o + j + 4]) & M32)
+				+ ((m[j + 1] + k[o + j + 1]) & M32)
+				* ((m[j + 5] + k[o + j + 5]) & M32)
+				+ ((m[j + 2] + k[o + j + 2]) & M32)
+				* ((m[j + 6] + k[o + j + 6]) & M32)
+				+ ((m[j + 3] + k[o + j + 3]) & M32)
+				* ((m[j + 7] + k[o + j + 7]) & M32);
+		}
+		return y;
+	}
+
+	private static long polyHash(long cur, long key, long data)
+	{
+		if ((data >>> 32) == M32) {
+			cur = poly64(cur, key, P64 - 1);
+			data -= 59;
+		}
+		return poly64(cur, key, data);
+	}
+
+	/**
+	 * Computes {@code cur * key + data} modulo 2^64 - 59, the result
+	 * being possibly not fully reduced.
+	 */
+	private static long poly64(long cur, long key, long data)
+	{
+		long kh = key >>> 32;
+		long kl = key & M32;
+		long ch = cur >>> 32;
+		long cl = cur & M32;
+		long x = kh * cl + ch * kl;
+		long res = (kh * ch + (x >>> 32)) * 59 + kl * cl;
+		long t = x << 32;
+		res += t;
+		if (Long.compareUnsigned(res, t) < 0) {
+			res += 59;
+		}
+		res += data;
+		if (Long.compareUnsigned(res, data) < 0) {
+			res += 59;
+		}
+		return res;
+	}
+
+	/**
+	 * Computes the inner product hash of the 64 bits polynomial hash.
+	 */
+	private long innerProduct(int i, long b)
+	{
+		long[] k = l3key1;
+		int o = 4 * i;
+		long t = k[o] * (b >>> 48)
+			+ k[o + 1] * ((b >>> 32) & 0xffff)
+			+ k[o + 2] * ((b >>> 16) & 0xffff)
+			+ k[o + 3] * (b & 0xffff);
+		return (t % P36) & M32;
+	}
+}
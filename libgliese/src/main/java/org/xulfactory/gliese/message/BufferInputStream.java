@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.message;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@code InputStream} reading the remaining bytes of a buffer. The
+ * buffer position is moved as the bytes are read.
+ *
+ * @author sirot
+ */
+class BufferInputStream extends InputStream
+{
+	private final ByteBuffer buf;
+
+	BufferInputStream(ByteBuffer buf)
+	{
+		this.buf = buf;
+	}
+
+	@Override
+	public int read()
+	{
+		if (!buf.hasRemaining()) {
+			return -1;
+		}
+		return buf.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len)
+	{
+		if (len == 0) {
+			return 0;
+		}
+		if (!buf.hasRemaining()) {
+			return -1;
+		}
+		len = Math.min(len, buf.remaining());
+		buf.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n)
+	{
+		int len = (int)Math.min(n, buf.remaining());
+		buf.position(buf.position() + len);
+		return len;
+	}
+
+	@Override
+	public int available()
+	{
+		return buf.remaining();
+	}
+}
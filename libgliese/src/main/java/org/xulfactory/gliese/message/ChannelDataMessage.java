@@ -17,12 +17,28 @@
 
 package org.xulfactory.gliese.message;
 
+import org.xulfactory.gliese.util.BufferPool;
+import org.xulfactory.gliese.util.PooledBuffer;
 import org.xulfactory.gliese.util.Utils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
+ * <p>
+ * Channel data message. The data is not copied: a received message holds
+ * a view of the decrypted packet buffer and a message to be sent holds a
+ * view of the caller's array until it is encoded, unless it is detached
+ * to be encoded later by the writer thread.
+ * </p>
+ *
+ * <p>
+ * A received message keeps a reference on the packet buffer lease. The
+ * consumer may retain the lease to keep the data beyond the dispatch of
+ * the message and must call {@link #release()} once done with the
+ * message.
+ * </p>
  *
  * @author sirot
  */
@@ -31,7 +47,9 @@ public class ChannelDataMessage extends SSHMessage
 	public static final int ID = 94;
 
 	private int channelId;
-	private byte[] data;
+	private ByteBuffer data;
+	private PooledBuffer lease;
+	private Runnable encodedListener;
 
 	public ChannelDataMessage()
 	{
@@ -42,14 +60,42 @@ public class ChannelDataMessage extends SSHMessage
 	protected void decode(InputStream in) throws IOException
 	{
 		channelId = Utils.decodeInt(in);
-		data = Utils.decodeBytes(in);
+		data = ByteBuffer.wrap(Utils.decodeBytes(in));
+	}
+
+	@Override
+	void decode(ByteBuffer payload, PooledBuffer lease) throws IOException
+	{
+		if (payload.remaining() < 8) {
+			throw new IOException("Truncated input");
+		}
+		channelId = payload.getInt();
+		int len = payload.getInt();
+		if (len < 0 || len > payload.remaining()) {
+			throw new IOException("Truncated input");
+		}
+		data = payload.slice();
+		data.limit(len);
+		payload.position(payload.position() + len);
+		this.lease = lease == null ? null : lease.retain();
 	}
 
 	@Override
 	protected void encode(OutputStream out) throws IOException
 	{
 		Utils.encodeInt(out, channelId);
-		Utils.encodeBytes(out, data);
+		Utils.encodeInt(out, data.remaining());
+		if (data.hasArray()) {
+			out.write(data.array(), data.arrayOffset() + data.position(),
+				data.remaining());
+		} else if (out instanceof PacketOutputStream) {
+			/* direct or mapped data, copied once into the packet */
+			((PacketOutputStream)out).write(data.duplicate());
+		} else {
+			byte[] tmp = new byte[data.remaining()];
+			data.duplicate().get(tmp);
+			out.write(tmp);
+		}
 	}
 
 	public int getChannelId()
@@ -57,9 +103,88 @@ public class ChannelDataMessage extends SSHMessage
 		return channelId;
 	}
 
+	/**
+	 * Retrieves a copy of the data.
+	 *
+	 * @return  the data
+	 */
 	public byte[] getData()
 	{
-		return data;
+		byte[] tmp = new byte[data.remaining()];
+		data.duplicate().get(tmp);
+		return tmp;
+	}
+
+	/**
+	 * Retrieves a read-only view of the data.
+	 *
+	 * @return  the data
+	 */
+	public ByteBuffer getDataBuffer()
+	{
+		return data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Retrieves the lease on the packet buffer holding the data.
+	 *
+	 * @return  the lease or {@code null} if the data is not pooled
+	 */
+	public PooledBuffer getLease()
+	{
+		return lease;
+	}
+
+	/**
+	 * Releases the reference on the packet buffer. The data must not be
+	 * accessed afterwards unless the lease has been retained.
+	 */
+	public void release()
+	{
+		if (lease != null) {
+			lease.release();
+			lease = null;
+		}
+	}
+
+	@Override
+	void detach()
+	{
+		if (lease == null) {
+			PooledBuffer copy = BufferPool.getDefault().acquire(data.remaining());
+			copy.buffer().put(data.duplicate()).flip();
+			data = copy.buffer();
+			lease = copy;
+		}
+	}
+
+	@Override
+	int sizeHint()
+	{
+		return data.remaining() + 8;
+	}
+
+	@Override
+	void encoded()
+	{
+		release();
+		Runnable l = encodedListener;
+		if (l != null) {
+			encodedListener = null;
+			l.run();
+		}
+	}
+
+	/**
+	 * Sets the action run once the message has been encoded into a
+	 * packet. The action is run by the encoding thread and must not
+	 * block.
+	 *
+	 * @param listener  the action
+	 */
+	public void setEncodedListener(Runnable listener)
+	{
+		this.encodedListener = listener;
 	}
 
 	public void setChannelId(int channelId)
@@ -72,10 +197,29 @@ public class ChannelDataMessage extends SSHMessage
 		setData(buf, 0, buf.length);
 	}
 
+	/**
+	 * Sets the data to be sent. The array is not copied and must not be
+	 * modified until the message has been written.
+	 *
+	 * @param buf  the data array
+	 * @param off  the data offset
+	 * @param len  the data length
+	 */
 	public void setData(byte[] buf, int off, int len)
 	{
-		this.data = new byte[len];
-		System.arraycopy(buf, off, data, 0, len);
+		this.data = ByteBuffer.wrap(buf, off, len);
+	}
+
+	/**
+	 * Sets the data to be sent: the remaining bytes of the buffer. The
+	 * buffer is not copied and must not be modified until the message has
+	 * been written.
+	 *
+	 * @param buf  the data buffer
+	 */
+	public void setData(ByteBuffer buf)
+	{
+		this.data = buf;
 	}
 
 	public String toString()
@@ -83,7 +227,7 @@ public class ChannelDataMessage extends SSHMessage
 		StringBuilder sb = new StringBuilder();
 		sb.append("SSH_MSG_CHANNEL_DATA, ");
 		sb.append("recipient=" + channelId);
-		sb.append(", data length=" + data.length);
+		sb.append(", data length=" + data.remaining());
 		return sb.toString();
 	}
 }
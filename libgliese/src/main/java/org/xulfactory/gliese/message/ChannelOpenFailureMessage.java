@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.message;
+
+import org.xulfactory.gliese.util.Utils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ *
+ * @author sirot
+ */
+public class ChannelOpenFailureMessage extends SSHMessage
+{
+	public static final int ID = 92;
+
+	public static final int ADMINISTRATIVELY_PROHIBITED =             1;
+	public static final int CONNECT_FAILED =                          2;
+	public static final int UNKNOWN_CHANNEL_TYPE =                    3;
+	public static final int RESOURCE_SHORTAGE =                       4;
+
+	private int recipientChannelId;
+	private int reasonCode;
+	private String description;
+	private String tag;
+
+	public ChannelOpenFailureMessage()
+	{
+		super(ID);
+	}
+
+	public ChannelOpenFailureMessage(int recipientChannelId, int reasonCode,
+		String description, String tag)
+	{
+		super(ID);
+		this.recipientChannelId = recipientChannelId;
+		this.reasonCode = reasonCode;
+		this.description = description;
+		this.tag = tag;
+	}
+
+	@Override
+	protected void decode(InputStream in) throws IOException
+	{
+		recipientChannelId = Utils.decodeInt(in);
+		reasonCode = Utils.decodeInt(in);
+		description = Utils.decodeStringUTF8(in);
+		tag = Utils.decodeString(in);
+	}
+
+	@Override
+	protected void encode(OutputStream out) throws IOException
+	{
+		Utils.encodeInt(out, recipientChannelId);
+		Utils.encodeInt(out, reasonCode);
+		Utils.encodeStringUTF8(out, description);
+		Utils.encodeString(out, tag);
+	}
+
+	public int getRecipientChannelId()
+	{
+		return recipientChannelId;
+	}
+
+	public int getReasonCode()
+	{
+		return reasonCode;
+	}
+
+	public String getDescription()
+	{
+		return description;
+	}
+
+	public String getTag()
+	{
+		return tag;
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("SSH_MSG_CHANNEL_OPEN_FAILURE, ");
+		sb.append("recipient=" + recipientChannelId);
+		sb.append(", reason code=" + reasonCode);
+		sb.append(", description=" + description);
+		return sb.toString();
+	}
+}
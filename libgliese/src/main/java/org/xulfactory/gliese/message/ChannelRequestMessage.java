@@ -19,7 +19,10 @@ package org.xulfactory.gliese.message;
 
 import org.xulfactory.gliese.util.Utils;
 import org.xulfactory.gliese.message.ExecChannelRequest.ExecChannelRequestCodec;
+import org.xulfactory.gliese.message.EnvChannelRequest.EnvChannelRequestCodec;
 import org.xulfactory.gliese.message.ExitStatusChannelRequest.ExitStatusChannelRequestCodec;
+import org.xulfactory.gliese.message.PtyChannelRequest.PtyChannelRequestCodec;
+import org.xulfactory.gliese.message.SubsystemChannelRequest.SubsystemChannelRequestCodec;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -52,6 +55,9 @@ public class ChannelRequestMessage extends SSHMessage
 	static {
 		register(ExecChannelRequest.TYPE, new ExecChannelRequestCodec());
 		register(ExitStatusChannelRequest.TYPE, new ExitStatusChannelRequestCodec());
+		register(EnvChannelRequest.TYPE, new EnvChannelRequestCodec());
+		register(PtyChannelRequest.TYPE, new PtyChannelRequestCodec());
+		register(SubsystemChannelRequest.TYPE, new SubsystemChannelRequestCodec());
 //		register(PublicKeyMethodData.METHOD, new PublicKeyMethodCodec());
 //		register(KeyboardInteractiveMethodData.METHOD, new KeyboardInteractiveMethodCodec());
 	}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.message;
+
+import org.xulfactory.gliese.util.Utils;
+import org.xulfactory.gliese.message.ChannelRequestMessage.ChannelRequest;
+import org.xulfactory.gliese.message.ChannelRequestMessage.ChannelRequestCodec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Environment variable passing request.
+ *
+ * @author sirot
+ */
+public class EnvChannelRequest implements ChannelRequest
+{
+	public static final String TYPE = "env";
+
+	private String name;
+	private String value;
+
+	private EnvChannelRequest()
+	{
+	}
+
+	public EnvChannelRequest(String name, String value)
+	{
+		this.name = name;
+		this.value = value;
+	}
+
+	public String getRequestType()
+	{
+		return TYPE;
+	}
+
+	public static class EnvChannelRequestCodec
+		implements ChannelRequestCodec<EnvChannelRequest>
+	{
+		public EnvChannelRequest decode(InputStream in)
+			throws IOException
+		{
+			EnvChannelRequest p = new EnvChannelRequest();
+			p.name = Utils.decodeString(in);
+			p.value = Utils.decodeStringUTF8(in);
+			return p;
+		}
+
+		public void encode(OutputStream out, EnvChannelRequest p)
+			throws IOException
+		{
+			Utils.encodeString(out, p.name);
+			Utils.encodeStringUTF8(out, p.value);
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public String getValue()
+	{
+		return value;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.message;
+
+import org.xulfactory.gliese.util.Utils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The {@code SSH_MSG_GLOBAL_REQUEST} message. The request specific data
+ * of the received requests is ignored: the client supports no global
+ * request.
+ *
+ * @author sirot
+ */
+public class GlobalRequestMessage extends SSHMessage
+{
+	public static final int ID = 80;
+
+	private String requestName;
+	private boolean wantReply;
+
+	public GlobalRequestMessage()
+	{
+		super(ID);
+	}
+
+	public GlobalRequestMessage(String requestName, boolean wantReply)
+	{
+		super(ID);
+		this.requestName = requestName;
+		this.wantReply = wantReply;
+	}
+
+	@Override
+	protected void decode(InputStream in) throws IOException
+	{
+		requestName = Utils.decodeString(in);
+		wantReply = Utils.decodeBoolean(in);
+	}
+
+	@Override
+	protected void encode(OutputStream out) throws IOException
+	{
+		Utils.encodeString(out, requestName);
+		Utils.encodeBoolean(out, wantReply);
+	}
+
+	public String getRequestName()
+	{
+		return requestName;
+	}
+
+	public void setRequestName(String requestName)
+	{
+		this.requestName = requestName;
+	}
+
+	public boolean getWantReply()
+	{
+		return wantReply;
+	}
+
+	public void setWantReply(boolean wantReply)
+	{
+		this.wantReply = wantReply;
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("SSH_MSG_GLOBAL_REQUEST, ");
+		sb.append("name=" + requestName).append(", ");
+		sb.append("want_reply=" + wantReply);
+		return sb.toString();
+	}
+}
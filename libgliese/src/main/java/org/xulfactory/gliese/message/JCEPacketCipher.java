@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+package org.xulfactory.gliese.message;
+
+import java.nio.ByteBuffer;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import org.xulfactory.gliese.PacketCipher;
+
+/**
+ * {@link PacketCipher} backed by a JCE cipher.
+ *
+ * @author sirot
+ */
+final class JCEPacketCipher implements PacketCipher
+{
+	private final Cipher cipher;
+
+	JCEPacketCipher(Cipher cipher)
+	{
+		this.cipher = cipher;
+	}
+
+	public int getBlockSize()
+	{
+		return cipher.getBlockSize();
+	}
+
+	public void update(ByteBuffer in, ByteBuffer out)
+	{
+		try {
+			if (in.hasArray() && out.hasArray()) {
+				int len = in.remaining();
+				int l = cipher.update(in.array(),
+					in.arrayOffset() + in.position(), len, out.array(),
+					out.arrayOffset() + out.position());
+				in.position(in.position() + len);
+				out.position(out.position() + l);
+			} else {
+				cipher.update(in, out);
+			}
+		} catch (ShortBufferException sbe) {
+			/* Does not happen */
+			throw new Error(sbe);
+		}
+	}
+}
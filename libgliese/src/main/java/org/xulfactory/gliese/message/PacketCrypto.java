@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.message;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import org.xulfactory.gliese.AEADCipher;
+import org.xulfactory.gliese.PacketCipher;
+
+/**
+ * The algorithms protecting the packets of one direction: either a
+ * cipher and a MAC, computed over the plain or the encrypted packet, or an
+ * authenticated encryption cipher.
+ *
+ * @author sirot
+ */
+public final class PacketCrypto
+{
+	private final PacketCipher cipher;
+	private final Mac mac;
+	private final AEADCipher aead;
+	private final boolean etm;
+
+	/**
+	 * Creates the protection by a cipher and a MAC.
+	 *
+	 * @param cipher  the cipher or {@code null}
+	 * @param mac  the mac or {@code null}
+	 */
+	public PacketCrypto(Cipher cipher, Mac mac)
+	{
+		this(cipher, mac, false);
+	}
+
+	/**
+	 * Creates the protection by a cipher and a MAC.
+	 *
+	 * @param cipher  the cipher or {@code null}
+	 * @param mac  the mac or {@code null}
+	 * @param etm  {@code true} if the MAC is computed over the encrypted
+	 *        packet
+	 */
+	public PacketCrypto(Cipher cipher, Mac mac, boolean etm)
+	{
+		this(cipher == null ? null : new JCEPacketCipher(cipher), mac, etm);
+	}
+
+	/**
+	 * Creates the protection by a packet cipher and a MAC.
+	 *
+	 * @param cipher  the cipher or {@code null}
+	 * @param mac  the mac or {@code null}
+	 */
+	public PacketCrypto(PacketCipher cipher, Mac mac)
+	{
+		this(cipher, mac, false);
+	}
+
+	/**
+	 * Creates the protection by a packet cipher and a MAC.
+	 *
+	 * @param cipher  the cipher or {@code null}
+	 * @param mac  the mac or {@code null}
+	 * @param etm  {@code true} if the MAC is computed over the encrypted
+	 *        packet
+	 */
+	public PacketCrypto(PacketCipher cipher, Mac mac, boolean etm)
+	{
+		this.cipher = cipher;
+		this.mac = mac;
+		this.aead = null;
+		this.etm = etm && mac != null;
+	}
+
+	/**
+	 * Creates the protection by an authenticated encryption cipher.
+	 *
+	 * @param aead  the cipher
+	 */
+	public PacketCrypto(AEADCipher aead)
+	{
+		this.cipher = null;
+		this.mac = null;
+		this.aead = aead;
+		this.etm = false;
+	}
+
+	PacketCipher getCipher()
+	{
+		return cipher;
+	}
+
+	Mac getMac()
+	{
+		return mac;
+	}
+
+	AEADCipher getAEADCipher()
+	{
+		return aead;
+	}
+
+	boolean isEncryptThenMac()
+	{
+		return etm;
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.message;
+
+import org.xulfactory.gliese.AEADCipher;
+import org.xulfactory.gliese.PacketCipher;
+import org.xulfactory.gliese.SSHException;
+import org.xulfactory.gliese.util.BufferPool;
+import org.xulfactory.gliese.util.PooledBuffer;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+/**
+ * <p>
+ * Incremental packet decoder.
+ *
+ * The decoder is fed with the raw bytes received from the peer as they
+ * arrive and returns the packet payloads once they are complete. When a
+ * packet is only partially available the decoder keeps its state and
+ * resumes on the next call, so it can be driven by non-blocking reads.
+ * The blocking {@link PacketReader} uses {@link #needed()} to read exactly
+ * the bytes of the next decoding step.
+ * </p>
+ *
+ * <p>
+ * The first cipher block is decrypted as soon as it is available to learn
+ * the packet length; the rest of the packet is decrypted in a single call
+ * once fully received, into a buffer leased from the {@link BufferPool}.
+ * With an {@link AEADCipher} the length field is read first, then the
+ * rest of the packet and its tag are verified and decrypted at once.
+ * With an encrypt-then-MAC algorithm the length field is read in clear
+ * too and the MAC is verified over the encrypted packet before anything
+ * is decrypted.
+ * After a {@code SSH_MSG_NEWKEYS} payload has been returned the decoder
+ * stops until {@link #updateCrypto(Cipher, Mac)} is called since the
+ * following packets use the new keys.
+ * </p>
+ *
+ * @author sirot
+ */
+public class PacketDecoder
+{
+	/** Maximum accepted packet length (256KB plus headers) */
+	public static final int MAX_PACKET_LENGTH = 0x40000 + 0x400;
+
+	private final BufferPool pool;
+	private PacketCipher cipher;
+	private Mac mac;
+	private AEADCipher aead;
+	/** Whether the MAC is computed over the encrypted packet */
+	private boolean etm;
+	private int bs;
+	private long seq = 0;
+	/** First block of the current packet */
+	private ByteBuffer head;
+	/** Decrypted packet, starting with the packet length field */
+	private PooledBuffer packet;
+	private final byte[] seqbuf = new byte[4];
+	/** Received MAC */
+	private byte[] code;
+	/** Computed MAC */
+	private byte[] expected;
+	/** Packet length of the current packet, -1 if not known yet */
+	private int plen = -1;
+	private boolean suspended = false;
+	private boolean macFailure = false;
+
+	/**
+	 * Creates a new {@code PacketDecoder} with no encryption and no
+	 * integrity check, using the default buffer pool.
+	 */
+	public PacketDecoder()
+	{
+		this(BufferPool.getDefault());
+	}
+
+	/**
+	 * Creates a new {@code PacketDecoder} with no encryption and no
+	 * integrity check.
+	 *
+	 * @param pool  the pool of the packet buffers
+	 */
+	public PacketDecoder(BufferPool pool)
+	{
+		this.pool = pool;
+		updateCrypto(null, null);
+	}
+
+	/**
+	 * Updates the cipher and the mac used to decode the next packets.
+	 * Resumes the decoder if it was waiting for the new keys.
+	 *
+	 * @param cipher  the server to client cipher
+	 * @param mac  the server to client mac
+	 */
+	public void updateCrypto(Cipher cipher, Mac mac)
+	{
+		updateCrypto(new PacketCrypto(cipher, mac));
+	}
+
+	/**
+	 * Updates the algorithms used to decode the next packets. Resumes the
+	 * decoder if it was waiting for the new keys.
+	 *
+	 * @param crypto  the server to client algorithms
+	 */
+	public synchronized void updateCrypto(PacketCrypto crypto)
+	{
+		this.cipher = crypto.getCipher();
+		this.mac = crypto.getMac();
+		this.aead = crypto.getAEADCipher();
+		this.etm = crypto.isEncryptThenMac();
+		if (aead != null) {
+			this.bs = Math.max(aead.getBlockLength(), 8);
+			this.code = new byte[aead.getTagLength()];
+			this.expected = null;
+		} else {
+			this.bs = cipher == null ? 8
+				: Math.max(cipher.getBlockSize(), 8);
+			this.code = mac == null ? null : new byte[mac.getMacLength()];
+			this.expected = mac == null ? null
+				: new byte[mac.getMacLength()];
+		}
+		this.head = ByteBuffer.allocate(bs);
+		this.suspended = false;
+	}
+
+	/**
+	 * Indicates whether the decoder waits for the new keys.
+	 *
+	 * @return {@code true} if a {@code SSH_MSG_NEWKEYS} has been decoded
+	 *         and the keys have not been updated yet
+	 */
+	public synchronized boolean isSuspended()
+	{
+		return suspended;
+	}
+
+	/**
+	 * Decodes the next packet from the buffer and returns its payload.
+	 * See {@link #next(ByteBuffer)} and {@link #take()}.
+	 *
+	 * @param src  the received bytes, ready to be read
+	 * @return  the packet payload (message ID followed by the message
+	 *          data) or {@code null} if more data is needed
+	 * @throws SSHException  if the packet is malformed or the MAC is
+	 *         invalid
+	 */
+	public synchronized PooledBuffer decode(ByteBuffer src)
+		throws SSHException
+	{
+		if (!next(src)) {
+			return null;
+		}
+		return take();
+	}
+
+	/**
+	 * Decodes the next packet from the buffer. The bytes consumed by the
+	 * decoder are removed from the buffer; the caller must keep the
+	 * remaining bytes and append the new ones before the next call.
+	 * Once the method returns {@code true} the payload must be retrieved
+	 * with {@link #take()} before the next call.
+	 *
+	 * @param src  the received bytes, ready to be read
+	 * @return  {@code true} if a packet has been decoded, {@code false} if
+	 *          more data is needed
+	 * @throws SSHException  if the packet is malformed or the MAC is
+	 *         invalid
+	 */
+	public synchronized boolean next(ByteBuffer src) throws SSHException
+	{
+		if (suspended) {
+			return false;
+		}
+		if (plen < 0) {
+			int hlen = aead != null || etm ? 4 : bs;
+			if (src.remaining() < hlen) {
+				return false;
+			}
+			head.clear();
+			int len;
+			if (aead != null || etm) {
+				ByteBuffer in = src.duplicate();
+				in.limit(in.position() + 4);
+				head.put(in);
+				src.position(in.position());
+				head.flip();
+				len = etm ? head.getInt(0)
+					: aead.getPacketLength((int)seq, head);
+			} else {
+				update(src, bs, head);
+				head.flip();
+				len = head.getInt(0);
+			}
+			if (len < 5 || len > MAX_PACKET_LENGTH
+					|| (len + 4 - hlen) % bs != 0) {
+				throw new SSHException("Invalid packet length: " + len);
+			}
+			packet = pool.acquire(len + 4);
+			if (aead != null || etm) {
+				packet.buffer().putInt(len);
+			} else {
+				packet.buffer().put(head);
+			}
+			plen = len;
+		}
+		if (src.remaining() < needed()) {
+			return false;
+		}
+		ByteBuffer buf = packet.buffer();
+		try {
+			if (aead != null) {
+				if (!aead.open((int)seq, head, src, plen, buf)) {
+					macFailure = true;
+					throw new SSHException("Bad MAC on input");
+				}
+			} else if (etm) {
+				/* authenticate the encrypted packet before decrypting it */
+				ByteBuffer in = src.duplicate();
+				in.limit(in.position() + plen);
+				ByteBuffer tag = src.duplicate();
+				tag.position(in.limit());
+				verify(head.duplicate(), in, tag);
+				update(src, plen, buf);
+				src.position(tag.position());
+			} else if (plen + 4 - bs > 0) {
+				/* decrypt the rest of the packet at once */
+				update(src, plen + 4 - bs, buf);
+			}
+			buf.flip();
+			if (mac != null && !etm) {
+				verify(null, buf.duplicate(), src);
+			}
+			int padlen = buf.get(4) & 0xff;
+			if (padlen < 4 || plen - padlen - 1 <= 0) {
+				throw new SSHException("Invalid padding length: " + padlen);
+			}
+		} catch (SSHException se) {
+			/* the decoder is not usable anymore, give the buffer back */
+			packet.release();
+			packet = null;
+			throw se;
+		}
+		seq = (seq + 1) & 0xffffffffL;
+		int len = plen - (buf.get(4) & 0xff) - 1;
+		plen = -1;
+		buf.position(5);
+		buf.limit(5 + len);
+		if (buf.get(5) == NewKeysMessage.ID) {
+			suspended = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Retrieves the payload of the last decoded packet. The caller owns
+	 * the returned lease and must release it.
+	 *
+	 * @return  the payload, between the position and the limit of the
+	 *          buffer
+	 */
+	public synchronized PooledBuffer take()
+	{
+		PooledBuffer p = packet;
+		packet = null;
+		return p;
+	}
+
+	/**
+	 * Retrieves the number of bytes needed to complete the current
+	 * decoding step: the first cipher block while the packet length is
+	 * unknown, then the rest of the packet and its MAC.
+	 *
+	 * @return  the number of bytes
+	 */
+	public synchronized int needed()
+	{
+		if (plen < 0) {
+			return aead != null || etm ? 4 : bs;
+		}
+		if (aead != null || etm) {
+			return plen + code.length;
+		}
+		return plen + 4 - bs + (code == null ? 0 : code.length);
+	}
+
+	/**
+	 * Indicates whether the decoding failed because of an invalid MAC.
+	 *
+	 * @return  {@code true} on MAC failure
+	 */
+	public boolean isMacFailure()
+	{
+		return macFailure;
+	}
+
+	/**
+	 * Verifies the MAC of the packet against the received MAC.
+	 *
+	 * @param head  the length field if not part of {@code data}, or
+	 *        {@code null}
+	 * @param data  the authenticated bytes of the packet
+	 * @param src  the received bytes, starting with the MAC
+	 */
+	private void verify(ByteBuffer head, ByteBuffer data, ByteBuffer src)
+		throws SSHException
+	{
+		seqbuf[0] = (byte)(seq >>> 24);
+		seqbuf[1] = (byte)(seq >>> 16);
+		seqbuf[2] = (byte)(seq >>> 8);
+		seqbuf[3] = (byte)seq;
+		mac.update(seqbuf);
+		if (head != null) {
+			mac.update(head);
+		}
+		mac.update(data);
+		try {
+			mac.doFinal(expected, 0);
+		} catch (ShortBufferException sbe) {
+			/* Does not happen */
+			throw new Error(sbe);
+		}
+		src.get(code);
+		if (!MessageDigest.isEqual(expected, code)) {
+			macFailure = true;
+			throw new SSHException("Bad MAC on input");
+		}
+	}
+
+	/**
+	 * Decrypts {@code len} bytes from the buffer into {@code dst}.
+	 */
+	private void update(ByteBuffer src, int len, ByteBuffer dst)
+		throws SSHException
+	{
+		ByteBuffer in = src.duplicate();
+		in.limit(in.position() + len);
+		if (cipher == null) {
+			dst.put(in);
+			src.position(in.position());
+			return;
+		}
+		int pos = dst.position();
+		cipher.update(in, dst);
+		src.position(in.position());
+		if (dst.position() - pos != len) {
+			throw new SSHException("Unexpected cipher output");
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.message;
+
+import org.xulfactory.gliese.AEADCipher;
+import org.xulfactory.gliese.PacketCipher;
+import org.xulfactory.gliese.util.BufferPool;
+import org.xulfactory.gliese.util.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Packet encoder. Wraps the messages into binary packets, computes the
+ * MAC and encrypts the packets. The packets must be sent in the order they
+ * have been encoded since the sequence number is part of the MAC.
+ *
+ * The message is encoded directly into a buffer leased from the
+ * {@link BufferPool}, then padded, authenticated and encrypted in place.
+ * With an {@link AEADCipher} the packet is encrypted and authenticated in
+ * a single pass and no MAC is computed. With an encrypt-then-MAC
+ * algorithm the packet length is left in clear and the MAC is computed
+ * over the encrypted packet.
+ *
+ * @author sirot
+ */
+public class PacketEncoder
+{
+	private final BufferPool pool;
+	private PacketCipher cipher;
+	private Mac mac;
+	private AEADCipher aead;
+	/** Whether the MAC is computed over the encrypted packet */
+	private boolean etm;
+	private int bs;
+	/** Length of the header excluded from the padding */
+	private int aad;
+	private long seq = 0;
+	private final byte[] seqbuf = new byte[4];
+	private final Random rnd = new Random();
+	private byte[] padding;
+	private byte[] code;
+
+	/**
+	 * Creates a new {@code PacketEncoder} with no encryption and no
+	 * integrity, using the default buffer pool.
+	 */
+	public PacketEncoder()
+	{
+		this(BufferPool.getDefault());
+	}
+
+	/**
+	 * Creates a new {@code PacketEncoder} with no encryption and no
+	 * integrity.
+	 *
+	 * @param pool  the pool of the packet buffers
+	 */
+	public PacketEncoder(BufferPool pool)
+	{
+		this.pool = pool;
+		updateCrypto(null, null);
+	}
+
+	/**
+	 * Updates the cipher and the mac used to encode the next packets.
+	 *
+	 * @param cipher  the client to server cipher
+	 * @param mac  the client to server mac
+	 */
+	public void updateCrypto(Cipher cipher, Mac mac)
+	{
+		updateCrypto(new PacketCrypto(cipher, mac));
+	}
+
+	/**
+	 * Updates the algorithms used to encode the next packets.
+	 *
+	 * @param crypto  the client to server algorithms
+	 */
+	public synchronized void updateCrypto(PacketCrypto crypto)
+	{
+		this.cipher = crypto.getCipher();
+		this.mac = crypto.getMac();
+		this.aead = crypto.getAEADCipher();
+		this.etm = crypto.isEncryptThenMac();
+		if (aead != null) {
+			this.bs = Math.max(aead.getBlockLength(), 8);
+			this.aad = 4;
+			this.code = null;
+		} else {
+			this.bs = cipher == null ? 8
+				: Math.max(cipher.getBlockSize(), 8);
+			this.aad = etm ? 4 : 0;
+			this.code = mac == null ? null : new byte[mac.getMacLength()];
+		}
+		this.padding = new byte[bs + 4];
+	}
+
+	/**
+	 * Encodes the message into a binary packet ready to be sent. The
+	 * caller owns the returned lease and must release it once the packet
+	 * has been written.
+	 *
+	 * @param msg  the message
+	 * @return  the encrypted packet followed by the MAC or the tag, between the
+	 *          position and the limit of the buffer
+	 */
+	public synchronized PooledBuffer encode(SSHMessage msg)
+	{
+		/* header, message ID, payload, maximum padding and MAC */
+		int maclen = code == null ? 0 : code.length;
+		if (aead != null) {
+			maclen = aead.getTagLength();
+		}
+		int size = 5 + 1 + msg.sizeHint() + bs + 4 + maclen;
+		PacketOutputStream pout = new PacketOutputStream(pool, size);
+		ByteBuffer buf = pout.buffer();
+		buf.position(5);
+		pout.write(msg.getID());
+		try {
+			msg.encode(pout);
+		} catch (IOException ioe) {
+			/* Does not happen */
+			throw new Error(ioe);
+		}
+		int len = pout.buffer().position() - 5;
+		int padlen = 4 + bs - ((len + 9 - aad) % bs);
+		int plen = len + padlen + 1;
+		pout.ensure(padlen + maclen);
+		buf = pout.buffer();
+		rnd.nextBytes(padding);
+		buf.put(padding, 0, padlen);
+		buf.putInt(0, plen);
+		buf.put(4, (byte)padlen);
+		if (aead != null) {
+			ByteBuffer packet = buf.duplicate();
+			packet.flip();
+			aead.seal((int)seq, packet);
+			buf.position(packet.limit());
+		}
+		if (mac != null && !etm) {
+			sign(buf);
+		}
+		if (cipher != null) {
+			/* the length stays in clear with encrypt-then-MAC */
+			ByteBuffer in = buf.duplicate();
+			in.flip();
+			in.position(aad);
+			ByteBuffer out = buf.duplicate();
+			out.clear();
+			out.position(aad);
+			cipher.update(in, out);
+		}
+		if (mac != null && etm) {
+			sign(buf);
+		}
+		if (mac != null) {
+			buf.put(code);
+		}
+		buf.flip();
+		seq = (seq + 1) & 0xffffffffL;
+		msg.encoded();
+		return pout.lease();
+	}
+
+	/**
+	 * Computes the MAC of the packet written so far into {@code code}.
+	 */
+	private void sign(ByteBuffer buf)
+	{
+		seqbuf[0] = (byte)(seq >>> 24);
+		seqbuf[1] = (byte)(seq >>> 16);
+		seqbuf[2] = (byte)(seq >>> 8);
+		seqbuf[3] = (byte)seq;
+		mac.update(seqbuf);
+		ByteBuffer in = buf.duplicate();
+		in.flip();
+		mac.update(in);
+		try {
+			mac.doFinal(code, 0);
+		} catch (ShortBufferException sbe) {
+			/* Does not happen */
+			throw new Error(sbe);
+		}
+	}
+}
@@ -17,17 +17,18 @@
 package org.xulfactory.gliese.message;
 
 import org.xulfactory.gliese.SSHException;
-import org.xulfactory.gliese.util.Utils;
 import org.xulfactory.gliese.util.GlieseLogger;
+import org.xulfactory.gliese.util.PooledBuffer;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
 
@@ -43,19 +44,32 @@ import javax.crypto.Mac;
  * integrity and compression (NYI) of the packets.
  * </p>
  *
+ * <p>
+ * The messages written on a stream based {@code PacketFactory} are
+ * encrypted immediately and sent in batches, see {@link PacketWriter}.
+ * Once {@link #startWriter(String)} has been called they are encrypted and
+ * sent by a dedicated writer thread instead.
+ * </p>
+ *
+ * <p>
+ * A {@code PacketFactory} created without streams works incrementally:
+ * the raw bytes are given to {@link #decodePacket(ByteBuffer)} as they are
+ * received and the encoded packets returned by
+ * {@link #encodePacket(SSHMessage)} are sent by the caller. This mode is
+ * used by the non-blocking transport.
+ * </p>
+ *
  *
  * @author sirot
  */
 public class PacketFactory
 {
 	private Map<String, Map<Integer, Class<? extends SSHMessage>>> types;
-	private InputStream oin;
-	private OutputStream oout;
-	private final SSHInputStream in;
-	private final SSHOutputStream out;
-	private Random rnd;
-	private int blockSizeCS = 8;
-	private int blockSizeSC = 8;
+	private final PacketWriter out;
+	private final PacketReader in;
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final PacketDecoder decoder;
+	private final PacketEncoder encoder;
 
 	/**
 	 * Creates a {@code PacketFactory} instance.
@@ -65,11 +79,39 @@ public class PacketFactory
 	 */
 	public PacketFactory(InputStream in, OutputStream out)
 	{
-		this.oin = new BufferedInputStream(in);
-		this.in = new SSHInputStream(oin);
-		this.oout = new BufferedOutputStream(out);
-		this.out = new SSHOutputStream(oout);
-		this.rnd = new Random();
+		this(in, out, null);
+	}
+
+	/**
+	 * Creates a {@code PacketFactory} instance. The channel, if given, is
+	 * used to send the batched packets with a single gathering write.
+	 *
+	 * @param in  the input stream
+	 * @param out  the output stream
+	 * @param channel  the channel of the output stream or {@code null}
+	 */
+	public PacketFactory(InputStream in, OutputStream out,
+		GatheringByteChannel channel)
+	{
+		this.decoder = new PacketDecoder();
+		this.in = new PacketReader(new BufferedInputStream(in), decoder);
+		this.out = new PacketWriter(out, channel);
+		this.encoder = new PacketEncoder();
+		this.types = new HashMap<String,
+			Map<Integer, Class<? extends SSHMessage>>>();
+		registerIncomingMessages();
+	}
+
+	/**
+	 * Creates an incremental {@code PacketFactory} instance which is not
+	 * bound to any stream.
+	 */
+	public PacketFactory()
+	{
+		this.in = null;
+		this.out = null;
+		this.decoder = new PacketDecoder();
+		this.encoder = new PacketEncoder();
 		this.types = new HashMap<String,
 			Map<Integer, Class<? extends SSHMessage>>>();
 		registerIncomingMessages();
@@ -89,6 +131,7 @@ public class PacketFactory
 		register(UserAuthPublicKeyOk.class);
 		register("keyboard-interactive", UserAuthInfoRequest.class);
 		register(ChannelOpenConfirmationMessage.class);
+		register(ChannelOpenFailureMessage.class);
 		register(ChannelWindowsAdjustMessage.class);
 		register(ChannelSuccessMessage.class);
 		register(ChannelFailureMessage.class);
@@ -97,6 +140,9 @@ public class PacketFactory
 		register(ChannelExtendedDataMessage.class);
 		register(ChannelEOFMessage.class);
 		register(ChannelCloseMessage.class);
+		register(GlobalRequestMessage.class);
+		register(RequestSuccessMessage.class);
+		register(RequestFailureMessage.class);
 	}
 
 	/**
@@ -152,7 +198,8 @@ public class PacketFactory
 	}
 
 	/**
-	 * Reads a SSH packet and decodes the message.
+	 * Reads a SSH packet and decodes the message. The message is decoded
+	 * directly from the decrypted packet buffer.
 	 *
 	 * @param namespace  the message decoding namespace
 	 * @return  the decoded mssage
@@ -161,68 +208,183 @@ public class PacketFactory
 	private SSHMessage readPacket(String namespace)
 		throws IOException, SSHException
 	{
-		synchronized (in) {
-			in.initialize();
-			int plen = Utils.decodeInt(in);
-			int padlen = Utils.decodeByte(in) & 0xff;
-			int msgType = Utils.decodeByte(in);
-			Class<? extends SSHMessage> klass
-				= getMessageClass(msgType, namespace);
-			if (klass == null) {
-				throw new SSHException("Unsupported message type: " + msgType);
-			}
-			SSHMessage msg;
+		readLock.lock();
+		try {
 			try {
-				msg = klass.newInstance();
-				PayloadInputStream pin = new PayloadInputStream(in, plen - padlen - 2);
-				msg.decode(pin);
-				pin.flush();
-			} catch (IllegalAccessException iae) {
-				throw new SSHException("Unable to create message", iae);
-			} catch (InstantiationException ie) {
-				throw new SSHException("Unable to create message", ie);
-			}
-			Utils.decodeBytes(in, padlen);
-			if (!in.checkMac()) {
-				GlieseLogger.LOGGER.error("Invalid MAC on message: " + msg);
-				try {
-					writeMessage(new DisconnectMessage(
-						DisconnectMessage.MAC_ERROR,
-						"Bad MAC on input", ""));
-				} catch (SSHException se) {
-					// ignore exception
+				in.readPacket();
+			} catch (SSHException se) {
+				if (decoder.isMacFailure()) {
+					GlieseLogger.LOGGER.error("Invalid MAC on input");
+					try {
+						writeMessage(new DisconnectMessage(
+							DisconnectMessage.MAC_ERROR,
+							"Bad MAC on input", ""));
+					} catch (SSHException e) {
+						// ignore exception
+					}
 				}
-				throw new SSHException("Bad MAC on input");
+				throw se;
 			}
-			in.notifyAll();
-			return msg;
+			PooledBuffer payload = decoder.take();
+			try {
+				return decode(payload.buffer(), payload, namespace);
+			} finally {
+				payload.release();
+			}
+		} finally {
+			readLock.unlock();
 		}
 	}
 
-	private  void writePacket(SSHMessage msg) throws IOException
+	/**
+	 * Sends the packets immediately instead of batching them. Used by
+	 * interactive sessions.
+	 *
+	 * @param immediate  {@code true} to flush every packet
+	 */
+	public void setImmediateFlush(boolean immediate)
+	{
+		out.setImmediateFlush(immediate);
+	}
+
+	/**
+	 * Sets the thresholds above which the queued packets are flushed
+	 * even if other threads are writing.
+	 *
+	 * @param size  the maximum number of queued bytes
+	 * @param delayNanos  the maximum age of the oldest queued packet in
+	 *        nanoseconds
+	 */
+	public void setBatchThresholds(int size, long delayNanos)
+	{
+		out.setBatchThresholds(size, delayNanos);
+	}
+
+	/**
+	 * Starts a dedicated thread which encodes and sends the messages. The
+	 * writing threads only queue the messages.
+	 *
+	 * @param name  the writer thread name
+	 */
+	public void startWriter(String name)
+	{
+		out.startThread(name, encoder);
+	}
+
+	/**
+	 * Stops the writer thread once the queued messages have been sent.
+	 */
+	public void close()
+	{
+		out.close();
+	}
+
+	/**
+	 * Prepares a message to be encoded later by another thread: the data
+	 * borrowed from the caller is copied since the caller may reuse it as
+	 * soon as the message has been queued.
+	 *
+	 * @param msg  the message
+	 */
+	public void detach(SSHMessage msg)
+	{
+		msg.detach();
+	}
+
+	/**
+	 * Writes the queued packets.
+	 *
+	 * @throws SSHException  if an I/O error occurred
+	 */
+	public void flush() throws SSHException
 	{
-		synchronized (out) {
-			out.initialize();
-			byte[] msgEnc = msg.encode();
-			byte[] encoding = new byte[msgEnc.length + 1];
-			encoding[0] = (byte)msg.getID();
-			System.arraycopy(msgEnc, 0, encoding, 1, msgEnc.length);
-			int len = encoding.length + 9;
-			int padlen = 4 + blockSizeCS - (len % blockSizeCS);
-			Utils.encodeInt(out, encoding.length + padlen + 1);
-			out.write(padlen);
-			out.write(encoding);
-			byte[] padding = new byte[padlen];
-			rnd.nextBytes(padding);
-			out.write(padding);
-			out.writeMac();
+		try {
 			out.flush();
-			out.notifyAll();
+		} catch (IOException ioe) {
+			throw new SSHException("I/O exception on write", ioe);
 		}
 	}
 
 	/**
-	 * Updates the Ciphers and Macs.
+	 * Decodes the next packet from the received bytes. See
+	 * {@link PacketDecoder#decode(ByteBuffer)}.
+	 *
+	 * @param src  the received bytes
+	 * @return  the packet payload or {@code null} if the packet is not
+	 *          complete; the caller must release the payload
+	 * @throws SSHException  if the packet is invalid
+	 */
+	public PooledBuffer decodePacket(ByteBuffer src) throws SSHException
+	{
+		return decoder.decode(src);
+	}
+
+	/**
+	 * Indicates whether the incremental decoder waits for the new keys.
+	 *
+	 * @return {@code true} if the decoding is suspended
+	 */
+	public boolean isDecoderSuspended()
+	{
+		return decoder.isSuspended();
+	}
+
+	/**
+	 * Encodes the message into a packet. The packets must be sent in the
+	 * order they are encoded.
+	 *
+	 * @param msg  the message
+	 * @return  the encrypted packet; the caller must release it once sent
+	 */
+	public PooledBuffer encodePacket(SSHMessage msg)
+	{
+		PooledBuffer packet = encoder.encode(msg);
+		GlieseLogger.LOGGER.debug("Sent message: " + msg);
+		return packet;
+	}
+
+	/**
+	 * Decodes a message from a packet payload. The payload is not
+	 * modified. The message may keep a reference on the payload, see
+	 * {@link ChannelDataMessage}.
+	 *
+	 * @param payload  the payload, starting with the message ID
+	 * @param namespace  the message decoding namespace
+	 * @return  the decoded message
+	 * @throws SSHException  if the message type is unknown or the payload
+	 *         is invalid
+	 */
+	public SSHMessage decodeMessage(PooledBuffer payload, String namespace)
+		throws SSHException
+	{
+		SSHMessage msg = decode(payload.buffer().duplicate(), payload,
+			namespace);
+		GlieseLogger.LOGGER.debug("Received message: " + msg);
+		return msg;
+	}
+
+	private SSHMessage decode(ByteBuffer payload, PooledBuffer lease,
+		String namespace) throws SSHException
+	{
+		Class<? extends SSHMessage> klass
+			= getMessageClass(payload.get() & 0xff, namespace);
+		SSHMessage msg;
+		try {
+			msg = klass.newInstance();
+			msg.decode(payload, lease);
+		} catch (IOException ioe) {
+			throw new SSHException("Invalid message", ioe);
+		} catch (IllegalAccessException iae) {
+			throw new SSHException("Unable to create message", iae);
+		} catch (InstantiationException ie) {
+			throw new SSHException("Unable to create message", ie);
+		}
+		return msg;
+	}
+
+	/**
+	 * Updates the Ciphers and Macs. See
+	 * {@link #newKeys(PacketCrypto, PacketCrypto)}.
 	 *
 	 * @param ccs  the client to server cipher
 	 * @param csc  the server to client cipher
@@ -231,21 +393,37 @@ public class PacketFactory
 	 */
 	public void newKeys(Cipher ccs, Cipher csc, Mac mcs, Mac msc)
 	{
-		synchronized (in) {
-			blockSizeSC = csc.getBlockSize();
-			in.updateCrypto(csc, msc);
-		}
-		synchronized (out) {
-			blockSizeCS = ccs.getBlockSize();
-			out.updateCrypto(ccs, mcs);
+		newKeys(new PacketCrypto(ccs, mcs), new PacketCrypto(csc, msc));
+	}
+
+	/**
+	 * Updates the algorithms protecting the packets. With a writer thread,
+	 * the messages already written are still encoded with the previous
+	 * keys.
+	 *
+	 * @param cs  the client to server algorithms
+	 * @param sc  the server to client algorithms
+	 */
+	public void newKeys(final PacketCrypto cs, PacketCrypto sc)
+	{
+		decoder.updateCrypto(sc);
+		if (out == null) {
+			encoder.updateCrypto(cs);
+			return;
 		}
+		out.execute(new Runnable() {
+			public void run()
+			{
+				encoder.updateCrypto(cs);
+			}
+		});
 	}
 
 	public void writeMessage(SSHMessage msg)
 		throws SSHException
 	{
 		try {
-			writePacket(msg);
+			out.write(encoder, msg);
 			GlieseLogger.LOGGER.debug("Sent message: " + msg);
 		} catch (IOException ioe) {
 			throw new SSHException("I/O exception on write", ioe);
@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.message;
+
+import org.xulfactory.gliese.util.BufferPool;
+import org.xulfactory.gliese.util.PooledBuffer;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@code OutputStream} writing into a pooled buffer. The buffer is
+ * replaced by a larger one from the pool when it is full.
+ *
+ * @author sirot
+ */
+class PacketOutputStream extends OutputStream
+{
+	private final BufferPool pool;
+	private PooledBuffer lease;
+
+	PacketOutputStream(BufferPool pool, int size)
+	{
+		this.pool = pool;
+		this.lease = pool.acquire(size);
+	}
+
+	/**
+	 * Retrieves the current buffer. The buffer position is the number
+	 * of bytes written.
+	 */
+	ByteBuffer buffer()
+	{
+		return lease.buffer();
+	}
+
+	/**
+	 * Retrieves the buffer lease. The caller becomes the owner of the
+	 * lease.
+	 */
+	PooledBuffer lease()
+	{
+		return lease;
+	}
+
+	/**
+	 * Ensures that {@code len} more bytes can be written.
+	 */
+	void ensure(int len)
+	{
+		ByteBuffer buf = lease.buffer();
+		if (buf.remaining() >= len) {
+			return;
+		}
+		int size = Math.max(buf.capacity() << 1, buf.position() + len);
+		PooledBuffer tmp = pool.acquire(size);
+		buf.flip();
+		tmp.buffer().put(buf);
+		lease.release();
+		lease = tmp;
+	}
+
+	@Override
+	public void write(int b)
+	{
+		ensure(1);
+		lease.buffer().put((byte)b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len)
+	{
+		ensure(len);
+		lease.buffer().put(b, off, len);
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer with a bulk copy.
+	 *
+	 * @param src  the data
+	 */
+	void write(ByteBuffer src)
+	{
+		ensure(src.remaining());
+		lease.buffer().put(src);
+	}
+}
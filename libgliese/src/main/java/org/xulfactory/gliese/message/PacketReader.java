@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.message;
+
+import org.xulfactory.gliese.SSHException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Blocking packet reader. Reads from the stream exactly the bytes needed by
+ * the {@link PacketDecoder}: the first cipher block, then the rest of the
+ * packet and its MAC which are decrypted and verified at once.
+ *
+ * @author sirot
+ */
+class PacketReader
+{
+	private final InputStream in;
+	private final PacketDecoder decoder;
+	private ByteBuffer buf = ByteBuffer.allocate(0x1000);
+
+	PacketReader(InputStream in, PacketDecoder decoder)
+	{
+		this.in = in;
+		this.decoder = decoder;
+		buf.limit(0);
+	}
+
+	/**
+	 * Reads the next packet. Once the method returns, the packet is
+	 * available in the decoder buffer.
+	 *
+	 * @throws IOException  if an error occurred while reading the stream
+	 * @throws SSHException  if the packet is invalid
+	 */
+	void readPacket() throws IOException, SSHException
+	{
+		while (!decoder.next(buf)) {
+			if (decoder.isSuspended()) {
+				throw new SSHException("New keys not installed");
+			}
+			int len = decoder.needed();
+			if (buf.capacity() < len) {
+				/* grown by steps up to the largest packet */
+				buf = ByteBuffer.allocate(Math.max(len, Math.min(
+					buf.capacity() << 2, PacketDecoder.MAX_PACKET_LENGTH)));
+			}
+			readFully(buf.array(), len);
+			buf.position(0);
+			buf.limit(len);
+		}
+	}
+
+	private void readFully(byte[] b, int len) throws IOException
+	{
+		int off = 0;
+		while (off < len) {
+			int l = in.read(b, off, len - off);
+			if (l == -1) {
+				throw new EOFException("Connection closed by peer");
+			}
+			off += l;
+		}
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.message;
+
+import org.xulfactory.gliese.util.GlieseLogger;
+import org.xulfactory.gliese.util.MpscQueue;
+import org.xulfactory.gliese.util.PooledBuffer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Blocking packet writer with write batching.
+ * </p>
+ *
+ * <p>
+ * The packets are encrypted as soon as they are submitted and queued. The
+ * queue is flushed by the last of the concurrent writers, so a burst of
+ * packets from several threads is sent with a single gathering write, or
+ * earlier when the queued bytes or the age of the oldest packet exceed
+ * the batching thresholds. In immediate mode every packet is flushed
+ * before {@link #write(PacketEncoder, SSHMessage)} returns.
+ * </p>
+ *
+ * <p>
+ * The encoding and the socket writes use distinct locks so that the
+ * writers are not serialized behind a pending socket write. These are
+ * {@code java.util.concurrent} locks: a virtual thread blocked on them, or
+ * on the socket write, does not pin its carrier thread.
+ * </p>
+ *
+ * <p>
+ * Once {@link #startThread(String)} has been called the producers only
+ * append the messages to a lock-free {@link MpscQueue} and a dedicated
+ * writer thread does the sequencing, padding, encryption, MAC and socket
+ * writes. The queued bytes are bounded by the channel windows. The I/O
+ * errors are reported to the producers on their next write.
+ * </p>
+ *
+ * @author sirot
+ */
+class PacketWriter
+{
+	private final OutputStream out;
+	private final GatheringByteChannel channel;
+	private final List<PooledBuffer> queue = new ArrayList<PooledBuffer>();
+	private int queued = 0;
+	private long firstQueued;
+	private final ReentrantLock queueLock = new ReentrantLock();
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final AtomicInteger writers = new AtomicInteger();
+	private volatile boolean immediate = false;
+	private volatile int maxBatchSize = 0x10000;
+	private volatile long maxBatchDelay = 500000L;
+
+	/* Writer thread mode */
+	private Thread thread;
+	private PacketEncoder encoder;
+	/** Messages to encode or tasks to run in sequence */
+	private final MpscQueue<Object> items = new MpscQueue<Object>();
+	private volatile boolean parked = false;
+	private volatile boolean stopped = false;
+	private volatile IOException failure;
+
+	/**
+	 * Creates a new {@code PacketWriter}.
+	 *
+	 * @param out  the output stream
+	 * @param channel  the channel of the output stream used for gathering
+	 *        writes, or {@code null}
+	 */
+	PacketWriter(OutputStream out, GatheringByteChannel channel)
+	{
+		this.channel = channel;
+		this.out = channel != null ? out
+			: new BufferedOutputStream(out, 0x10000);
+	}
+
+	void setImmediateFlush(boolean immediate)
+	{
+		this.immediate = immediate;
+	}
+
+	void setBatchThresholds(int size, long delayNanos)
+	{
+		this.maxBatchSize = size;
+		this.maxBatchDelay = delayNanos;
+	}
+
+	/**
+	 * Starts the writer thread.
+	 *
+	 * @param name  the thread name
+	 * @param encoder  the packet encoder used by the writer thread
+	 */
+	synchronized void startThread(String name, PacketEncoder encoder)
+	{
+		if (thread != null) {
+			return;
+		}
+		this.encoder = encoder;
+		thread = new Thread(new Runnable() {
+			public void run()
+			{
+				writerLoop();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Encodes and queues the message, then flushes the queue if this
+	 * writer is the last one or if a threshold has been reached. With a
+	 * writer thread the message is only queued.
+	 *
+	 * @param encoder  the packet encoder
+	 * @param msg  the message
+	 * @throws IOException  if an I/O error occurred on flush
+	 */
+	void write(PacketEncoder encoder, SSHMessage msg) throws IOException
+	{
+		if (thread != null) {
+			checkFailure();
+			msg.detach();
+			submit(msg);
+			return;
+		}
+		writers.incrementAndGet();
+		boolean full;
+		try {
+			queueLock.lock();
+			try {
+				/* encode under the queue lock to keep the sequence order */
+				full = add(encoder.encode(msg));
+			} finally {
+				queueLock.unlock();
+			}
+		} finally {
+			if (writers.decrementAndGet() == 0) {
+				full = true;
+			}
+		}
+		if (full || immediate) {
+			flush();
+		}
+	}
+
+	/**
+	 * Runs the task after the messages already written have been
+	 * encoded, and before the next ones.
+	 *
+	 * @param task  the task
+	 */
+	void execute(Runnable task)
+	{
+		if (thread != null) {
+			submit(task);
+		} else {
+			queueLock.lock();
+			try {
+				task.run();
+			} finally {
+				queueLock.unlock();
+			}
+		}
+	}
+
+	private void submit(Object item)
+	{
+		items.offer(item);
+		if (parked) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Queues an encoded packet. Must be called with the queue lock held.
+	 *
+	 * @return  {@code true} if a batching threshold has been reached
+	 */
+	private boolean add(PooledBuffer packet)
+	{
+		if (queue.isEmpty()) {
+			firstQueued = System.nanoTime();
+		}
+		queue.add(packet);
+		queued += packet.buffer().remaining();
+		return queued >= maxBatchSize
+			|| System.nanoTime() - firstQueued >= maxBatchDelay;
+	}
+
+	private void checkFailure() throws IOException
+	{
+		IOException ioe = failure;
+		if (ioe != null) {
+			throw new IOException(ioe.getMessage(), ioe);
+		}
+	}
+
+	private void writerLoop()
+	{
+		while (!stopped || !items.isEmpty()) {
+			Object item = items.poll();
+			if (item == null) {
+				try {
+					flushQueue();
+				} catch (IOException ioe) {
+					fail(ioe);
+				}
+				parked = true;
+				if (items.isEmpty() && !stopped) {
+					LockSupport.park(this);
+				}
+				parked = false;
+				continue;
+			}
+			if (item instanceof Runnable) {
+				((Runnable)item).run();
+				continue;
+			}
+			if (failure != null) {
+				((SSHMessage)item).encoded();
+				continue;
+			}
+			boolean full;
+			queueLock.lock();
+			try {
+				full = add(encoder.encode((SSHMessage)item));
+			} finally {
+				queueLock.unlock();
+			}
+			if (full || immediate) {
+				try {
+					flushQueue();
+				} catch (IOException ioe) {
+					fail(ioe);
+				}
+			}
+		}
+	}
+
+	private void fail(IOException ioe)
+	{
+		if (failure == null) {
+			GlieseLogger.LOGGER.error("I/O exception on write", ioe);
+			failure = ioe;
+		}
+		queueLock.lock();
+		try {
+			for (PooledBuffer packet: queue) {
+				packet.release();
+			}
+			queue.clear();
+			queued = 0;
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes all the queued packets. With a writer thread, waits until
+	 * the messages written before the call have been sent.
+	 *
+	 * @throws IOException  if an I/O error occurred
+	 */
+	void flush() throws IOException
+	{
+		if (thread == null || Thread.currentThread() == thread) {
+			flushQueue();
+			return;
+		}
+		final CountDownLatch done = new CountDownLatch(1);
+		submit(new Runnable() {
+			public void run()
+			{
+				try {
+					flushQueue();
+				} catch (IOException ioe) {
+					fail(ioe);
+				}
+				done.countDown();
+			}
+		});
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				if (done.await(100, TimeUnit.MILLISECONDS)) {
+					break;
+				}
+			} catch (InterruptedException ie) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Stops the writer thread once the queued messages have been written.
+	 */
+	void close()
+	{
+		stopped = true;
+		Thread t = thread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	private void flushQueue() throws IOException
+	{
+		flushLock.lock();
+		try {
+			PooledBuffer[] batch;
+			queueLock.lock();
+			try {
+				if (queue.isEmpty()) {
+					return;
+				}
+				batch = queue.toArray(new PooledBuffer[queue.size()]);
+				queue.clear();
+				queued = 0;
+			} finally {
+				queueLock.unlock();
+			}
+			try {
+				if (channel != null) {
+					ByteBuffer[] bufs = new ByteBuffer[batch.length];
+					long len = 0;
+					for (int i = 0; i < batch.length; i++) {
+						bufs[i] = batch[i].buffer();
+						len += bufs[i].remaining();
+					}
+					while (len > 0) {
+						len -= channel.write(bufs);
+					}
+				} else {
+					for (PooledBuffer packet: batch) {
+						ByteBuffer buf = packet.buffer();
+						if (buf.hasArray()) {
+							out.write(buf.array(), buf.arrayOffset()
+								+ buf.position(), buf.remaining());
+						} else {
+							byte[] tmp = new byte[buf.remaining()];
+							buf.get(tmp);
+							out.write(tmp);
+						}
+					}
+					out.flush();
+				}
+			} finally {
+				for (PooledBuffer packet: batch) {
+					packet.release();
+				}
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+}
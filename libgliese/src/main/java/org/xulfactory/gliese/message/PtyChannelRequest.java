@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.message;
+
+import org.xulfactory.gliese.util.Utils;
+import org.xulfactory.gliese.message.ChannelRequestMessage.ChannelRequest;
+import org.xulfactory.gliese.message.ChannelRequestMessage.ChannelRequestCodec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Pseudo-terminal request.
+ *
+ * @author sirot
+ */
+public class PtyChannelRequest implements ChannelRequest
+{
+	public static final String TYPE = "pty-req";
+
+	/** Encoded terminal modes with no mode: only {@code TTY_OP_END} */
+	private static final byte[] NO_MODES = new byte[] {0};
+
+	private String term;
+	private int columns;
+	private int rows;
+	private int width;
+	private int height;
+	private byte[] modes;
+
+	private PtyChannelRequest()
+	{
+	}
+
+	/**
+	 * Creates a pseudo-terminal request with the default terminal modes.
+	 *
+	 * @param term  the terminal type, {@code vt100} for instance
+	 * @param columns  the width in characters
+	 * @param rows  the height in rows
+	 */
+	public PtyChannelRequest(String term, int columns, int rows)
+	{
+		this(term, columns, rows, 0, 0, NO_MODES);
+	}
+
+	/**
+	 * Creates a pseudo-terminal request.
+	 *
+	 * @param term  the terminal type, {@code vt100} for instance
+	 * @param columns  the width in characters
+	 * @param rows  the height in rows
+	 * @param width  the width in pixels, 0 if unknown
+	 * @param height  the height in pixels, 0 if unknown
+	 * @param modes  the encoded terminal modes, ending with
+	 *        {@code TTY_OP_END}
+	 */
+	public PtyChannelRequest(String term, int columns, int rows, int width,
+		int height, byte[] modes)
+	{
+		this.term = term;
+		this.columns = columns;
+		this.rows = rows;
+		this.width = width;
+		this.height = height;
+		this.modes = modes;
+	}
+
+	public String getRequestType()
+	{
+		return TYPE;
+	}
+
+	public static class PtyChannelRequestCodec
+		implements ChannelRequestCodec<PtyChannelRequest>
+	{
+		public PtyChannelRequest decode(InputStream in)
+			throws IOException
+		{
+			PtyChannelRequest p = new PtyChannelRequest();
+			p.term = Utils.decodeString(in);
+			p.columns = Utils.decodeInt(in);
+			p.rows = Utils.decodeInt(in);
+			p.width = Utils.decodeInt(in);
+			p.height = Utils.decodeInt(in);
+			p.modes = Utils.decodeBytes(in);
+			return p;
+		}
+
+		public void encode(OutputStream out, PtyChannelRequest p)
+			throws IOException
+		{
+			Utils.encodeString(out, p.term);
+			Utils.encodeInt(out, p.columns);
+			Utils.encodeInt(out, p.rows);
+			Utils.encodeInt(out, p.width);
+			Utils.encodeInt(out, p.height);
+			Utils.encodeBytes(out, p.modes);
+		}
+	}
+
+	public String getTerm()
+	{
+		return term;
+	}
+
+	public int getColumns()
+	{
+		return columns;
+	}
+
+	public int getRows()
+	{
+		return rows;
+	}
+}
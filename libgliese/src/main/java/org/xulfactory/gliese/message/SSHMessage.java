@@ -16,11 +16,14 @@
  */
 package org.xulfactory.gliese.message;
 
+import org.xulfactory.gliese.util.PooledBuffer;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Common mother class for all SSH messages. A message in wrapped into a
@@ -74,6 +77,22 @@ public abstract class SSHMessage
 	 */
 	protected abstract void decode(InputStream in) throws IOException;
 
+	/**
+	 * Decodes the message payload from the decrypted packet buffer. The
+	 * message may keep a view of the buffer as long as it retains the
+	 * lease. By default the payload is read with
+	 * {@link #decode(InputStream)}.
+	 *
+	 * @param payload  the payload following the message ID
+	 * @param lease  the packet buffer lease, may be {@code null}
+	 * @throws IOException  if the payload is invalid
+	 */
+	void decode(ByteBuffer payload, PooledBuffer lease) throws IOException
+	{
+		decode(new PayloadInputStream(new BufferInputStream(payload),
+			payload.remaining()));
+	}
+
 	final byte[] encode()
 	{
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -86,6 +105,32 @@ public abstract class SSHMessage
 		return out.toByteArray();
 	}
 
+	/**
+	 * Copies any data the message shares with its creator so that the
+	 * message can be encoded later by another thread.
+	 */
+	void detach()
+	{
+	}
+
+	/**
+	 * Estimates the length of the encoded message, used to size the
+	 * packet buffer.
+	 *
+	 * @return  the estimated length in bytes
+	 */
+	int sizeHint()
+	{
+		return 0x100;
+	}
+
+	/**
+	 * Called once the message has been encoded into a packet.
+	 */
+	void encoded()
+	{
+	}
+
 	/**
 	 * Encodes the message payload into the stream. <strong>Do not 
 	 * write the message ID number</strong>.
@@ -0,0 +1,209 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Size-classed pool of {@link ByteBuffer}s shared by the packet reader,
+ * the packet writer and the channel data path.
+ * </p>
+ *
+ * <p>
+ * The buffers are handed out as {@link PooledBuffer} leases whose
+ * capacity is the smallest power of two (from 512 bytes to 512KB) that
+ * fits the requested size. A buffer goes back to its size class when the
+ * last reference to the lease is released. Larger requests are served
+ * with unpooled buffers.
+ * </p>
+ *
+ * <p>
+ * The pool may hold direct or heap buffers. The default pool uses heap
+ * buffers because the JCE ciphers and macs process direct buffers through
+ * temporary arrays allocated on each call; a direct pool can be installed
+ * with {@link #setDefault(BufferPool)} when no encryption provider with
+ * native buffer support is used.
+ * </p>
+ *
+ * @author sirot
+ */
+public final class BufferPool
+{
+	private static final int MIN_SHIFT = 9;
+	private static final int MAX_SHIFT = 19;
+	/** Bytes kept in each size class */
+	private static final int CLASS_BUDGET = 0x400000;
+
+	private static volatile BufferPool defaultPool = new BufferPool(false);
+
+	private final boolean direct;
+	private final Queue<ByteBuffer>[] free;
+	private final AtomicInteger[] freeCount;
+	private final int[] maxCount;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	/**
+	 * Creates a new {@code BufferPool}.
+	 *
+	 * @param direct  {@code true} to allocate direct buffers
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(boolean direct)
+	{
+		this.direct = direct;
+		int n = MAX_SHIFT - MIN_SHIFT + 1;
+		free = new Queue[n];
+		freeCount = new AtomicInteger[n];
+		maxCount = new int[n];
+		for (int i = 0; i < n; i++) {
+			free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			freeCount[i] = new AtomicInteger();
+			maxCount[i] = Math.max(4, CLASS_BUDGET >> (MIN_SHIFT + i));
+		}
+	}
+
+	/**
+	 * Retrieves the pool shared by the connections.
+	 *
+	 * @return  the default pool
+	 */
+	public static BufferPool getDefault()
+	{
+		return defaultPool;
+	}
+
+	/**
+	 * Replaces the pool shared by the connections. Only the connections
+	 * opened afterwards use the new pool.
+	 *
+	 * @param pool  the new default pool
+	 */
+	public static void setDefault(BufferPool pool)
+	{
+		if (pool == null) {
+			throw new NullPointerException();
+		}
+		defaultPool = pool;
+	}
+
+	/**
+	 * Leases a buffer of at least {@code size} bytes. The buffer is
+	 * cleared and its limit is set to its capacity.
+	 *
+	 * @param size  the minimum capacity
+	 * @return  the buffer lease
+	 */
+	public PooledBuffer acquire(int size)
+	{
+		int c = sizeClass(size);
+		ByteBuffer buf = null;
+		if (c >= 0) {
+			buf = free[c].poll();
+		}
+		if (buf != null) {
+			freeCount[c].decrementAndGet();
+			hits.incrementAndGet();
+			buf.clear();
+		} else {
+			misses.incrementAndGet();
+			int cap = c >= 0 ? 1 << (MIN_SHIFT + c) : size;
+			buf = direct ? ByteBuffer.allocateDirect(cap)
+				: ByteBuffer.allocate(cap);
+		}
+		outstanding.incrementAndGet();
+		return new PooledBuffer(this, buf);
+	}
+
+	void recycle(ByteBuffer buf)
+	{
+		outstanding.decrementAndGet();
+		int cap = buf.capacity();
+		int c = sizeClass(cap);
+		if (c < 0 || 1 << (MIN_SHIFT + c) != cap || buf.isDirect() != direct) {
+			return;
+		}
+		if (freeCount[c].incrementAndGet() > maxCount[c]) {
+			freeCount[c].decrementAndGet();
+			return;
+		}
+		free[c].add(buf);
+	}
+
+	private static int sizeClass(int size)
+	{
+		if (size > 1 << MAX_SHIFT) {
+			return -1;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+	}
+
+	/**
+	 * Indicates whether the pool allocates direct buffers.
+	 *
+	 * @return  {@code true} for direct buffers
+	 */
+	public boolean isDirect()
+	{
+		return direct;
+	}
+
+	/**
+	 * Retrieves the number of leases served with a pooled buffer.
+	 *
+	 * @return  the number of hits
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Retrieves the number of leases which required a new buffer.
+	 *
+	 * @return  the number of misses
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Retrieves the number of leases not released yet.
+	 *
+	 * @return  the number of outstanding leases
+	 */
+	public int getOutstanding()
+	{
+		return outstanding.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("BufferPool[direct=%b, hits=%d, misses=%d, outstanding=%d]",
+			direct, getHits(), getMisses(), getOutstanding());
+	}
+}
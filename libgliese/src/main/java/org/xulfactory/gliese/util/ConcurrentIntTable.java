@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent table of values indexed by small non-negative integers, such
+ * as the channel ids given by an {@link IdAllocator}. The keys are not
+ * boxed and the lookups are lock-free; the updates are serialized and
+ * the table grows by copy.
+ *
+ * @author sirot
+ */
+public final class ConcurrentIntTable<V>
+{
+	private volatile AtomicReferenceArray<V> slots;
+	private final ReentrantLock lock = new ReentrantLock();
+	private int size = 0;
+
+	/**
+	 * Creates an empty {@code ConcurrentIntTable}.
+	 */
+	public ConcurrentIntTable()
+	{
+		slots = new AtomicReferenceArray<V>(16);
+	}
+
+	/**
+	 * Retrieves the value of the key.
+	 *
+	 * @param key  the key
+	 * @return  the value or {@code null}
+	 */
+	public V get(int key)
+	{
+		AtomicReferenceArray<V> s = slots;
+		if (key < 0 || key >= s.length()) {
+			return null;
+		}
+		return s.get(key);
+	}
+
+	/**
+	 * Associates the value with the key.
+	 *
+	 * @param key  the key, not negative
+	 * @param value  the value, not {@code null}
+	 * @return  the previous value or {@code null}
+	 */
+	public V put(int key, V value)
+	{
+		if (key < 0) {
+			throw new IllegalArgumentException("Negative key: " + key);
+		}
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		lock.lock();
+		try {
+			AtomicReferenceArray<V> s = slots;
+			if (key >= s.length()) {
+				int len = s.length();
+				while (len <= key) {
+					len <<= 1;
+				}
+				AtomicReferenceArray<V> tmp = new AtomicReferenceArray<V>(len);
+				for (int i = 0; i < s.length(); i++) {
+					tmp.lazySet(i, s.get(i));
+				}
+				slots = tmp;
+				s = tmp;
+			}
+			V prev = s.getAndSet(key, value);
+			if (prev == null) {
+				size++;
+			}
+			return prev;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the value of the key.
+	 *
+	 * @param key  the key
+	 * @return  the removed value or {@code null}
+	 */
+	public V remove(int key)
+	{
+		lock.lock();
+		try {
+			AtomicReferenceArray<V> s = slots;
+			if (key < 0 || key >= s.length()) {
+				return null;
+			}
+			V prev = s.getAndSet(key, null);
+			if (prev != null) {
+				size--;
+			}
+			return prev;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the value of the key if it is the given one.
+	 *
+	 * @param key  the key
+	 * @param value  the expected value
+	 * @return  {@code true} if the value has been removed
+	 */
+	public boolean remove(int key, V value)
+	{
+		lock.lock();
+		try {
+			AtomicReferenceArray<V> s = slots;
+			if (key < 0 || key >= s.length() || s.get(key) != value) {
+				return false;
+			}
+			s.set(key, null);
+			size--;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves the number of values.
+	 *
+	 * @return  the number of values
+	 */
+	public int size()
+	{
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves a snapshot of the keys.
+	 *
+	 * @return  the keys, in increasing order
+	 */
+	public int[] keys()
+	{
+		AtomicReferenceArray<V> s = slots;
+		int[] keys = new int[s.length()];
+		int n = 0;
+		for (int i = 0; i < s.length(); i++) {
+			if (s.get(i) != null) {
+				keys[n++] = i;
+			}
+		}
+		return Arrays.copyOf(keys, n);
+	}
+
+	/**
+	 * Retrieves a snapshot of the values.
+	 *
+	 * @return  the values, by increasing key
+	 */
+	public List<V> values()
+	{
+		AtomicReferenceArray<V> s = slots;
+		List<V> values = new ArrayList<V>();
+		for (int i = 0; i < s.length(); i++) {
+			V v = s.get(i);
+			if (v != null) {
+				values.add(v);
+			}
+		}
+		return values;
+	}
+}
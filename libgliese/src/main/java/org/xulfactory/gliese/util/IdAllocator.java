@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.util;
+
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Allocator of small non-negative integer ids. The released ids are
+ * reused, the lowest free id first, so that the ids stay dense.
+ *
+ * @author sirot
+ */
+public final class IdAllocator
+{
+	private final BitSet used = new BitSet();
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Allocates the lowest free id.
+	 *
+	 * @return  the id
+	 */
+	public int allocate()
+	{
+		lock.lock();
+		try {
+			int id = used.nextClearBit(0);
+			used.set(id);
+			return id;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases an id allocated by {@link #allocate()}.
+	 *
+	 * @param id  the id
+	 */
+	public void release(int id)
+	{
+		lock.lock();
+		try {
+			if (!used.get(id)) {
+				throw new IllegalStateException("Id not allocated: " + id);
+			}
+			used.clear(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free multi-producer single-consumer queue. Any thread may
+ * call {@link #offer(Object)}; {@link #poll()} and {@link #isEmpty()} must
+ * only be called by the consumer thread.
+ *
+ * The producers append their node with a single atomic exchange on the
+ * tail; the consumer follows the links from the head without any atomic
+ * operation. A node is visible to the consumer once its predecessor has
+ * been linked, so {@link #poll()} may briefly return {@code null} while an
+ * offer is in progress; the producer must signal the consumer after the
+ * offer returns.
+ *
+ * @author sirot
+ */
+public final class MpscQueue<E>
+{
+	private static final class Node<E>
+	{
+		E value;
+		volatile Node<E> next;
+
+		Node(E value)
+		{
+			this.value = value;
+		}
+	}
+
+	private final AtomicReference<Node<E>> tail;
+	/** Consumer side, the head node is always a consumed node */
+	private Node<E> head;
+
+	/**
+	 * Creates an empty {@code MpscQueue}.
+	 */
+	public MpscQueue()
+	{
+		Node<E> stub = new Node<E>(null);
+		head = stub;
+		tail = new AtomicReference<Node<E>>(stub);
+	}
+
+	/**
+	 * Appends an element. May be called by any thread.
+	 *
+	 * @param e  the element, not {@code null}
+	 */
+	public void offer(E e)
+	{
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		Node<E> node = new Node<E>(e);
+		Node<E> prev = tail.getAndSet(node);
+		prev.next = node;
+	}
+
+	/**
+	 * Removes the first element. Must be called by the consumer thread.
+	 *
+	 * @return  the first element or {@code null} if the queue is empty
+	 */
+	public E poll()
+	{
+		Node<E> next = head.next;
+		if (next == null) {
+			return null;
+		}
+		E e = next.value;
+		next.value = null;
+		head = next;
+		return e;
+	}
+
+	/**
+	 * Indicates whether the queue is empty. Must be called by the consumer
+	 * thread.
+	 *
+	 * @return  {@code true} if no element is available
+	 */
+	public boolean isEmpty()
+	{
+		return head.next == null;
+	}
+}
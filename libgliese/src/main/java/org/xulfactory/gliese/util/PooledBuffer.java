@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted lease on a {@link BufferPool} buffer. The lease is
+ * created with one reference; every {@link #retain()} must be matched by a
+ * {@link #release()}. The buffer must not be used once the last reference
+ * has been released.
+ *
+ * @author sirot
+ */
+public final class PooledBuffer
+{
+	private final BufferPool pool;
+	private final ByteBuffer buffer;
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	PooledBuffer(BufferPool pool, ByteBuffer buffer)
+	{
+		this.pool = pool;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Retrieves the leased buffer.
+	 *
+	 * @return  the buffer
+	 */
+	public ByteBuffer buffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * Adds a reference to the lease.
+	 *
+	 * @return  this lease
+	 */
+	public PooledBuffer retain()
+	{
+		for (;;) {
+			int r = refs.get();
+			if (r <= 0) {
+				throw new IllegalStateException("Buffer already released");
+			}
+			if (refs.compareAndSet(r, r + 1)) {
+				return this;
+			}
+		}
+	}
+
+	/**
+	 * Releases a reference to the lease. The buffer goes back to the pool
+	 * when the last reference is released.
+	 */
+	public void release()
+	{
+		int r = refs.decrementAndGet();
+		if (r == 0) {
+			pool.recycle(buffer);
+		} else if (r < 0) {
+			refs.incrementAndGet();
+			throw new IllegalStateException("Buffer already released");
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2009 Jean-Christophe Sirot <sirot@xulfactory.org>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.xulfactory.gliese.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executor running its tasks one at a time, in submission order, on a
+ * shared executor. Many serial executors share the threads of a bounded
+ * pool while each one keeps its own ordering.
+ *
+ * A serial executor gives its thread back to the pool after a batch of
+ * tasks, so that a busy serial executor does not starve the others. A
+ * task which blocks only delays the next tasks of its own serial
+ * executor, and holds one thread of the pool.
+ *
+ * @author sirot
+ */
+public final class SerialExecutor implements Executor
+{
+	/** Maximum number of tasks run before yielding the thread */
+	private static final int BATCH = 64;
+
+	private final Executor executor;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Runnable drainTask = new Runnable() {
+		public void run()
+		{
+			drain();
+		}
+	};
+
+	/**
+	 * Creates a new {@code SerialExecutor}.
+	 *
+	 * @param executor  the executor running the tasks
+	 */
+	public SerialExecutor(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Submits a task. The task runs after all the tasks previously
+	 * submitted to this executor have completed.
+	 *
+	 * @param task  the task
+	 */
+	public void execute(Runnable task)
+	{
+		tasks.add(task);
+		schedule();
+	}
+
+	private void schedule()
+	{
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(drainTask);
+			} catch (RuntimeException re) {
+				scheduled.set(false);
+				throw re;
+			}
+		}
+	}
+
+	private void drain()
+	{
+		Runnable task;
+		try {
+			for (int n = 0; n < BATCH && (task = tasks.poll()) != null; n++) {
+				try {
+					task.run();
+				} catch (RuntimeException re) {
+					GlieseLogger.LOGGER.error("Unexpected error in task", re);
+				}
+			}
+		} finally {
+			/* an Error must not leave the executor scheduled forever */
+			scheduled.set(false);
+			if (!tasks.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.xulfactory.gliese.message.ChannelCloseMessage;
+import org.xulfactory.gliese.message.ChannelDataMessage;
+import org.xulfactory.gliese.message.ChannelOpenConfirmationMessage;
+import org.xulfactory.gliese.message.ChannelOpenFailureMessage;
+import org.xulfactory.gliese.message.ChannelOpenMessage;
+import org.xulfactory.gliese.message.ChannelSuccessMessage;
+import org.xulfactory.gliese.message.RequestFailureMessage;
+import org.xulfactory.gliese.message.RequestSuccessMessage;
+import org.xulfactory.gliese.message.SSHMessage;
+import static org.mockito.Mockito.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ChannelManagerTest
+{
+	@Mock
+	private SSHTransport transport;
+	private ChannelManager manager;
+
+	@Before
+	public void setUp()
+	{
+		when(transport.isNonBlocking()).thenReturn(true);
+		manager = new ChannelManager(transport);
+	}
+
+	private static ChannelOpenConfirmationMessage confirmation(int id)
+	{
+		ChannelOpenConfirmationMessage conf
+			= new ChannelOpenConfirmationMessage();
+		conf.setRecipientChannelId(id);
+		conf.setSenderChannelId(100 + id);
+		conf.setInitialWindowSize(0x10000);
+		conf.setMaxPacketSize(0x8000);
+		return conf;
+	}
+
+	@Test
+	public void shouldCorrelateOpensById() throws Exception
+	{
+		// Given
+		CompletableFuture<SSHChannel> f0 = manager.openSessionAsync();
+		CompletableFuture<SSHChannel> f1 = manager.openSessionAsync();
+		// When
+		manager.dispatch(confirmation(1));
+		manager.dispatch(new ChannelOpenFailureMessage(0,
+			ChannelOpenFailureMessage.RESOURCE_SHORTAGE, "no", ""));
+		// Then
+		assertEquals(1, f1.get().getLocalId());
+		assertTrue(f0.isCompletedExceptionally());
+	}
+
+	@Test
+	public void shouldCompleteGlobalRequestsInOrder() throws Exception
+	{
+		// Given
+		CompletableFuture<Boolean> r0 = manager.globalRequest("a");
+		CompletableFuture<Boolean> r1 = manager.globalRequest("b");
+		// When
+		manager.dispatch(new RequestFailureMessage());
+		manager.dispatch(new RequestSuccessMessage());
+		// Then
+		assertFalse(r0.get());
+		assertTrue(r1.get());
+	}
+
+	@Test
+	public void shouldRejectInvalidMaxPacketSize() throws Exception
+	{
+		// Given
+		CompletableFuture<SSHChannel> f0 = manager.openSessionAsync();
+		ChannelOpenConfirmationMessage conf = confirmation(0);
+		conf.setMaxPacketSize(0);
+		// When
+		manager.dispatch(conf);
+		// Then
+		assertTrue(f0.isCompletedExceptionally());
+		ArgumentCaptor<SSHMessage> msgs
+			= ArgumentCaptor.forClass(SSHMessage.class);
+		verify(transport, times(2)).writeMessage(msgs.capture());
+		ChannelCloseMessage close = (ChannelCloseMessage)msgs.getValue();
+		assertEquals(100, close.getChannelId());
+	}
+
+	@Test
+	public void shouldCapMaxPacketSize() throws Exception
+	{
+		// Given
+		CompletableFuture<SSHChannel> f0 = manager.openSessionAsync();
+		ChannelOpenConfirmationMessage conf = confirmation(0);
+		conf.setMaxPacketSize(0x7fffffff);
+		manager.dispatch(conf);
+		SSHChannel chann = f0.get();
+		// When
+		chann.getOutputStream().write(1);
+		chann.getOutputStream().flush();
+		// Then
+		ArgumentCaptor<SSHMessage> msgs
+			= ArgumentCaptor.forClass(SSHMessage.class);
+		verify(transport, times(2)).writeMessage(msgs.capture());
+		assertEquals(1, ((ChannelDataMessage)msgs.getValue())
+			.getData().length);
+	}
+
+	@Test
+	public void shouldRecycleChannelIds() throws Exception
+	{
+		// Given
+		CompletableFuture<SSHChannel> f0 = manager.openSessionAsync();
+		manager.openSessionAsync();
+		manager.dispatch(confirmation(0));
+		SSHChannel chann = f0.get();
+		chann.peerClose();
+		chann.close();
+		// When
+		manager.openSessionAsync();
+		// Then
+		ArgumentCaptor<SSHMessage> msgs
+			= ArgumentCaptor.forClass(SSHMessage.class);
+		verify(transport, times(4)).writeMessage(msgs.capture());
+		ChannelOpenMessage last = (ChannelOpenMessage)msgs.getValue();
+		assertEquals(0, last.getChannelId());
+	}
+
+	@Test(timeout = 10000)
+	public void shouldNotDelayChannelWhenAnotherIsStalled() throws Exception
+	{
+		// Given
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		manager = new ChannelManager(transport, pool);
+		CompletableFuture<SSHChannel> fa = manager.openSessionAsync();
+		CompletableFuture<SSHChannel> fb = manager.openSessionAsync();
+		manager.dispatch(confirmation(0));
+		manager.dispatch(confirmation(1));
+		SSHChannel a = fa.get();
+		SSHChannel b = fb.get();
+		final CountDownLatch stall = new CountDownLatch(1);
+		a.execCommandAsync("cat").thenRun(new Runnable() {
+			public void run()
+			{
+				try {
+					stall.await();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		ChannelDataMessage data = new ChannelDataMessage();
+		data.setChannelId(1);
+		data.setData(new byte[] {1, 2, 3});
+		try {
+			// When
+			manager.dispatch(new ChannelSuccessMessage(0));
+			manager.dispatch(data);
+			long start = System.nanoTime();
+			byte[] buf = new byte[3];
+			int len = b.getInputStream().read(buf);
+			long elapsed = System.nanoTime() - start;
+			// Then
+			assertEquals(3, len);
+			assertEquals(3, buf[2]);
+			assertTrue("Channel B delayed by channel A",
+				elapsed < TimeUnit.SECONDS.toNanos(1));
+			assertEquals(1, stall.getCount());
+		} finally {
+			stall.countDown();
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.xulfactory.gliese.message.ChannelDataMessage;
+import org.xulfactory.gliese.message.SSHMessage;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class OutboundSchedulerTest
+{
+	@Mock
+	private SSHTransport transport;
+	private OutboundScheduler scheduler;
+	private final List<Integer> sent
+		= Collections.synchronizedList(new ArrayList<Integer>());
+	private final CountDownLatch gate = new CountDownLatch(1);
+	private final List<Thread> writers = new ArrayList<Thread>();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		scheduler = new OutboundScheduler(transport);
+		/* the first write blocks until the gate is opened */
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock inv) throws Throwable
+			{
+				ChannelDataMessage msg
+					= (ChannelDataMessage)inv.getArguments()[0];
+				if (sent.isEmpty()) {
+					gate.await();
+				}
+				sent.add(msg.getChannelId());
+				return null;
+			}
+		}).when(transport).writeMessage(any(SSHMessage.class));
+	}
+
+	/**
+	 * Starts a writer and waits until it is blocked in the scheduler.
+	 */
+	private void write(final OutboundScheduler.Flow flow, int channelId)
+		throws InterruptedException
+	{
+		final ChannelDataMessage msg = new ChannelDataMessage();
+		msg.setChannelId(channelId);
+		msg.setData(new byte[100]);
+		Thread t = new Thread(new Runnable() {
+			public void run()
+			{
+				try {
+					scheduler.write(flow, msg);
+				} catch (SSHException se) {
+					fail(se.getMessage());
+				}
+			}
+		});
+		t.start();
+		writers.add(t);
+		while (t.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+	}
+
+	private List<Integer> release() throws InterruptedException
+	{
+		gate.countDown();
+		for (Thread t: writers) {
+			t.join(5000);
+		}
+		return sent;
+	}
+
+	@Test
+	public void shouldPreemptBulkChannel() throws Exception
+	{
+		// Given
+		OutboundScheduler.Flow bulk = new OutboundScheduler.Flow(100,
+			SSHChannel.PRIORITY_BULK);
+		OutboundScheduler.Flow interactive = new OutboundScheduler.Flow(100,
+			SSHChannel.PRIORITY_INTERACTIVE);
+		write(bulk, 1);
+		write(bulk, 1);
+		write(bulk, 1);
+		// When
+		write(interactive, 2);
+		// Then
+		assertEquals(Arrays.asList(1, 2, 1, 1), release());
+	}
+
+	@Test
+	public void shouldInterleaveChannelsOfSamePriority() throws Exception
+	{
+		// Given
+		OutboundScheduler.Flow a = new OutboundScheduler.Flow(100,
+			SSHChannel.PRIORITY_NORMAL);
+		OutboundScheduler.Flow b = new OutboundScheduler.Flow(100,
+			SSHChannel.PRIORITY_NORMAL);
+		write(a, 1);
+		write(a, 1);
+		write(a, 1);
+		write(a, 1);
+		// When
+		write(b, 2);
+		// Then
+		assertEquals(Arrays.asList(1, 1, 2, 1, 1), release());
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.xulfactory.gliese.util.BufferPool;
+import org.xulfactory.gliese.util.PooledBuffer;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+public class PipeTest
+{
+	private static ByteBuffer data(int value, int len)
+	{
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) {
+			b[i] = (byte)value;
+		}
+		return ByteBuffer.wrap(b);
+	}
+
+	@Test
+	public void shouldKeepOrderBeyondRingCapacity()
+	{
+		// Given
+		Pipe pipe = new Pipe();
+		for (int i = 0; i < 200; i++) {
+			pipe.write(data(i, 3), null);
+		}
+		// When
+		byte[] buf = new byte[1000];
+		int len = pipe.read(buf, 0, 250);
+		pipe.write(data(200, 3), null);
+		len += pipe.read(buf, 250, 750);
+		// Then
+		assertEquals(603, len);
+		for (int i = 0; i < len; i++) {
+			assertEquals((byte)(i / 3), buf[i]);
+		}
+		assertEquals(0, pipe.available());
+	}
+
+	@Test(timeout = 5000)
+	public void shouldWakeReaderOnWrite() throws Exception
+	{
+		// Given
+		final Pipe pipe = new Pipe();
+		Thread writer = new Thread(new Runnable() {
+			public void run()
+			{
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ie) {
+				}
+				pipe.write(data(7, 1), null);
+				pipe.peerClose();
+			}
+		});
+		writer.start();
+		// When
+		int first = pipe.read();
+		int second = pipe.read();
+		// Then
+		assertEquals(7, first);
+		assertEquals(-1, second);
+	}
+
+	@Test
+	public void shouldReleaseBuffersOnClose()
+	{
+		// Given
+		BufferPool pool = new BufferPool(false);
+		Pipe pipe = new Pipe(pool);
+		for (int i = 0; i < 100; i++) {
+			PooledBuffer lease = pool.acquire(16);
+			pipe.write(lease.buffer(), lease);
+			lease.release();
+		}
+		// the ring slots and the spill buffer
+		assertEquals(65, pool.getOutstanding());
+		// When
+		pipe.close();
+		pipe.write(data(1, 1), pool.acquire(16));
+		// Then
+		assertEquals(1, pool.getOutstanding());
+		assertEquals(-1, pipe.read());
+	}
+}
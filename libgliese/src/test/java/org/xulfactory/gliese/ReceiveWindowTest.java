@@ -0,0 +1,105 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+public class ReceiveWindowTest
+{
+	private static final long MS = 1000000L;
+
+	@Test
+	public void shouldAggregateCredit()
+	{
+		// Given
+		ReceiveWindow window = new ReceiveWindow(0x10000, 0x10000, 0);
+		window.received(0x10000);
+		// When
+		long credit = 0;
+		int reads = 0;
+		while (credit == 0) {
+			credit = window.consumed(1);
+			reads++;
+		}
+		// Then
+		assertEquals(0x8000, reads);
+		assertEquals(0x8000, credit);
+	}
+
+	@Test
+	public void shouldGrowWindowUpToMaximumWhenWindowLimited()
+	{
+		// Given
+		ReceiveWindow window = new ReceiveWindow(0x10000, 0x100000, 0);
+		window.rttSample(80 * MS);
+		long now = 0;
+		// When
+		for (int i = 0; i < 10; i++) {
+			long size = window.getSize();
+			/* half the window consumed in half a round-trip */
+			window.consumed((int)(size / 2) - 1);
+			now += 40 * MS;
+			long credit = window.credit(now);
+			// Then
+			assertTrue(credit >= size / 2 - 1);
+			assertTrue(window.getSize() > size || size == 0x100000);
+		}
+		assertEquals(0x100000, window.getSize());
+	}
+
+	@Test
+	public void shouldKeepWindowWhenApplicationLimited()
+	{
+		// Given
+		ReceiveWindow window = new ReceiveWindow(0x10000, 0x100000, 0);
+		window.rttSample(80 * MS);
+		window.consumed(0x7fff);
+		// When
+		long credit = window.credit(1000 * MS);
+		// Then
+		assertEquals(0x7fff, credit);
+		assertEquals(0x10000, window.getSize());
+	}
+
+	@Test
+	public void shouldSampleRttOnStalledPeer()
+	{
+		// Given
+		ReceiveWindow window = new ReceiveWindow(0x10000, 0x100000,
+			System.nanoTime());
+		window.rttSample(1000 * MS);
+		window.received(0x10000);
+		window.consumed(0x8000);
+		window.credit(System.nanoTime());
+		// When
+		window.received(0x1000);
+		// Then
+		long rtt = window.getRtt();
+		assertTrue(rtt < 1000 * MS);
+		window.received(0x1000);
+		assertEquals(rtt, window.getRtt());
+	}
+
+	@Test
+	public void shouldNotSampleRttWhenWindowLeft()
+	{
+		// Given
+		ReceiveWindow window = new ReceiveWindow(0x10000, 0x100000,
+			System.nanoTime());
+		window.rttSample(1000 * MS);
+		window.received(0x8000);
+		window.consumed(0x8000);
+		window.credit(System.nanoTime());
+		// When
+		window.received(0x1000);
+		// Then
+		assertEquals(1000 * MS, window.getRtt());
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.xulfactory.gliese.message.ChannelDataMessage;
+import org.xulfactory.gliese.message.ChannelWindowsAdjustMessage;
+import org.xulfactory.gliese.message.ExitStatusChannelRequest;
+import org.xulfactory.gliese.message.SSHMessage;
+import static org.mockito.Mockito.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SSHChannelTest
+{
+	@Mock
+	private ChannelManager manager;
+	@Mock
+	private ChannelDataListener listener;
+	@Mock
+	private TransferListener progress;
+	private SSHChannel channel;
+
+	@Before
+	public void setUp()
+	{
+		channel = new SSHChannel(1, 2, new ReceiveWindow(0x10000, 0x10000,
+			System.nanoTime()), 0x10000, 0x1000, manager,
+			new Executor() {
+				public void execute(Runnable r)
+				{
+					r.run();
+				}
+			});
+	}
+
+	@Test
+	public void shouldCompleteExecOnReply() throws Exception
+	{
+		// Given
+		CompletableFuture<Void> exec = channel.execCommandAsync("ls");
+		CompletableFuture<Integer> status = channel.getExitStatusAsync();
+		assertFalse(exec.isDone());
+		// When
+		channel.requestReplied(true);
+		channel.handleRequest(new ExitStatusChannelRequest(3), false);
+		// Then
+		verify(manager).writeMessage(any(SSHMessage.class));
+		assertTrue(exec.isDone());
+		assertFalse(exec.isCompletedExceptionally());
+		assertEquals(Integer.valueOf(3), status.get());
+	}
+
+	@Test
+	public void shouldPipelineRequests() throws Exception
+	{
+		// Given
+		CompletableFuture<Void> env = channel.setEnvironmentAsync("LANG", "C");
+		CompletableFuture<Void> pty = channel.requestPtyAsync("vt100", 80, 24);
+		CompletableFuture<Void> exec = channel.execCommandAsync("ls");
+		verify(manager, times(3)).writeMessage(any(SSHMessage.class));
+		// When
+		channel.requestReplied(false);
+		channel.requestReplied(true);
+		channel.requestReplied(true);
+		// Then
+		assertTrue(env.isCompletedExceptionally());
+		assertTrue(pty.isDone());
+		assertFalse(pty.isCompletedExceptionally());
+		assertTrue(exec.isDone());
+		assertFalse(exec.isCompletedExceptionally());
+	}
+
+	@Test
+	public void shouldFailPendingRequestsOnConnectionLoss()
+	{
+		// Given
+		CompletableFuture<Void> exec = channel.execCommandAsync("ls");
+		// When
+		channel.forceClose();
+		// Then
+		assertTrue(exec.isCompletedExceptionally());
+		assertTrue(channel.getExitStatusAsync().isCompletedExceptionally());
+	}
+
+	@Test
+	public void shouldTransferReceivedDataToChannel() throws Exception
+	{
+		// Given
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte)i;
+		}
+		channel.pushData(ByteBuffer.wrap(data, 0, 6000), null);
+		channel.pushData(ByteBuffer.wrap(data, 6000, 4000), null);
+		channel.eof();
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		// When
+		long len = channel.transferTo(Channels.newChannel(file));
+		// Then
+		assertEquals(10000, len);
+		assertArrayEquals(data, file.toByteArray());
+	}
+
+	@Test
+	public void shouldSendChannelContentInPackets() throws Exception
+	{
+		// Given
+		byte[] data = new byte[10000];
+		// When
+		long len = channel.transferFrom(Channels.newChannel(
+			new ByteArrayInputStream(data)));
+		// Then
+		assertEquals(10000, len);
+		verify(manager, times(3)).writeData(any(OutboundScheduler.Flow.class),
+			any(ChannelDataMessage.class));
+	}
+
+	@Test
+	public void shouldReturnCreditWhenListenerAcknowledges() throws Exception
+	{
+		// Given
+		channel.setDataListener(listener);
+		channel.pushData(ByteBuffer.allocate(0x8000), null);
+		channel.eof();
+		verify(listener).data(same(channel), any(ByteBuffer.class));
+		verify(listener).eof(channel);
+		verify(manager, never()).writeMessage(any(SSHMessage.class));
+		// When
+		channel.consumed(0x8000);
+		// Then
+		verify(manager).writeMessage(any(ChannelWindowsAdjustMessage.class));
+		assertEquals(0, channel.getInputStream().available());
+	}
+
+	@Test
+	public void shouldCoalesceSmallWritesUntilFlush() throws Exception
+	{
+		// Given
+		channel.setFlushDelay(0);
+		OutputStream out = channel.getOutputStream();
+		for (int i = 0; i < 100; i++) {
+			out.write(i);
+		}
+		out.write(new byte[10]);
+		verify(manager, never()).writeData(any(OutboundScheduler.Flow.class),
+			any(ChannelDataMessage.class));
+		// When
+		out.flush();
+		// Then
+		ArgumentCaptor<ChannelDataMessage> msg
+			= ArgumentCaptor.forClass(ChannelDataMessage.class);
+		verify(manager).writeData(any(OutboundScheduler.Flow.class),
+			msg.capture());
+		assertEquals(110, msg.getValue().getData().length);
+	}
+
+	@Test
+	public void shouldSendBufferedDataAfterDelay() throws Exception
+	{
+		// Given
+		OutputStream out = channel.getOutputStream();
+		// When
+		out.write(1);
+		// Then
+		verify(manager, timeout(1000)).writeData(
+			any(OutboundScheduler.Flow.class), any(ChannelDataMessage.class));
+	}
+
+	@Test
+	public void shouldSendFileInPackets() throws Exception
+	{
+		// Given
+		File file = File.createTempFile("gliese", ".bin");
+		file.deleteOnExit();
+		FileOutputStream fout = new FileOutputStream(file);
+		fout.write(new byte[10000]);
+		fout.close();
+		// When
+		long len = channel.sendFile(file.toPath(), progress);
+		// Then
+		assertEquals(10000, len);
+		verify(manager, times(3)).writeData(any(OutboundScheduler.Flow.class),
+			any(ChannelDataMessage.class));
+		verify(progress).progress(eq(10000L), eq(10000L), anyLong());
+	}
+}
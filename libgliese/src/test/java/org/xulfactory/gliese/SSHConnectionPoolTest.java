@@ -0,0 +1,154 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.Mockito.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+public class SSHConnectionPoolTest
+{
+	private final List<SSHConnection> opened = new ArrayList<SSHConnection>();
+	private int failures = 0;
+	private SSHConnectionPool pool;
+
+	@Before
+	public void setUp()
+	{
+		pool = new SSHConnectionPool(2, 60000L) {
+			@Override
+			SSHConnection connect(String host, int port, String username,
+				char[] password) throws IOException, SSHException
+			{
+				if (failures > 0) {
+					failures--;
+					throw new IOException("Connection refused");
+				}
+				SSHConnection con = mock(SSHConnection.class);
+				when(con.isOpen()).thenReturn(true);
+				opened.add(con);
+				return con;
+			}
+		};
+		pool.setReconnectPolicy(3, 1L, 10L);
+		pool.setLeaseTimeout(50L);
+	}
+
+	@After
+	public void tearDown()
+	{
+		pool.close();
+	}
+
+	@Test
+	public void shouldReuseReturnedConnection() throws SSHException
+	{
+		// Given
+		SSHConnectionPool.Lease l1 = pool.lease("host", 22, "user",
+			"secret".toCharArray());
+		l1.close();
+		// When
+		SSHConnectionPool.Lease l2 = pool.lease("host", 22, "user",
+			"secret".toCharArray());
+		SSHConnectionPool.Lease l3 = pool.lease("host", 22, "user",
+			"other".toCharArray());
+		// Then
+		assertSame(l1.getConnection(), l2.getConnection());
+		assertNotSame(l1.getConnection(), l3.getConnection());
+		assertEquals(2, opened.size());
+	}
+
+	@Test
+	public void shouldDiscardClosedConnection() throws SSHException
+	{
+		// Given
+		SSHConnectionPool.Lease l1 = pool.lease("host", 22, "user",
+			"secret".toCharArray());
+		l1.close();
+		when(l1.getConnection().isOpen()).thenReturn(false);
+		// When
+		SSHConnectionPool.Lease l2 = pool.lease("host", 22, "user",
+			"secret".toCharArray());
+		// Then
+		assertNotSame(l1.getConnection(), l2.getConnection());
+		verify(l1.getConnection()).close();
+	}
+
+	@Test
+	public void shouldProbeIdleConnection() throws SSHException
+	{
+		// Given
+		pool.setProbePolicy(0L, 10L);
+		SSHConnectionPool.Lease l1 = pool.lease("host", 22, "user",
+			"secret".toCharArray());
+		l1.close();
+		when(l1.getConnection().isAlive(10L)).thenReturn(false);
+		// When
+		SSHConnectionPool.Lease l2 = pool.lease("host", 22, "user",
+			"secret".toCharArray());
+		// Then
+		assertNotSame(l1.getConnection(), l2.getConnection());
+		verify(l1.getConnection()).close();
+		assertEquals(2, opened.size());
+	}
+
+	@Test
+	public void shouldRetryAndLimitConnections() throws SSHException
+	{
+		// Given
+		failures = 2;
+		pool.lease("host", 22, "user", "secret".toCharArray());
+		pool.lease("host", 22, "user", "secret".toCharArray());
+		// When
+		try {
+			pool.lease("host", 22, "user", "secret".toCharArray());
+			fail("Lease should time out");
+		} catch (SSHException se) {
+			// Then
+			assertEquals(2, opened.size());
+			assertEquals(0, failures);
+		}
+	}
+
+	@Test
+	public void shouldDropEmptyPool() throws Exception
+	{
+		// Given
+		pool.close();
+		pool = new SSHConnectionPool(2, 0L) {
+			@Override
+			SSHConnection connect(String host, int port, String username,
+				char[] password) throws IOException, SSHException
+			{
+				assertEquals("secret", new String(password));
+				SSHConnection con = mock(SSHConnection.class);
+				when(con.isOpen()).thenReturn(true);
+				opened.add(con);
+				return con;
+			}
+		};
+		SSHConnectionPool.Lease l1 = pool.lease("host", 22, "user",
+			"secret".toCharArray());
+		l1.close();
+		Thread.sleep(1L);
+		// When
+		pool.evictIdle();
+		SSHConnectionPool.Lease l2 = pool.lease("host", 22, "user",
+			"secret".toCharArray());
+		// Then
+		verify(l1.getConnection()).close();
+		assertNotSame(l1.getConnection(), l2.getConnection());
+		assertEquals(2, opened.size());
+	}
+}
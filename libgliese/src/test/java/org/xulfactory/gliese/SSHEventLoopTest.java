@@ -0,0 +1,96 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xulfactory.gliese.message.PacketFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+public class SSHEventLoopTest
+{
+	private ServerSocketChannel server;
+	private SSHEventLoop loop;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+			0));
+		loop = new SSHEventLoop("test");
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		loop.shutdown();
+		server.close();
+	}
+
+	private SocketChannel connect(NioPacketChannel[] client)
+		throws Exception
+	{
+		SocketChannel c = SocketChannel.open(server.getLocalAddress());
+		SocketChannel peer = server.accept();
+		client[0] = new NioPacketChannel(c, loop, new PacketFactory());
+		client[0].start();
+		return peer;
+	}
+
+	@Test(timeout = 10000)
+	public void shouldFailOnlyTheChannelOfTheFailedTask() throws Exception
+	{
+		// Given
+		NioPacketChannel[] a = new NioPacketChannel[1];
+		NioPacketChannel[] b = new NioPacketChannel[1];
+		connect(a);
+		SocketChannel peer = connect(b);
+		// When
+		loop.execute(a[0], new Runnable() {
+			public void run()
+			{
+				throw new AssertionError("failure");
+			}
+		});
+		peer.write(ByteBuffer.wrap("SSH-2.0-test\r\n".getBytes("US-ASCII")));
+		// Then
+		try {
+			a[0].readLine();
+			fail("Channel should be failed");
+		} catch (SSHException se) {
+			assertFalse(a[0].isOpen());
+		}
+		assertEquals("SSH-2.0-test", b[0].readLine());
+		assertTrue(b[0].isOpen());
+	}
+
+	@Test(timeout = 10000)
+	public void shouldFailChannelsWhenStopped() throws Exception
+	{
+		// Given
+		NioPacketChannel[] a = new NioPacketChannel[1];
+		connect(a);
+		// When
+		loop.shutdown();
+		// Then
+		try {
+			a[0].readLine();
+			fail("Channel should be failed");
+		} catch (SSHException se) {
+			assertFalse(a[0].isOpen());
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese;
+
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs concurrent remote commands, one virtual thread per command, on a
+ * small carrier pool. Requires JDK 21 for the virtual threads; falls back
+ * to a fixed pool of platform threads otherwise.
+ *
+ * Usage: {@code VirtualThreadExecBenchmark host port user password
+ * [execs] [connections] [command]}. The carrier pool size is given by the
+ * {@code jdk.virtualThreadScheduler.parallelism} property (4 by default)
+ * and the pinned threads are reported with
+ * {@code -Djdk.tracePinnedThreads=short}. The library properties, such as
+ * {@code gliese.transport}, are read from the system properties.
+ *
+ * @author sirot
+ */
+public class VirtualThreadExecBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 4) {
+			System.err.println("usage: VirtualThreadExecBenchmark host port"
+				+ " user password [execs] [connections] [command]");
+			System.exit(1);
+		}
+		if (System.getProperty("jdk.virtualThreadScheduler.parallelism") == null) {
+			System.setProperty("jdk.virtualThreadScheduler.parallelism", "4");
+		}
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		String user = args[2];
+		char[] password = args[3].toCharArray();
+		int execs = args.length > 4 ? Integer.parseInt(args[4]) : 10000;
+		int count = args.length > 5 ? Integer.parseInt(args[5]) : 16;
+		final String command = args.length > 6 ? args[6] : "true";
+
+		Properties props = System.getProperties();
+		Gliese.setProperties(props);
+		final SSHConnection[] cons = new SSHConnection[count];
+		for (int i = 0; i < count; i++) {
+			cons[i] = new SSHConnection(new AlgorithmRegistry(),
+				props, Gliese.getEventLoopGroup());
+			cons[i].setHostKeyVerifier(new HostKeyVerifier() {
+				public boolean isTrusted(SSHTransport transport,
+					String name, byte[] key)
+				{
+					return true;
+				}
+			});
+			cons[i].openConnection(host, port);
+			if (!cons[i].authenticate(user, password).isSuccess()) {
+				throw new SSHException("Authentication failed");
+			}
+		}
+
+		ExecutorService executor = newVirtualThreadExecutor();
+		final AtomicInteger failures = new AtomicInteger();
+		long t0 = System.nanoTime();
+		for (int i = 0; i < execs; i++) {
+			final SSHConnection con = cons[i % count];
+			executor.execute(new Runnable() {
+				public void run()
+				{
+					try {
+						SSHChannel channel = con.openSession();
+						channel.execCommand(command);
+						InputStream in = channel.getInputStream();
+						byte[] buf = new byte[1024];
+						while (in.read(buf, 0, buf.length) > 0) {
+						}
+						channel.close();
+						if (channel.getExitStatus() != 0) {
+							failures.incrementAndGet();
+						}
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.HOURS);
+		long dt = System.nanoTime() - t0;
+		System.out.printf("%d execs on %d connections in %.2f s:"
+			+ " %.0f execs/s, %d failures%n", execs, count, dt / 1e9,
+			execs / (dt / 1e9), failures.get());
+		for (SSHConnection con: cons) {
+			con.close();
+		}
+		System.exit(0);
+	}
+
+	private static ExecutorService newVirtualThreadExecutor()
+	{
+		try {
+			/* JDK 21, looked up by reflection to build on older JDKs */
+			return (ExecutorService)Executors.class.getMethod(
+				"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			System.err.println("Virtual threads not available,"
+				+ " using platform threads");
+			return Executors.newFixedThreadPool(200);
+		}
+	}
+}
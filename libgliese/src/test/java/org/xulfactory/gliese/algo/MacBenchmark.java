@@ -0,0 +1,62 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese.algo;
+
+import javax.crypto.Mac;
+import org.xulfactory.gliese.MacAlgorithm;
+
+/**
+ * Computes the MAC of 32KB packets with each MAC algorithm and reports
+ * the throughput. Only the MAC is timed, see {@code CipherBenchmark} for
+ * the whole packet protection.
+ *
+ * Usage: {@code MacBenchmark [megabytes]}
+ *
+ * @author sirot
+ */
+public class MacBenchmark
+{
+	private static final int PACKET_SIZE = 0x8000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int mb = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		MacAlgorithm[] algos = {
+			new HMACSHA1(), new HMACSHA2.HMACSHA256(),
+			new UMAC.UMAC64(), new UMAC.UMAC128()
+		};
+		/* warm up */
+		for (MacAlgorithm algo: algos) {
+			run(algo, 256L << 20);
+		}
+		for (MacAlgorithm algo: algos) {
+			long total = (long)mb << 20;
+			long dt = run(algo, total);
+			System.out.printf("%-22s %8.1f MB/s%n", algo.getName(),
+				total / (dt / 1e9) / (1 << 20));
+		}
+	}
+
+	/**
+	 * Authenticates {@code total} bytes in packets.
+	 *
+	 * @return  the elapsed time in nanoseconds
+	 */
+	private static long run(MacAlgorithm algo, long total) throws Exception
+	{
+		Mac mac = algo.getInstance(new byte[algo.getKeyLength()]);
+		byte[] seq = new byte[4];
+		byte[] data = new byte[PACKET_SIZE];
+		byte[] code = new byte[mac.getMacLength()];
+		long t0 = System.nanoTime();
+		for (long sent = 0; sent < total; sent += PACKET_SIZE) {
+			mac.update(seq);
+			mac.update(data);
+			mac.doFinal(code, 0);
+			seq[3]++;
+		}
+		return System.nanoTime() - t0;
+	}
+}
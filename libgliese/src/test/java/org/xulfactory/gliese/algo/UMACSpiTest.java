@@ -0,0 +1,76 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese.algo;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the UMAC implementation against the test vectors of RFC 4418.
+ *
+ * @author sirot
+ */
+public class UMACSpiTest
+{
+	private static final byte[] KEY = "abcdefghijklmnop".getBytes();
+	private static final byte[] NONCE = "bcdefghi".getBytes();
+
+	private static byte[] repeat(String s, int count)
+	{
+		byte[] b = new byte[s.length() * count];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte)s.charAt(i % s.length());
+		}
+		return b;
+	}
+
+	private static String tag(int length, byte[] msg) throws Exception
+	{
+		UMACSpi spi = new UMACSpi(length);
+		spi.engineInit(new SecretKeySpec(KEY, "UMAC"), null);
+		spi.setNonce(NONCE);
+		/* fed in pieces crossing the chunk boundaries */
+		for (int off = 0; off < msg.length; off += 1000) {
+			spi.engineUpdate(msg, off, Math.min(1000, msg.length - off));
+		}
+		String hex = new BigInteger(1, spi.engineDoFinal()).toString(16);
+		while (hex.length() < 2 * length) {
+			hex = "0" + hex;
+		}
+		return hex.toUpperCase();
+	}
+
+	@Test
+	public void shouldComputeRfcTags() throws Exception
+	{
+		// Given
+		byte[][] msgs = {
+			new byte[0], repeat("a", 3), repeat("a", 1 << 10),
+			repeat("a", 1 << 15), repeat("a", 1 << 20), repeat("abc", 1),
+			repeat("abc", 500)
+		};
+		String[][] tags = {
+			{"113145FB", "6E155FAD26900BE1", "32FEDB100C79AD58F07FF764"},
+			{"3B91D102", "44B5CB542F220104", "185E4FE905CBA7BD85E4C2DC"},
+			{"599B350B", "26BF2F5D60118BD9", "7A54ABE04AF82D60FB298C3C"},
+			{"58DCF532", "27F8EF643B0D118D", "7B136BD911E4B734286EF2BE"},
+			{"DB6364D1", "A4477E87E9F55853", "F8ACFA3AC31CFEEA047F7B11"},
+			{"ABF3A3A0", "D4D7B9F6BD4FBFCF", "883C3D4B97A61976FFCF2323"},
+			{"ABEB3C8B", "D4CF26DDEFD5C01A", "8824A260C53C66A36C9260A6"}
+		};
+		for (int i = 0; i < msgs.length; i++) {
+			// When
+			String[] computed = {
+				tag(4, msgs[i]), tag(8, msgs[i]), tag(12, msgs[i])
+			};
+			// Then
+			assertEquals("Message " + i, Arrays.asList(tags[i]),
+				Arrays.asList(computed));
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese.message;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import javax.crypto.Cipher;
+import org.xulfactory.gliese.algo.AES128CBC;
+import org.xulfactory.gliese.algo.AESCTR;
+import org.xulfactory.gliese.algo.AESGCM;
+import org.xulfactory.gliese.algo.ChaCha20Poly1305;
+import org.xulfactory.gliese.algo.HMACSHA1;
+import org.xulfactory.gliese.algo.UMAC;
+import org.xulfactory.gliese.util.PooledBuffer;
+
+/**
+ * Encodes and decodes 32KB channel data packets with each cipher suite
+ * and reports the throughput. The whole data stream is encrypted,
+ * authenticated, decrypted and verified, so the numbers compare the
+ * crypto passes of the suites.
+ *
+ * Usage: {@code CipherBenchmark [megabytes] [suite...]}, all the suites
+ * being run by default.
+ *
+ * @author sirot
+ */
+public class CipherBenchmark
+{
+	private static final int PACKET_SIZE = 0x8000;
+
+	/**
+	 * Creates the algorithms of a suite for one direction.
+	 */
+	private interface Suite
+	{
+		PacketCrypto create(int mode);
+	}
+
+	/** Runs the worker tasks of the parallel ciphers */
+	private static final Executor EXECUTOR = new Executor() {
+		public void execute(Runnable r)
+		{
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			t.start();
+		}
+	};
+
+	private static final Map<String, Suite> SUITES
+		= new LinkedHashMap<String, Suite>();
+
+	static {
+		SUITES.put("aes128-cbc+hmac-sha1", new Suite() {
+			public PacketCrypto create(int mode)
+			{
+				return new PacketCrypto(
+					new AES128CBC().getInstance(new byte[16],
+					new byte[16], mode),
+					new HMACSHA1().getInstance(new byte[20]));
+			}
+		});
+		SUITES.put("aes128-ctr+hmac-sha1", new Suite() {
+			public PacketCrypto create(int mode)
+			{
+				return new PacketCrypto(
+					new AESCTR.AES128CTR().getInstance(new byte[16],
+					new byte[16], mode),
+					new HMACSHA1().getInstance(new byte[20]));
+			}
+		});
+		SUITES.put("aes128-ctr+umac-64", new Suite() {
+			public PacketCrypto create(int mode)
+			{
+				return new PacketCrypto(
+					new AESCTR.AES128CTR().getInstance(new byte[16],
+					new byte[16], mode),
+					new UMAC.UMAC64().getInstance(new byte[16]));
+			}
+		});
+		SUITES.put("aes128-ctr+umac-128", new Suite() {
+			public PacketCrypto create(int mode)
+			{
+				return new PacketCrypto(
+					new AESCTR.AES128CTR().getInstance(new byte[16],
+					new byte[16], mode),
+					new UMAC.UMAC128().getInstance(new byte[16]));
+			}
+		});
+		SUITES.put("aes128-ctr/2+hmac-sha1", new Suite() {
+			public PacketCrypto create(int mode)
+			{
+				return new PacketCrypto(
+					new AESCTR.AES128CTR().getParallelInstance(
+					new byte[16], new byte[16], mode, EXECUTOR, 2),
+					new HMACSHA1().getInstance(new byte[20]));
+			}
+		});
+		SUITES.put("aes128-gcm@openssh.com", new Suite() {
+			public PacketCrypto create(int mode)
+			{
+				return new PacketCrypto(new AESGCM.AES128GCM()
+					.getAEADInstance(new byte[16], new byte[12], mode));
+			}
+		});
+		SUITES.put("aes256-gcm@openssh.com", new Suite() {
+			public PacketCrypto create(int mode)
+			{
+				return new PacketCrypto(new AESGCM.AES256GCM()
+					.getAEADInstance(new byte[32], new byte[12], mode));
+			}
+		});
+		SUITES.put("chacha20-poly1305@openssh.com", new Suite() {
+			public PacketCrypto create(int mode)
+			{
+				return new PacketCrypto(new ChaCha20Poly1305()
+					.getAEADInstance(new byte[64], new byte[0], mode));
+			}
+		});
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int mb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		String[] names = SUITES.keySet().toArray(new String[0]);
+		if (args.length > 1) {
+			names = new String[args.length - 1];
+			System.arraycopy(args, 1, names, 0, names.length);
+		}
+		/* warm up */
+		for (String name: names) {
+			run(SUITES.get(name), 64L << 20);
+		}
+		for (String name: names) {
+			long total = (long)mb << 20;
+			long dt = run(SUITES.get(name), total);
+			System.out.printf("%-26s %8.1f MB/s%n", name,
+				total / (dt / 1e9) / (1 << 20));
+		}
+	}
+
+	/**
+	 * Sends {@code total} bytes in packets protected by the suite.
+	 *
+	 * @return  the elapsed time in nanoseconds
+	 */
+	private static long run(Suite suite, long total) throws Exception
+	{
+		PacketEncoder encoder = new PacketEncoder();
+		encoder.updateCrypto(suite.create(Cipher.ENCRYPT_MODE));
+		PacketDecoder decoder = new PacketDecoder();
+		decoder.updateCrypto(suite.create(Cipher.DECRYPT_MODE));
+		byte[] data = new byte[PACKET_SIZE];
+		long received = 0;
+		long t0 = System.nanoTime();
+		for (long sent = 0; sent < total; sent += PACKET_SIZE) {
+			ChannelDataMessage msg = new ChannelDataMessage();
+			msg.setChannelId(0);
+			msg.setData(data);
+			PooledBuffer packet = encoder.encode(msg);
+			PooledBuffer payload = decoder.decode(packet.buffer());
+			packet.release();
+			if (payload == null) {
+				throw new IllegalStateException("Packet not decoded");
+			}
+			received += payload.buffer().remaining() - 9;
+			payload.release();
+		}
+		long dt = System.nanoTime() - t0;
+		if (received != total) {
+			throw new IllegalStateException("Data lost");
+		}
+		return dt;
+	}
+}
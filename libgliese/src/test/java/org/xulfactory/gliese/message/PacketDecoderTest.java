@@ -0,0 +1,338 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese.message;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import org.junit.Test;
+import org.xulfactory.gliese.SSHException;
+import org.xulfactory.gliese.AEADCipherAlgorithm;
+import org.xulfactory.gliese.algo.AES128CBC;
+import org.xulfactory.gliese.algo.AESCTR;
+import org.xulfactory.gliese.algo.AESGCM;
+import org.xulfactory.gliese.algo.ChaCha20Poly1305;
+import org.xulfactory.gliese.algo.HMACSHA2;
+import org.xulfactory.gliese.algo.HMACSHA1;
+import org.xulfactory.gliese.util.BufferPool;
+import org.xulfactory.gliese.util.PooledBuffer;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+public class PacketDecoderTest
+{
+	private static ChannelDataMessage dataMessage(int len)
+	{
+		byte[] data = new byte[len];
+		for (int i = 0; i < len; i++) {
+			data[i] = (byte)i;
+		}
+		ChannelDataMessage msg = new ChannelDataMessage();
+		msg.setChannelId(7);
+		msg.setData(data);
+		return msg;
+	}
+
+	private static byte[] toArray(PooledBuffer lease)
+	{
+		if (lease == null) {
+			return null;
+		}
+		ByteBuffer buf = lease.buffer();
+		byte[] b = new byte[buf.remaining()];
+		buf.get(b);
+		lease.release();
+		return b;
+	}
+
+	@Test
+	public void shouldResumeOnPartialInput() throws SSHException
+	{
+		// Given
+		PacketEncoder encoder = new PacketEncoder();
+		PacketDecoder decoder = new PacketDecoder();
+		ChannelDataMessage msg = dataMessage(100);
+		byte[] packet = toArray(encoder.encode(msg));
+		ByteBuffer buf = ByteBuffer.allocate(packet.length);
+		// When
+		byte[] payload = null;
+		for (int i = 0; i < packet.length; i++) {
+			assertNull("Packet should not be complete", payload);
+			buf.put(packet[i]);
+			buf.flip();
+			payload = toArray(decoder.decode(buf));
+			buf.compact();
+		}
+		// Then
+		assertNotNull(payload);
+		assertEquals(ChannelDataMessage.ID, payload[0]);
+		assertEquals(msg.encode().length + 1, payload.length);
+		assertEquals(0, buf.position());
+	}
+
+	@Test
+	public void shouldDecodeEncryptedPackets() throws SSHException
+	{
+		// Given
+		byte[] key = new byte[16];
+		byte[] iv = new byte[16];
+		byte[] mkey = new byte[20];
+		AES128CBC aes = new AES128CBC();
+		HMACSHA1 hmac = new HMACSHA1();
+		PacketEncoder encoder = new PacketEncoder();
+		encoder.updateCrypto(aes.getInstance(key, iv, Cipher.ENCRYPT_MODE),
+			hmac.getInstance(mkey));
+		PacketDecoder decoder = new PacketDecoder();
+		decoder.updateCrypto(aes.getInstance(key, iv, Cipher.DECRYPT_MODE),
+			hmac.getInstance(mkey));
+		ByteBuffer buf = ByteBuffer.allocate(0x4000);
+		buf.put(toArray(encoder.encode(dataMessage(1000))));
+		buf.put(toArray(encoder.encode(dataMessage(10))));
+		buf.flip();
+		// When
+		byte[] p1 = toArray(decoder.decode(buf));
+		byte[] p2 = toArray(decoder.decode(buf));
+		// Then
+		assertEquals(1000 + 9, p1.length);
+		assertEquals(10 + 9, p2.length);
+		assertFalse(buf.hasRemaining());
+	}
+
+	@Test(expected = SSHException.class)
+	public void shouldRejectBadMac() throws SSHException
+	{
+		// Given
+		Mac mac = new HMACSHA1().getInstance(new byte[20]);
+		PacketEncoder encoder = new PacketEncoder();
+		encoder.updateCrypto(null, mac);
+		PacketDecoder decoder = new PacketDecoder();
+		decoder.updateCrypto(null, new HMACSHA1().getInstance(new byte[20]));
+		byte[] packet = toArray(encoder.encode(dataMessage(10)));
+		packet[packet.length - 1] ^= 1;
+		// When
+		toArray(decoder.decode(ByteBuffer.wrap(packet)));
+	}
+
+	@Test
+	public void shouldSuspendAfterNewKeys() throws SSHException
+	{
+		// Given
+		PacketEncoder encoder = new PacketEncoder();
+		PacketDecoder decoder = new PacketDecoder();
+		ByteBuffer buf = ByteBuffer.allocate(0x1000);
+		buf.put(toArray(encoder.encode(new NewKeysMessage())));
+		buf.put(toArray(encoder.encode(dataMessage(10))));
+		buf.flip();
+		// When
+		byte[] p1 = toArray(decoder.decode(buf));
+		byte[] p2 = toArray(decoder.decode(buf));
+		decoder.updateCrypto(null, null);
+		byte[] p3 = toArray(decoder.decode(buf));
+		// Then
+		assertEquals(NewKeysMessage.ID, p1[0]);
+		assertNull("Decoder should wait for the new keys", p2);
+		assertEquals(ChannelDataMessage.ID, p3[0]);
+	}
+
+	@Test
+	public void shouldDecodeAeadPackets() throws SSHException
+	{
+		// Given
+		AEADCipherAlgorithm gcm = new AESGCM.AES128GCM();
+		byte[] key = new byte[16];
+		byte[] iv = new byte[12];
+		PacketEncoder encoder = new PacketEncoder();
+		encoder.updateCrypto(new PacketCrypto(
+			gcm.getAEADInstance(key, iv, Cipher.ENCRYPT_MODE)));
+		PacketDecoder decoder = new PacketDecoder();
+		decoder.updateCrypto(new PacketCrypto(
+			gcm.getAEADInstance(key, iv, Cipher.DECRYPT_MODE)));
+		ByteBuffer buf = ByteBuffer.allocate(0x4000);
+		buf.put(toArray(encoder.encode(dataMessage(1000))));
+		buf.put(toArray(encoder.encode(dataMessage(10))));
+		buf.flip();
+		// When
+		byte[] p1 = toArray(decoder.decode(buf));
+		byte[] p2 = toArray(decoder.decode(buf));
+		// Then
+		assertEquals(1000 + 9, p1.length);
+		assertEquals(10 + 9, p2.length);
+		assertFalse(buf.hasRemaining());
+	}
+
+	@Test
+	public void shouldDecodeEncryptedLengthPackets() throws SSHException
+	{
+		// Given
+		AEADCipherAlgorithm chacha = new ChaCha20Poly1305();
+		byte[] key = new byte[64];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = (byte)i;
+		}
+		PacketEncoder encoder = new PacketEncoder();
+		encoder.updateCrypto(new PacketCrypto(
+			chacha.getAEADInstance(key, new byte[0], Cipher.ENCRYPT_MODE)));
+		PacketDecoder decoder = new PacketDecoder();
+		decoder.updateCrypto(new PacketCrypto(
+			chacha.getAEADInstance(key, new byte[0], Cipher.DECRYPT_MODE)));
+		byte[] packet = toArray(encoder.encode(dataMessage(1000)));
+		ByteBuffer buf = ByteBuffer.allocate(0x4000);
+		buf.put(packet);
+		buf.put(toArray(encoder.encode(dataMessage(10))));
+		buf.flip();
+		// When
+		byte[] p1 = toArray(decoder.decode(buf));
+		byte[] p2 = toArray(decoder.decode(buf));
+		// Then
+		assertFalse("Length should be encrypted",
+			ByteBuffer.wrap(packet).getInt() == packet.length - 20);
+		assertEquals(1000 + 9, p1.length);
+		assertEquals(10 + 9, p2.length);
+		assertFalse(buf.hasRemaining());
+	}
+
+	@Test
+	public void shouldDecodeParallelCounterModePackets() throws SSHException
+	{
+		// Given
+		AESCTR ctr = new AESCTR.AES128CTR();
+		byte[] key = new byte[16];
+		byte[] iv = new byte[16];
+		Arrays.fill(iv, 1, 16, (byte)0xff);
+		Executor executor = new Executor() {
+			public void execute(Runnable r)
+			{
+				new Thread(r).start();
+			}
+		};
+		PacketEncoder encoder = new PacketEncoder();
+		encoder.updateCrypto(new PacketCrypto(ctr.getParallelInstance(
+			key, iv, Cipher.ENCRYPT_MODE, executor, 2),
+			new HMACSHA1().getInstance(new byte[20])));
+		PacketDecoder decoder = new PacketDecoder();
+		decoder.updateCrypto(new PacketCrypto(ctr.getInstance(
+			key, iv, Cipher.DECRYPT_MODE),
+			new HMACSHA1().getInstance(new byte[20])));
+		// When
+		int decoded = 0;
+		for (int i = 0; i < 40; i++) {
+			ByteBuffer buf = ByteBuffer.wrap(toArray(
+				encoder.encode(dataMessage(0x8000 - i))));
+			byte[] p = toArray(decoder.decode(buf));
+			assertEquals(0x8000 - i + 9, p.length);
+			assertEquals((byte)(0x7fff - i), p[p.length - 1]);
+			decoded++;
+		}
+		// Then
+		assertEquals(40, decoded);
+	}
+
+	@Test
+	public void shouldDecodeEncryptThenMacPackets() throws SSHException
+	{
+		// Given
+		AESCTR ctr = new AESCTR.AES128CTR();
+		HMACSHA2 hmac = new HMACSHA2.HMACSHA256ETM();
+		PacketEncoder encoder = new PacketEncoder();
+		encoder.updateCrypto(new PacketCrypto(ctr.getInstance(new byte[16],
+			new byte[16], Cipher.ENCRYPT_MODE),
+			hmac.getInstance(new byte[32]), true));
+		PacketDecoder decoder = new PacketDecoder();
+		decoder.updateCrypto(new PacketCrypto(ctr.getInstance(new byte[16],
+			new byte[16], Cipher.DECRYPT_MODE),
+			hmac.getInstance(new byte[32]), true));
+		byte[] packet = toArray(encoder.encode(dataMessage(1000)));
+		ByteBuffer buf = ByteBuffer.allocate(0x4000);
+		buf.put(packet);
+		buf.put(toArray(encoder.encode(dataMessage(10))));
+		buf.flip();
+		// When
+		byte[] p1 = toArray(decoder.decode(buf));
+		byte[] p2 = toArray(decoder.decode(buf));
+		// Then
+		assertEquals("Length should be in clear", packet.length - 4 - 32,
+			ByteBuffer.wrap(packet).getInt());
+		assertEquals(1000 + 9, p1.length);
+		assertEquals(10 + 9, p2.length);
+		assertFalse(buf.hasRemaining());
+	}
+
+	@Test
+	public void shouldRejectBadMacBeforeDecrypting()
+	{
+		// Given
+		Cipher cipher = new AESCTR.AES128CTR().getInstance(new byte[16],
+			new byte[16], Cipher.DECRYPT_MODE);
+		Mac mac = new HMACSHA2.HMACSHA512ETM().getInstance(new byte[64]);
+		PacketEncoder encoder = new PacketEncoder();
+		encoder.updateCrypto(new PacketCrypto(new AESCTR.AES128CTR()
+			.getInstance(new byte[16], new byte[16], Cipher.ENCRYPT_MODE),
+			new HMACSHA2.HMACSHA512ETM().getInstance(new byte[64]), true));
+		PacketDecoder decoder = new PacketDecoder();
+		decoder.updateCrypto(new PacketCrypto(cipher, mac, true));
+		byte[] packet = toArray(encoder.encode(dataMessage(10)));
+		packet[10] ^= 1;
+		// When
+		try {
+			toArray(decoder.decode(ByteBuffer.wrap(packet)));
+			fail("Packet should be rejected");
+		} catch (SSHException se) {
+			// Then
+			assertTrue(decoder.isMacFailure());
+			byte[] first = cipher.update(new byte[16]);
+			assertArrayEquals("Nothing should be decrypted",
+				new AESCTR.AES128CTR().getInstance(new byte[16],
+				new byte[16], Cipher.DECRYPT_MODE).update(new byte[16]),
+				first);
+		}
+	}
+
+	@Test
+	public void shouldRejectBadTag()
+	{
+		// Given
+		AEADCipherAlgorithm gcm = new AESGCM.AES128GCM();
+		PacketEncoder encoder = new PacketEncoder();
+		encoder.updateCrypto(new PacketCrypto(gcm.getAEADInstance(
+			new byte[16], new byte[12], Cipher.ENCRYPT_MODE)));
+		PacketDecoder decoder = new PacketDecoder();
+		decoder.updateCrypto(new PacketCrypto(gcm.getAEADInstance(
+			new byte[16], new byte[12], Cipher.DECRYPT_MODE)));
+		byte[] packet = toArray(encoder.encode(dataMessage(10)));
+		packet[10] ^= 1;
+		// When
+		try {
+			toArray(decoder.decode(ByteBuffer.wrap(packet)));
+			fail("Packet should be rejected");
+		} catch (SSHException se) {
+			// Then
+			assertTrue(decoder.isMacFailure());
+		}
+	}
+
+	@Test
+	public void shouldReleasePacketOnInvalidPadding()
+	{
+		// Given
+		BufferPool pool = new BufferPool(false);
+		PacketDecoder decoder = new PacketDecoder(pool);
+		ByteBuffer packet = ByteBuffer.allocate(16);
+		packet.putInt(12).put((byte)2).put((byte)2);
+		packet.clear();
+		// When
+		try {
+			decoder.decode(packet);
+			fail("Packet should be rejected");
+		} catch (SSHException se) {
+			// Then
+			assertEquals(0, pool.getOutstanding());
+		}
+	}
+}
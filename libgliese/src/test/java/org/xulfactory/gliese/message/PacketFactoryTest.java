@@ -0,0 +1,87 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import javax.crypto.Cipher;
+import org.junit.Test;
+import org.xulfactory.gliese.SSHException;
+import org.xulfactory.gliese.algo.AES128CBC;
+import org.xulfactory.gliese.algo.HMACSHA1;
+import org.xulfactory.gliese.util.PooledBuffer;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+public class PacketFactoryTest
+{
+	@Test
+	public void shouldReadEncryptedMessagesFromStream() throws SSHException
+	{
+		// Given
+		byte[] key = new byte[16];
+		byte[] iv = new byte[16];
+		byte[] mkey = new byte[20];
+		AES128CBC aes = new AES128CBC();
+		HMACSHA1 hmac = new HMACSHA1();
+		PacketEncoder encoder = new PacketEncoder();
+		encoder.updateCrypto(aes.getInstance(key, iv, Cipher.ENCRYPT_MODE),
+			hmac.getInstance(mkey));
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int len: new int[] {5000, 1, 100}) {
+			ChannelDataMessage msg = new ChannelDataMessage();
+			msg.setChannelId(3);
+			msg.setData(new byte[len]);
+			PooledBuffer packet = encoder.encode(msg);
+			ByteBuffer buf = packet.buffer();
+			stream.write(buf.array(), buf.arrayOffset(), buf.remaining());
+			packet.release();
+		}
+		PacketFactory factory = new PacketFactory(
+			new ByteArrayInputStream(stream.toByteArray()),
+			new ByteArrayOutputStream());
+		factory.newKeys(null, aes.getInstance(key, iv, Cipher.DECRYPT_MODE),
+			null, hmac.getInstance(mkey));
+		// When
+		ChannelDataMessage m1 = (ChannelDataMessage)factory.readMessage();
+		ChannelDataMessage m2 = (ChannelDataMessage)factory.readMessage();
+		ChannelDataMessage m3 = (ChannelDataMessage)factory.readMessage();
+		// Then
+		assertEquals(3, m1.getChannelId());
+		assertEquals(5000, m1.getData().length);
+		assertEquals(1, m2.getData().length);
+		assertEquals(100, m3.getData().length);
+	}
+
+	@Test
+	public void shouldKeepDataInPacketBuffer() throws SSHException
+	{
+		// Given
+		ChannelDataMessage msg = new ChannelDataMessage();
+		msg.setChannelId(3);
+		msg.setData(new byte[] {1, 2, 3});
+		PooledBuffer packet = new PacketEncoder().encode(msg);
+		ByteBuffer buf = packet.buffer();
+		PacketFactory factory = new PacketFactory(new ByteArrayInputStream(
+			buf.array(), buf.arrayOffset(), buf.remaining()),
+			new ByteArrayOutputStream());
+		packet.release();
+		// When
+		ChannelDataMessage m = (ChannelDataMessage)factory.readMessage();
+		// Then
+		ByteBuffer data = m.getDataBuffer();
+		assertEquals(3, data.remaining());
+		assertEquals(3, data.get(2));
+		/* packet length, padding length, ID, channel and data length */
+		m.getLease().buffer().put(4 + 1 + 1 + 4 + 4, (byte)42);
+		assertEquals(42, data.get(0));
+		m.release();
+		assertNull(m.getLease());
+	}
+}
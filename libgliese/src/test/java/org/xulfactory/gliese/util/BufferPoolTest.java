@@ -0,0 +1,62 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+public class BufferPoolTest
+{
+	@Test
+	public void shouldReuseReleasedBuffers()
+	{
+		// Given
+		BufferPool pool = new BufferPool(true);
+		PooledBuffer b1 = pool.acquire(3000);
+		b1.buffer().put((byte)1);
+		b1.release();
+		// When
+		PooledBuffer b2 = pool.acquire(4000);
+		// Then
+		assertSame(b1.buffer(), b2.buffer());
+		assertTrue(b2.buffer().isDirect());
+		assertEquals(0x1000, b2.buffer().capacity());
+		assertEquals(0, b2.buffer().position());
+		assertEquals(1, pool.getHits());
+		assertEquals(1, pool.getMisses());
+		assertEquals(1, pool.getOutstanding());
+	}
+
+	@Test
+	public void shouldKeepRetainedBuffers()
+	{
+		// Given
+		BufferPool pool = new BufferPool(false);
+		PooledBuffer b1 = pool.acquire(100);
+		b1.retain();
+		// When
+		b1.release();
+		PooledBuffer b2 = pool.acquire(100);
+		// Then
+		assertNotSame(b1.buffer(), b2.buffer());
+		assertEquals(2, pool.getOutstanding());
+		b1.release();
+		assertEquals(1, pool.getOutstanding());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldRejectDoubleRelease()
+	{
+		// Given
+		PooledBuffer b = new BufferPool(false).acquire(100);
+		b.release();
+		// When
+		b.release();
+	}
+}
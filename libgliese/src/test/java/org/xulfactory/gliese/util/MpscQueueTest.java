@@ -0,0 +1,57 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+public class MpscQueueTest
+{
+	@Test
+	public void shouldKeepProducerOrder() throws InterruptedException
+	{
+		// Given
+		final MpscQueue<int[]> queue = new MpscQueue<int[]>();
+		final int count = 10000;
+		Thread[] producers = new Thread[4];
+		for (int i = 0; i < producers.length; i++) {
+			final int id = i;
+			producers[i] = new Thread(new Runnable() {
+				public void run()
+				{
+					for (int n = 0; n < count; n++) {
+						queue.offer(new int[] {id, n});
+					}
+				}
+			});
+		}
+		// When
+		for (Thread t: producers) {
+			t.start();
+		}
+		int[] last = new int[producers.length];
+		int received = 0;
+		while (received < count * producers.length) {
+			int[] e = queue.poll();
+			if (e == null) {
+				Thread.yield();
+				continue;
+			}
+			// Then
+			assertEquals(last[e[0]], e[1]);
+			last[e[0]]++;
+			received++;
+		}
+		for (Thread t: producers) {
+			t.join();
+		}
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+	}
+}
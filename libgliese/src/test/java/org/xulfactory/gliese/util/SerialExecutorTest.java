@@ -0,0 +1,51 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.xulfactory.gliese.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sirot
+ */
+public class SerialExecutorTest
+{
+	@Test
+	public void shouldRunTasksAfterError()
+	{
+		// Given
+		final List<String> done = new ArrayList<String>();
+		SerialExecutor serial = new SerialExecutor(new Executor() {
+			public void execute(Runnable r)
+			{
+				r.run();
+			}
+		});
+		try {
+			serial.execute(new Runnable() {
+				public void run()
+				{
+					throw new AssertionError("failure");
+				}
+			});
+			fail("Error should be propagated");
+		} catch (AssertionError ae) {
+			assertEquals("failure", ae.getMessage());
+		}
+		// When
+		serial.execute(new Runnable() {
+			public void run()
+			{
+				done.add("next");
+			}
+		});
+		// Then
+		assertEquals(1, done.size());
+	}
+}